@@ -0,0 +1,126 @@
+package com.demo.mediacodec.transcode;
+
+import android.media.MediaCodec;
+import android.os.Bundle;
+import android.os.Debug;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.demo.mediacodec.TraceUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 按{@link TranscodeRunner}编解码回调中逐帧调用的顺序执行各个辅助类，
+ * 用{@link Debug#getThreadAllocCount()}统计当前线程分配的对象数，逐帧的路径上不能有分配。
+ * <p>
+ * 需要在真机或模拟器上运行，ART的计数才准确。
+ *
+ * @date : 2026/10/19
+ */
+@RunWith(AndroidJUnit4.class)
+public class FrameCallbackAllocationTest {
+
+    //预热的帧数，第一次调用时的分配（数组、类初始化等）不计入
+    private static final int WARMUP_FRAMES = 100;
+    private static final int FRAMES = 1000;
+    //源视频24fps，输出30fps，会出现重复帧
+    private static final long SOURCE_FRAME_US = 1_000_000L / 24;
+    private static final int OUTPUT_FPS = 30;
+    private static final int HDR10_PLUS_SIZE = 64;
+
+    private final PipelineWatchdog mWatchdog = new PipelineWatchdog(10_000,
+            new PipelineWatchdog.OnStallListener() {
+                @Override
+                public void onStall(PipelineWatchdog.Snapshot snapshot) {
+                }
+            });
+    //回调间隔足够长，测试期间不会生成TranscodeProgress
+    private final ProgressTracker mProgressTracker = new ProgressTracker(
+            (WARMUP_FRAMES + FRAMES) * SOURCE_FRAME_US, 60_000);
+    private final ConstantFrameRateScheduler mCfrScheduler =
+            new ConstantFrameRateScheduler(OUTPUT_FPS);
+    private final Hdr10PlusInfo mHdr10Info = new Hdr10PlusInfo();
+    private final Hdr10PlusInfo mLatchedHdr10Info = new Hdr10PlusInfo();
+    private final Bundle mHdr10Params = new Bundle();
+    //解码器输出格式中的hdr10+元数据，hdr10+的视频每帧都可能变化
+    private final ByteBuffer mFormatHdr10Info = ByteBuffer.allocateDirect(HDR10_PLUS_SIZE);
+
+    @Test
+    public void perFrameCallbackPathDoesNotAllocate() {
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            runFrame(i);
+        }
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            for (int i = WARMUP_FRAMES; i < WARMUP_FRAMES + FRAMES; i++) {
+                runFrame(i);
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        assertEquals("逐帧回调分配了对象", 0, Debug.getThreadAllocCount());
+    }
+
+    private void runFrame(int frame) {
+        long ptsUs = frame * SOURCE_FRAME_US;
+
+        //读取线程
+        mWatchdog.begin(PipelineWatchdog.Stage.EXTRACTOR);
+        mWatchdog.end(PipelineWatchdog.Stage.EXTRACTOR);
+        mWatchdog.progress(PipelineWatchdog.Stage.EXTRACTOR, ptsUs);
+        mWatchdog.progress(PipelineWatchdog.Stage.DECODER_INPUT, ptsUs);
+
+        //解码器onOutputFormatChanged
+        for (int i = 0; i < HDR10_PLUS_SIZE; i++) {
+            mFormatHdr10Info.put(i, (byte) (frame + i));
+        }
+        mHdr10Info.set(mFormatHdr10Info);
+
+        //解码器onOutputBufferAvailable
+        TraceUtils.begin("Decoder.onOutputBuffer");
+        mWatchdog.progress(PipelineWatchdog.Stage.DECODER_OUTPUT, ptsUs);
+        long slotUs;
+        while ((slotUs = mCfrScheduler.pollSlot(ptsUs)) >= 0) {
+            mWatchdog.begin(PipelineWatchdog.Stage.RENDER);
+            mWatchdog.end(PipelineWatchdog.Stage.RENDER);
+            mWatchdog.progress(PipelineWatchdog.Stage.RENDER, slotUs);
+            sendHdr10Info(mLatchedHdr10Info);
+        }
+        mCfrScheduler.onFrameLatched(ptsUs);
+        if (mHdr10Info.isValid()) {
+            mLatchedHdr10Info.set(mHdr10Info);
+        } else {
+            mLatchedHdr10Info.clear();
+        }
+        TraceUtils.counter("Decoder.pts", ptsUs);
+        assertNull(mProgressTracker.onFrameDecoded(ptsUs, true));
+        TraceUtils.end();
+
+        //编码器onOutputBufferAvailable
+        TraceUtils.begin("Encoder.onOutputBuffer");
+        mWatchdog.progress(PipelineWatchdog.Stage.ENCODER_OUTPUT, ptsUs);
+        mWatchdog.begin(PipelineWatchdog.Stage.MUXER);
+        mWatchdog.end(PipelineWatchdog.Stage.MUXER);
+        mWatchdog.progress(PipelineWatchdog.Stage.MUXER, ptsUs);
+        TraceUtils.counter("Encoder.pts", ptsUs);
+        assertNull(mProgressTracker.onFrameEncoded(ptsUs, 10_000));
+        TraceUtils.end();
+    }
+
+    /**
+     * 和TranscodeRunner.sendHdr10Info一样复用同一个Bundle
+     */
+    private void sendHdr10Info(Hdr10PlusInfo info) {
+        if (info.isValid()) {
+            mHdr10Params.putByteArray(MediaCodec.PARAMETER_KEY_HDR10_PLUS_INFO, info.getData());
+        }
+    }
+}
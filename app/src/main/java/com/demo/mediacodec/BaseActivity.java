@@ -1,8 +1,12 @@
 package com.demo.mediacodec;
 
+import android.content.ClipData;
 import android.content.Intent;
 import android.net.Uri;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 
@@ -14,9 +18,17 @@ public class BaseActivity extends AppCompatActivity {
     public static final int REQUEST_VIDEO_PICKER = 0xaa;
 
     public void openPicker() {
+        openPicker(false);
+    }
+
+    /**
+     * @param allowMultiple 是否可以多选，多选的结果回调{@link #onVideosCallback(List)}
+     */
+    public void openPicker(boolean allowMultiple) {
         Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
         intent.setType("video/*");
         intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, allowMultiple);
         startActivityForResult(intent, REQUEST_VIDEO_PICKER);
     }
 
@@ -24,11 +36,29 @@ public class BaseActivity extends AppCompatActivity {
     protected void onActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
         if (REQUEST_VIDEO_PICKER == requestCode && resultCode == RESULT_OK && data != null) {
-            Uri videoUri = data.getData();
-            onVideoCallback(videoUri);
+            List<Uri> videoUris = new ArrayList<>();
+            ClipData clipData = data.getClipData();
+            if (clipData != null) {
+                //多选时结果在ClipData中
+                for (int i = 0; i < clipData.getItemCount(); i++) {
+                    videoUris.add(clipData.getItemAt(i).getUri());
+                }
+            } else if (data.getData() != null) {
+                videoUris.add(data.getData());
+            }
+            if (!videoUris.isEmpty()) {
+                onVideosCallback(videoUris);
+            }
         }
     }
 
+    /**
+     * 选择了一个或多个视频，默认只处理第一个
+     */
+    protected void onVideosCallback(List<Uri> videoUris) {
+        onVideoCallback(videoUris.get(0));
+    }
+
     protected void onVideoCallback(Uri videoUri) {
 
     }
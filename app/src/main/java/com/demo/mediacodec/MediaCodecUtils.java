@@ -8,10 +8,12 @@ import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 import android.os.Build;
 
+import com.demo.mediacodec.transcode.RateControlPlanner;
 import com.demo.mediacodec.transcode.TranscodeConfig;
 import com.demo.mediacodec.transcode.VideoOutputConfig;
 
 import java.util.Locale;
+import java.util.concurrent.Future;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -100,6 +102,36 @@ public class MediaCodecUtils {
         }
     }
 
+    /**
+     * 离线转码不需要按实时速度运行：设置非实时的优先级和尽可能高的运行速率。
+     * 不设置的话，有些厂商的编解码器会按实时播放的频率运行，转码只能跑到1倍速左右。
+     * Q以下MediaFormat不能removeKey，不被接受时需要使用设置之前的格式重试
+     */
+    public static void applyOfflineHints(@NonNull MediaFormat format) {
+        format.setInteger(MediaFormat.KEY_PRIORITY, 1);
+        //Short.MAX_VALUE表示尽可能快，厂商实现一般会据此提高运行频率
+        format.setInteger(MediaFormat.KEY_OPERATING_RATE, Short.MAX_VALUE);
+    }
+
+    /**
+     * 获取指定编解码器对某个mime的能力
+     */
+    @Nullable
+    public static MediaCodecInfo.CodecCapabilities getCodecCapabilities(String codecName,
+                                                                        String mime) {
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo codecInfo : codecList.getCodecInfos()) {
+            if (codecInfo.getName().equals(codecName)) {
+                try {
+                    return codecInfo.getCapabilitiesForType(mime);
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
     /**
      * 判断视频是否是HDRVivid视频
      */
@@ -149,13 +181,27 @@ public class MediaCodecUtils {
     }
 
     @NonNull
-    public static MediaFormat createOutputFormat(@NonNull Context ctx, @NonNull Uri srcUri,
+    public static MediaFormat createOutputFormat(@NonNull Context ctx, @Nullable Uri srcUri,
                                                  @NonNull MediaFormat inputVideoFormat,
                                                  @NonNull TranscodeConfig config,
                                                  @NonNull VideoOutputConfig outputConfig) {
+        return createOutputFormat(ctx, srcUri, inputVideoFormat, config, outputConfig, null);
+    }
+
+    /**
+     * @param hdrVividProbe 提前在子线程开始的HDRVivid判定，为null时在这里同步判定
+     */
+    @NonNull
+    public static MediaFormat createOutputFormat(@NonNull Context ctx, @Nullable Uri srcUri,
+                                                 @NonNull MediaFormat inputVideoFormat,
+                                                 @NonNull TranscodeConfig config,
+                                                 @NonNull VideoOutputConfig outputConfig,
+                                                 @Nullable Future<Boolean> hdrVividProbe) {
         MediaFormat outputFormat;
         String inMimeType = inputVideoFormat.getString(MediaFormat.KEY_MIME);
-        int inFrameRate = inputVideoFormat.getInteger(MediaFormat.KEY_FRAME_RATE);
+        //可变帧率的视频不一定带有KEY_FRAME_RATE
+        int inFrameRate = inputVideoFormat.containsKey(MediaFormat.KEY_FRAME_RATE)
+                ? inputVideoFormat.getInteger(MediaFormat.KEY_FRAME_RATE) : 0;
 
         boolean isH265 = false;
         String mime;
@@ -182,19 +228,21 @@ public class MediaCodecUtils {
                 outputConfig.isDolby = false;
             }
         }
-        outputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        outputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, outputConfig.useByteBuffer
+                ? MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible
+                : MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        //这里先用VBR查找编码器，找到编码器之后再由RateControlPlanner根据编码器能力调整
         outputFormat.setInteger(MediaFormat.KEY_BITRATE_MODE,
                 MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR);
 
-        if (config.bitrate > 0) {
-            outputFormat.setInteger(MediaFormat.KEY_BIT_RATE, config.bitrate);
-        } else {
-            outputFormat.setInteger(MediaFormat.KEY_BIT_RATE, 3 * 1024 * 1024);
-        }
-
         //这里的设置是为了让能够获取编码器，实际输出帧率并不受这个控制。而是受render绘制影响
-        if (inFrameRate > 0 && inFrameRate < config.fps) {
+        if (config.constantFrameRate) {
+            //恒定帧率时按目标帧率输出网格，源帧率低于目标帧率时重复帧，不需要降低fps
+            if (config.fps <= 0) {
+                config.fps = inFrameRate > 0 ? inFrameRate : 30;
+            }
+            outputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, config.fps);
+        } else if (inFrameRate > 0 && inFrameRate < config.fps) {
             config.fps = inFrameRate;
             outputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, inFrameRate);
         } else {
@@ -202,14 +250,32 @@ public class MediaCodecUtils {
         }
 
         //O及以上可以通过KEY_MAX_FPS_TO_ENCODER来控制输出帧率
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+        //恒定帧率时送给编码器的时间戳已经在网格上了，不需要编码器再丢帧
+        if (config.constantFrameRate) {
+            //do nothing
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
             outputFormat.setFloat(MediaFormat.KEY_MAX_FPS_TO_ENCODER, config.fps);
         } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             //O以上就有了，Q以上才开放。也有说Android 6也有用
             //https://github.com/Genymobile/scrcpy/issues/488#issuecomment-567321437
             outputFormat.setFloat("max-fps-to-encoder", config.fps);
         }
-        outputFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N_MR1) {
+            //N_MR1开始支持小数的关键帧间隔
+            outputFormat.setFloat(MediaFormat.KEY_I_FRAME_INTERVAL, config.gopSeconds);
+        } else {
+            //只支持整数：大于0时四舍五入且至少1秒；负数统一为-1（只有第一帧是关键帧），
+            //-0.5这样的小数直接强转会截断成0，变成全部是关键帧
+            int gopSeconds;
+            if (config.gopSeconds > 0) {
+                gopSeconds = Math.max(1, Math.round(config.gopSeconds));
+            } else if (config.gopSeconds < 0) {
+                gopSeconds = -1;
+            } else {
+                gopSeconds = 0;
+            }
+            outputFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, gopSeconds);
+        }
 
         if (Build.VERSION.SDK_INT > 23 && isH265) {
             //不去生成H264的HDR视频
@@ -222,7 +288,14 @@ public class MediaCodecUtils {
             outputConfig.isHDR =
                     outputConfig.outputLevel != OutputLevel.NO_HDR && colorStandard == MediaFormat.COLOR_STANDARD_BT2020;
             if (outputConfig.isHDR) {
-                outputConfig.isHDRVivid = MediaCodecUtils.isHDRVivid(ctx, null, srcUri, null);
+                boolean hdrVivid;
+                try {
+                    hdrVivid = hdrVividProbe != null ? hdrVividProbe.get()
+                            : MediaCodecUtils.isHDRVivid(ctx, null, srcUri, null);
+                } catch (Exception e) {
+                    hdrVivid = MediaCodecUtils.isHDRVivid(ctx, null, srcUri, null);
+                }
+                outputConfig.isHDRVivid = hdrVivid;
             }
             if (outputConfig.isHDR) {
                 if (inputVideoFormat.containsKey(MediaFormat.KEY_COLOR_STANDARD)) {
@@ -284,14 +357,15 @@ public class MediaCodecUtils {
             }
         }
 
-//        if (isH265) {
-//            //FIXME 开启B帧，能够一定程度提高清晰度，但不是所有设备都支持B帧，可能会因此报错。
-//            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-//                outputFormat.setInteger(MediaFormat.KEY_MAX_B_FRAMES, 1);
-//            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-//                outputFormat.setInteger(MediaFormat.KEY_LATENCY, 1);
-//            }
-//        }
+        if (config.bitrate > 0) {
+            outputFormat.setInteger(MediaFormat.KEY_BIT_RATE, config.bitrate);
+        } else {
+            //没有指定码率时按分辨率、帧率、编码格式估算
+            outputFormat.setInteger(MediaFormat.KEY_BIT_RATE, RateControlPlanner.estimateBitrate(mime,
+                    config.outWidth, config.outHeight, config.fps, outputConfig.isHDR));
+        }
+
+        //B帧不是所有编码器都支持，需要知道具体的编码器之后根据EncoderProbe的探测结果开启，见TranscodeRunner#prepareEncoder
 
         return outputFormat;
     }
@@ -0,0 +1,65 @@
+package com.demo.mediacodec;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * systrace/Perfetto打点，用于和系统的trace（codec HAL、SurfaceFlinger等线程）对齐分析编解码流程的耗时。
+ * <p>
+ * section名称都使用常量字符串，不拼接，不在逐帧的路径上分配内存。
+ * 同步的section在没有抓trace时由系统直接忽略；异步section和计数器是Q新增的接口，
+ * 只在{@link Trace#isEnabled()}时调用，Q以下不输出。
+ *
+ * @date : 2026/10/19
+ */
+public class TraceUtils {
+
+    private TraceUtils() {
+    }
+
+    /**
+     * 是否正在抓trace，Q以下无法判断，返回false
+     */
+    public static boolean isEnabled() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && Trace.isEnabled();
+    }
+
+    /**
+     * 开始一个同步的section，需要在同一线程调用{@link #end()}
+     */
+    public static void begin(String name) {
+        Trace.beginSection(name);
+    }
+
+    public static void end() {
+        Trace.endSection();
+    }
+
+    /**
+     * 开始一个异步section，可以在其他线程用相同的name、cookie结束，同一时间的多个section用cookie区分
+     */
+    public static void beginAsync(String name, long cookie) {
+        if (isEnabled()) {
+            Trace.beginAsyncSection(name, cookieOf(cookie));
+        }
+    }
+
+    public static void endAsync(String name, long cookie) {
+        if (isEnabled()) {
+            Trace.endAsyncSection(name, cookieOf(cookie));
+        }
+    }
+
+    /**
+     * 计数器，例如帧的pts，在trace中显示为一条曲线
+     */
+    public static void counter(String name, long value) {
+        if (isEnabled()) {
+            Trace.setCounter(name, value);
+        }
+    }
+
+    private static int cookieOf(long value) {
+        return (int) (value ^ (value >>> 32));
+    }
+}
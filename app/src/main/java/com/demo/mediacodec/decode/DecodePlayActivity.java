@@ -1,27 +1,36 @@
 package com.demo.mediacodec.decode;
 
-import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.ParcelFileDescriptor;
-import android.os.SystemClock;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.SurfaceView;
 import android.view.View;
+import android.widget.Button;
+import android.widget.SeekBar;
 import android.widget.TextView;
 
 import com.demo.mediacodec.AspectRatioFrameLayout;
 import com.demo.mediacodec.BaseActivity;
 import com.demo.mediacodec.MediaCodecUtils;
 import com.demo.mediacodec.R;
+import com.google.android.material.checkbox.MaterialCheckBox;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 /**
@@ -31,6 +40,15 @@ import androidx.annotation.Nullable;
  * MediaExtractor挑选视频轨道 -> 准备合适的解码器 -> 解码并渲染到Surface上。
  * 只有具有对某个视频完全支持的解码器才能进行播放。
  * 如果在非HDR设备上播放HDR视频，会获取不到解码器。
+ * <p>
+ * 快速起播模式：打开文件的同时按上一次使用的解码器提前创建MediaCodec，支持的设备上开启低延迟解码，
+ * 首帧解码出来后立即渲染。首帧耗时（TTFF）显示在调试信息中。
+ * <p>
+ * 进度条：打开文件后在子线程建立关键帧索引（{@link KeyframeIndex}），拖动时只显示关键帧，松手后精确跳转。
+ * 速度按钮在快进、快退之间切换，高倍速和倒放只解码关键帧。
+ * <p>
+ * 播放列表：可以多选视频顺序播放、循环播放。下一个片段提前打开，和当前解码器兼容（mime相同、尺寸在自适应播放的范围内）时
+ * 复用解码器无缝切换，否则重新创建解码器。
  *
  * @author : chenqiao
  * @date : 2022/12/27 3:58 PM
@@ -40,6 +58,31 @@ public class DecodePlayActivity extends BaseActivity {
     private SurfaceView mSurfaceView;
     private AspectRatioFrameLayout mContainer;
     private TextView mDebugTv;
+    private MaterialCheckBox mFastStartCb;
+    private MaterialCheckBox mLoopCb;
+    private SeekBar mSeekBar;
+    private Button mSpeedBtn;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private static final String TAG = "DecodePlayActivity";
+    private static final String PREFS_NAME = "decode_play";
+    private static final String KEY_LAST_DECODER = "last_decoder";
+    //支持自适应播放时，解码器至少按这个尺寸分配缓冲，播放列表中分辨率不超过它的片段都可以复用解码器
+    private static final int ADAPTIVE_MAX_SIZE = 1920;
+    //速度按钮依次切换的速度，负数为倒放
+    private static final float[] SPEEDS = {1f, 2f, 4f, 8f, 16f, -4f, -8f, -16f};
+    //刷新进度条的间隔
+    private static final long PROGRESS_INTERVAL_MS = 200;
+
+    //首帧耗时，显示在调试信息的第一行
+    private volatile String mTtffInfo;
+    private volatile String mDebugLog;
+    //属于mClip的关键帧索引，和mClip一起在mClipLock中修改
+    private volatile KeyframeIndex mKeyframeIndex;
+    private final Object mClipLock = new Object();
+    //正在拖动进度条
+    private boolean mTracking;
+    private volatile int mSpeedIndex;
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
@@ -48,48 +91,203 @@ public class DecodePlayActivity extends BaseActivity {
         findViewById(R.id.btn_select_video).setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                openPicker();
+                openPicker(true);
             }
         });
         mSurfaceView = findViewById(R.id.surface);
         mContainer = findViewById(R.id.video_container);
         mDebugTv = findViewById(R.id.tv_debug_info);
+        mFastStartCb = findViewById(R.id.cb_fast_start);
+        mLoopCb = findViewById(R.id.cb_loop);
+        mSpeedBtn = findViewById(R.id.btn_speed);
+        mSpeedBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                mSpeedIndex = (mSpeedIndex + 1) % SPEEDS.length;
+                float speed = SPEEDS[mSpeedIndex];
+                mSpeedBtn.setText("速度: " + (speed > 0 ? "" : "倒放") + Math.abs((int) speed) + "x");
+                DecodePlayer player = mPlayer;
+                if (player != null) {
+                    player.setSpeed(speed);
+                }
+            }
+        });
+        mSeekBar = findViewById(R.id.seek_bar);
+        mSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                DecodePlayer player = mPlayer;
+                if (fromUser && player != null) {
+                    player.scrubTo(progress * 1000L);
+                }
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+                mTracking = true;
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+                mTracking = false;
+                DecodePlayer player = mPlayer;
+                if (player != null) {
+                    player.seekTo(seekBar.getProgress() * 1000L);
+                }
+            }
+        });
     }
 
+    private final Runnable mProgressUpdater = new Runnable() {
+        @Override
+        public void run() {
+            DecodePlayer player = mPlayer;
+            if (player == null) {
+                mSeekBar.setEnabled(false);
+                return;
+            }
+            if (!mTracking) {
+                mSeekBar.setProgress((int) (player.getPositionUs() / 1000));
+            }
+            mMainHandler.postDelayed(this, PROGRESS_INTERVAL_MS);
+        }
+    };
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (mMediaExtractor != null) {
-            mMediaExtractor.release();
+        mMainHandler.removeCallbacks(mProgressUpdater);
+        DecodePlayer player = mPlayer;
+        if (player != null) {
+            player.stop();
         }
-        if (pf != null) {
-            try {
-                pf.close();
-            } catch (IOException ignore) {
-            }
+        Playlist playlist = mPlaylist;
+        if (playlist != null) {
+            playlist.release();
         }
+        releaseClip();
         if (mMediaCodec != null) {
             mMediaCodec.release();
         }
-
+        discardSpeculativeDecoder();
     }
 
     @Override
-    protected void onVideoCallback(Uri videoUri) {
-        decodeAndPlay(videoUri);
+    protected void onVideosCallback(List<Uri> videoUris) {
+        decodeAndPlay(videoUris);
     }
 
-    private void decodeAndPlay(Uri videoUri) {
+    private void decodeAndPlay(List<Uri> videoUris) {
+        boolean fastStart = mFastStartCb.isChecked();
+        boolean loop = mLoopCb.isChecked();
+        long startNs = System.nanoTime();
+        mTtffInfo = null;
+        mKeyframeIndex = null;
         new Thread(new Runnable() {
             @Override
             public void run() {
                 StringBuilder log = new StringBuilder();
-                selectVideoTrack(videoUri, log);
-                prepareDecoder(log);
+                if (fastStart) {
+                    //打开文件的同时创建解码器
+                    startSpeculativeDecoder();
+                }
+                Playlist playlist = new Playlist(DecodePlayActivity.this, videoUris, loop);
+                mPlaylist = playlist;
+                Playlist.Clip clip = selectVideoTrack(playlist, log);
+                long openNs = System.nanoTime();
+                try {
+                    //片段和当前解码器不兼容时，重新创建解码器继续播放
+                    while (clip != null) {
+                        onClipStarted(playlist, clip, log);
+                        clip = prepareDecoder(playlist, log, fastStart, startNs, openNs);
+                    }
+                } finally {
+                    discardSpeculativeDecoder();
+                    playlist.release();
+                    releaseClip();
+                }
             }
         }).start();
     }
 
+    /**
+     * 提前创建的解码器，文件打开之后才知道实际需要哪个解码器，不一致时丢弃
+     */
+    private FutureTask<MediaCodec> mSpeculativeDecoder;
+
+    /**
+     * 按上一次播放使用的解码器，在子线程提前创建。MediaCodec的创建要分配硬件资源，在部分设备上需要上百毫秒
+     */
+    private void startSpeculativeDecoder() {
+        SharedPreferences sp = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String lastDecoder = sp.getString(KEY_LAST_DECODER, null);
+        if (TextUtils.isEmpty(lastDecoder)) {
+            return;
+        }
+        FutureTask<MediaCodec> task = new FutureTask<>(new Callable<MediaCodec>() {
+            @Override
+            public MediaCodec call() throws Exception {
+                return MediaCodec.createByCodecName(lastDecoder);
+            }
+        });
+        synchronized (this) {
+            mSpeculativeDecoder = task;
+        }
+        new Thread(task, "SpeculativeDecoder").start();
+    }
+
+    /**
+     * 获取提前创建的解码器，名称一致时直接使用，否则释放
+     */
+    @Nullable
+    private MediaCodec takeSpeculativeDecoder(String codecName) {
+        FutureTask<MediaCodec> task;
+        synchronized (this) {
+            task = mSpeculativeDecoder;
+            mSpeculativeDecoder = null;
+        }
+        if (task == null) {
+            return null;
+        }
+        MediaCodec codec;
+        try {
+            codec = task.get();
+        } catch (Exception e) {
+            Log.w(TAG, "takeSpeculativeDecoder: ", e);
+            return null;
+        }
+        if (codec != null && !codecName.equals(codec.getName())) {
+            codec.release();
+            return null;
+        }
+        return codec;
+    }
+
+    private void discardSpeculativeDecoder() {
+        FutureTask<MediaCodec> task;
+        synchronized (this) {
+            task = mSpeculativeDecoder;
+            mSpeculativeDecoder = null;
+        }
+        if (task == null) {
+            return;
+        }
+        try {
+            MediaCodec codec = task.get();
+            if (codec != null) {
+                codec.release();
+            }
+        } catch (Exception ignore) {
+        }
+    }
+
+    private volatile Playlist mPlaylist;
+
+    /**
+     * 当前播放的片段，包含轨道选择器
+     */
+    private volatile Playlist.Clip mClip;
+
     /**
      * 轨道选择器
      */
@@ -105,81 +303,121 @@ public class DecodePlayActivity extends BaseActivity {
      */
     private MediaCodec mMediaCodec;
 
-    private ParcelFileDescriptor pf;
+    private volatile DecodePlayer mPlayer;
 
     /**
-     * 挑选视频轨道
+     * 当前解码器的mime和可以解码的最大尺寸，用于判断下一个片段能否复用
      */
-    private void selectVideoTrack(Uri videoUri, StringBuilder log) {
-        if (mMediaExtractor != null) {
-            mMediaExtractor.release();
-        }
-        mMediaExtractor = new MediaExtractor();
-        if (pf != null) {
-            try {
-                pf.close();
-            } catch (IOException ignore) {
+    private String mDecoderMime;
+    private int mMaxWidth;
+    private int mMaxHeight;
+    private boolean mAdaptive;
+
+    /**
+     * 在子线程建立关键帧索引，和起播互不影响，建好之前跳转退回到Extractor自己查找关键帧
+     */
+    private void buildKeyframeIndex(Playlist.Clip clip) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                KeyframeIndex index = KeyframeIndex.obtain(DecodePlayActivity.this, clip.uri,
+                        clip.trackIndex, clip.fileSize, clip.lastModifiedMs);
+                synchronized (mClipLock) {
+                    if (mClip != clip) {
+                        //已经切换到其他片段
+                        return;
+                    }
+                    mKeyframeIndex = index;
+                    DecodePlayer player = mPlayer;
+                    if (player != null) {
+                        //播放器还没切换到这个片段时先保存，切换后使用
+                        player.setKeyframeIndex(clip, index);
+                    }
+                }
             }
-        }
+        }, "KeyframeIndex").start();
+    }
+
+    /**
+     * 打开播放列表的下一个片段，挑选视频轨道
+     */
+    @Nullable
+    private Playlist.Clip selectVideoTrack(Playlist playlist, StringBuilder log) {
         try {
-            ContentResolver contentResolver = getContentResolver();
-            pf = contentResolver.openFileDescriptor(videoUri, "r");
-            mMediaExtractor.setDataSource(pf.getFileDescriptor());
-            int trackCount = mMediaExtractor.getTrackCount();
-            for (int i = 0; i < trackCount; i++) {
-                MediaFormat format = mMediaExtractor.getTrackFormat(i);
-                String mime = format.getString(MediaFormat.KEY_MIME);
-                if (!TextUtils.isEmpty(mime) && mime.startsWith("video")) {
-                    //找到视频轨道
-                    mVideoFormat = format;
-                    //选中该视频轨道，后面读取轨道数据，就是读取的该轨道的
-                    mMediaExtractor.selectTrack(i);
-                    log.append("找到了视频轨道：").append(mVideoFormat).append("\n");
-                    setDebugLog(log.toString());
-                    return;
-                }
+            Playlist.Clip clip = playlist.next();
+            if (clip == null) {
+                log.append("播放列表结束").append("\n");
+            } else {
+                log.append("找到了视频轨道：").append(clip.format).append("\n");
             }
+            setDebugLog(log.toString());
+            return clip;
         } catch (IOException e) {
             e.printStackTrace();
+            log.append("没有找到了视频轨道! ").append(e.getMessage()).append("\n");
+            setDebugLog(log.toString());
+            return null;
         }
-        log.append("没有找到了视频轨道!").append("\n");
-        setDebugLog(log.toString());
     }
 
     /**
-     * 准备解码器
+     * 开始播放一个片段：更新界面，建立关键帧索引，提前打开下一个片段
      */
-    private void prepareDecoder(StringBuilder log) {
-        if (mMediaCodec != null) {
-            mMediaCodec.release();
-            mMediaCodec = null;
+    private void onClipStarted(Playlist playlist, Playlist.Clip clip, StringBuilder log) {
+        if (mClip != clip) {
+            releaseClip();
         }
-        if (mVideoFormat == null) {
-            return;
+        synchronized (mClipLock) {
+            mClip = clip;
+            mKeyframeIndex = null;
         }
-        boolean maybeSwitchWH = false;
+        mMediaExtractor = clip.extractor;
+        mVideoFormat = clip.format;
+        buildKeyframeIndex(clip);
+        updateVideoLayout(clip.format);
+        long durationUs = clip.format.containsKey(MediaFormat.KEY_DURATION)
+                ? clip.format.getLong(MediaFormat.KEY_DURATION) : 0;
+        runOnUiThread(() -> {
+            mSeekBar.setMax((int) (durationUs / 1000));
+            mSeekBar.setProgress(0);
+        });
+        playlist.prefetch();
+    }
 
-        String mime = mVideoFormat.getString(MediaFormat.KEY_MIME);
-        int width = mVideoFormat.getInteger(MediaFormat.KEY_WIDTH);
-        int height = mVideoFormat.getInteger(MediaFormat.KEY_HEIGHT);
-        int rotation;
-        if (mVideoFormat.containsKey(MediaFormat.KEY_ROTATION)) {
-            rotation = mVideoFormat.getInteger(MediaFormat.KEY_ROTATION);
-        } else {
-            rotation = 0;
-            if (width < height) {
-                maybeSwitchWH = true;
-            }
+    private void releaseClip() {
+        Playlist.Clip clip = mClip;
+        mClip = null;
+        mMediaExtractor = null;
+        if (clip != null) {
+            clip.release();
+        }
+    }
+
+    /**
+     * 下一个片段能否复用当前的解码器
+     */
+    private boolean canReuseDecoder(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        if (!TextUtils.equals(mime, mDecoderMime)) {
+            return false;
         }
-        int maxCache;
-        if (mVideoFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
-            //使用读取到的size作为缓存大小，防止出现溢出
-            maxCache = mVideoFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
-        } else {
-            maxCache = 500 * 1024;
+        if (mAdaptive) {
+            return width <= mMaxWidth && height <= mMaxHeight;
         }
+        //不支持自适应播放时，尺寸变化需要解码器重新分配输出缓冲，不能无缝切换
+        return width == mMaxWidth && height == mMaxHeight;
+    }
 
-        //调整Surface尺寸
+    /**
+     * 调整Surface尺寸
+     */
+    private void updateVideoLayout(MediaFormat format) {
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        int rotation = format.containsKey(MediaFormat.KEY_ROTATION)
+                ? format.getInteger(MediaFormat.KEY_ROTATION) : 0;
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -191,6 +429,31 @@ public class DecodePlayActivity extends BaseActivity {
                 }
             }
         });
+    }
+
+    /**
+     * 准备解码器并播放，同一个解码器可以播放播放列表中的多个片段
+     *
+     * @return 和当前解码器不兼容、需要重新创建解码器的下一个片段，播放结束时返回null
+     */
+    @Nullable
+    private Playlist.Clip prepareDecoder(Playlist playlist, StringBuilder log, boolean fastStart,
+                                         long startNs, long openNs) {
+        if (mMediaCodec != null) {
+            mMediaCodec.release();
+            mMediaCodec = null;
+        }
+        if (mVideoFormat == null) {
+            return null;
+        }
+        boolean maybeSwitchWH = false;
+
+        String mime = mVideoFormat.getString(MediaFormat.KEY_MIME);
+        int width = mVideoFormat.getInteger(MediaFormat.KEY_WIDTH);
+        int height = mVideoFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        if (!mVideoFormat.containsKey(MediaFormat.KEY_ROTATION) && width < height) {
+            maybeSwitchWH = true;
+        }
 
         String codecName = MediaCodecUtils.findDecoderByFormat(mVideoFormat);
         if (TextUtils.isEmpty(codecName)) {
@@ -231,7 +494,7 @@ public class DecodePlayActivity extends BaseActivity {
         if (TextUtils.isEmpty(codecName)) {
             log.append("最终没有找到解码器!").append("\n");
             setDebugLog(log.toString());
-            return;
+            return null;
         }
 
         log.append("找到解码器：").append(codecName).append("\n");
@@ -239,79 +502,142 @@ public class DecodePlayActivity extends BaseActivity {
 
         try {
             //以同步模式进行解码
-            MediaCodec decoder = MediaCodec.createByCodecName(codecName);
+            MediaCodec decoder = fastStart ? takeSpeculativeDecoder(codecName) : null;
+            boolean speculativeHit = decoder != null;
+            if (decoder == null) {
+                decoder = MediaCodec.createByCodecName(codecName);
+            }
             mMediaCodec = decoder;
+            long createNs = System.nanoTime();
+            String decoderName = codecName;
+            MediaCodecInfo.CodecCapabilities capabilities = MediaCodecUtils.getCodecCapabilities(
+                    codecName, mVideoFormat.getString(MediaFormat.KEY_MIME));
+            configureMaxSize(capabilities, width, height, playlist.size() > 1);
+            if (fastStart && Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                if (capabilities != null && capabilities.isFeatureSupported(
+                        MediaCodecInfo.CodecCapabilities.FEATURE_LowLatency)) {
+                    //低延迟模式下解码器不再攒多帧再输出
+                    mVideoFormat.setInteger(MediaFormat.KEY_LOW_LATENCY, 1);
+                    log.append("开启低延迟解码\n");
+                }
+            }
+            decoder.setOnFrameRenderedListener(new MediaCodec.OnFrameRenderedListener() {
+                @Override
+                public void onFrameRendered(@NonNull MediaCodec codec, long presentationTimeUs,
+                                            long nanoTime) {
+                    if (mTtffInfo == null) {
+                        //nanoTime是帧实际显示的时间，和System.nanoTime同一时钟
+                        showTtff(nanoTime, startNs, openNs, createNs, decoderName, speculativeHit);
+                    }
+                }
+            }, null);
             decoder.configure(mVideoFormat, mSurfaceView.getHolder().getSurface(), null, 0);
             decoder.start();
+            getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                    .putString(KEY_LAST_DECODER, codecName).apply();
 
-            ByteBuffer byteBuffer = ByteBuffer.allocate(maxCache);
-            int sampleSize;
-            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-
-            long startTime = System.nanoTime(); //ns
-
-            //不停读取轨道数据
-            while ((sampleSize = mMediaExtractor.readSampleData(byteBuffer, 0)) > 0) {
-                long sampleTime = mMediaExtractor.getSampleTime(); //us
-
-                //从decoder中取出输入缓冲队列
-                int index = decoder.dequeueInputBuffer(10 * 1000L);
-                if (index > -1) {
-                    ByteBuffer inputBuffer = decoder.getInputBuffer(index);
-                    //将从轨道读取的数据，填充进输入缓冲中
-                    inputBuffer.clear();
-                    inputBuffer.put(byteBuffer);
-                    //将输入缓冲还给解码器
-                    decoder.queueInputBuffer(index, 0, sampleSize, sampleTime, 0);
-                }
-
-                //从解码器中处理解码后的数据
-                int outIndex = decoder.dequeueOutputBuffer(bufferInfo, 10 * 1000L);
-                if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    //do nothing
-                } else if (outIndex > -1) {
-                    //检查是否到了渲染时间，没到的话sleep到渲染时间
-                    if (System.nanoTime() - startTime < bufferInfo.presentationTimeUs * 1000L) {
-                        SystemClock.sleep((bufferInfo.presentationTimeUs - (System.nanoTime() - startTime) / 1000) / 1000);
-                    }
-                    if (isFinishing() || isDestroyed()) {
-                        break;
+            VsyncTracker vsyncTracker = new VsyncTracker(
+                    getWindowManager().getDefaultDisplay().getRefreshRate());
+            vsyncTracker.start();
+            DecodePlayer player = new DecodePlayer(mClip, decoder, vsyncTracker);
+            player.setSpeed(SPEEDS[mSpeedIndex]);
+            Playlist.Clip[] incompatibleClip = new Playlist.Clip[1];
+            player.setClipProvider(new DecodePlayer.ClipProvider() {
+                @Nullable
+                @Override
+                public Playlist.Clip nextClip() {
+                    Playlist.Clip next = selectVideoTrack(playlist, log);
+                    if (next == null) {
+                        return null;
                     }
-                    //这里直接将解码后的数据刷到Surface即可
-                    try {
-                        decoder.releaseOutputBuffer(outIndex, true);
-                    } catch (Exception e) {
-                        e.printStackTrace();
+                    if (!canReuseDecoder(next.format)) {
+                        log.append("下一个片段和当前解码器不兼容，重新创建解码器").append("\n");
+                        incompatibleClip[0] = next;
+                        return null;
                     }
+                    onClipStarted(playlist, next, log);
+                    return next;
                 }
-
-                //获取接下来的轨道数据
-                boolean hasNext = mMediaExtractor.advance();
-                if (hasNext) {
-                    byteBuffer.clear();
-                } else {
-                    break;
-                }
+            });
+            synchronized (mClipLock) {
+                //索引在这之前建好时在这里设置，之后建好时由buildKeyframeIndex设置
+                mPlayer = player;
+                player.setKeyframeIndex(mClip, mKeyframeIndex);
+            }
+            runOnUiThread(() -> {
+                mSeekBar.setEnabled(true);
+                mMainHandler.removeCallbacks(mProgressUpdater);
+                mMainHandler.post(mProgressUpdater);
+            });
+            try {
+                player.play();
+            } finally {
+                vsyncTracker.stop();
+                mPlayer = null;
             }
+            log.append("渲染").append(player.getRenderedFrames()).append("帧，丢帧")
+                    .append(player.getDroppedFrames()).append("\n");
 
             if (mMediaCodec != null) {
                 mMediaCodec.release();
-            }
-            if (mMediaExtractor != null) {
-                mMediaExtractor.release();
+                mMediaCodec = null;
             }
             log.append("解码完成，释放资源！").append("\n");
+            return incompatibleClip[0];
         } catch (Exception e) {
             e.printStackTrace();
             log.append("解码过程报错：" + e.getMessage());
+            return null;
         } finally {
             setDebugLog(log.toString());
         }
     }
 
+    /**
+     * 记录解码器可以解码的最大尺寸。播放列表有多个片段、解码器支持自适应播放时，
+     * 设置KEY_MAX_WIDTH、KEY_MAX_HEIGHT让解码器按较大的尺寸分配缓冲，分辨率变化时不需要重新创建解码器
+     */
+    private void configureMaxSize(@Nullable MediaCodecInfo.CodecCapabilities capabilities,
+                                  int width, int height, boolean multipleClips) {
+        mDecoderMime = mVideoFormat.getString(MediaFormat.KEY_MIME);
+        mAdaptive = multipleClips && capabilities != null && capabilities.isFeatureSupported(
+                MediaCodecInfo.CodecCapabilities.FEATURE_AdaptivePlayback);
+        mMaxWidth = width;
+        mMaxHeight = height;
+        if (!mAdaptive) {
+            return;
+        }
+        //横竖屏的片段都要能放下
+        int maxSize = Math.max(ADAPTIVE_MAX_SIZE, Math.max(width, height));
+        mMaxWidth = maxSize;
+        mMaxHeight = maxSize;
+        MediaCodecInfo.VideoCapabilities videoCapabilities = capabilities.getVideoCapabilities();
+        if (videoCapabilities != null) {
+            mMaxWidth = Math.max(width, Math.min(maxSize,
+                    videoCapabilities.getSupportedWidths().getUpper()));
+            mMaxHeight = Math.max(height, Math.min(maxSize,
+                    videoCapabilities.getSupportedHeights().getUpper()));
+        }
+        mVideoFormat.setInteger(MediaFormat.KEY_MAX_WIDTH, mMaxWidth);
+        mVideoFormat.setInteger(MediaFormat.KEY_MAX_HEIGHT, mMaxHeight);
+    }
+
+    private void showTtff(long renderNs, long startNs, long openNs, long createNs, String codecName,
+                          boolean speculativeHit) {
+        long ttffMs = (renderNs - startNs) / 1_000_000;
+        mTtffInfo = "首帧耗时: " + ttffMs + "ms（打开文件" + (openNs - startNs) / 1_000_000
+                + "ms，创建解码器" + (createNs - openNs) / 1_000_000 + "ms"
+                + (speculativeHit ? "，命中预创建" : "") + "）";
+        Log.i(TAG, "TTFF: " + ttffMs + "ms, device: " + Build.MODEL + ", decoder: " + codecName
+                + ", fastStart: " + mFastStartCb.isChecked());
+        setDebugLog(mDebugLog);
+    }
+
     private void setDebugLog(String debugInfo) {
+        mDebugLog = debugInfo;
         runOnUiThread(() -> {
-            mDebugTv.setText(debugInfo);
+            String ttff = mTtffInfo;
+            mDebugTv.setText(ttff == null ? debugInfo : ttff + "\n" + debugInfo);
         });
     }
 }
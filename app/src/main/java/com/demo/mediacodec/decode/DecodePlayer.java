@@ -0,0 +1,610 @@
+package com.demo.mediacodec.decode;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.util.Log;
+
+import com.demo.mediacodec.TraceUtils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.Nullable;
+
+/**
+ * 同步模式的解码播放循环。
+ * <p>
+ * 输入和输出互相独立：每一轮先把解码器所有空闲的输入buffer填满，样本由Extractor直接读进解码器的输入buffer，
+ * 不经过中间的堆内存；再把解码器已经输出的帧全部取出来。Extractor读完后送入EOS，继续取出剩余的帧直到解码器输出EOS。
+ * 输入输出都没有进展时才阻塞等待，避免空转。
+ * <p>
+ * 送显使用releaseOutputBuffer(index, renderTimestampNs)，显示时间对齐到vsync（{@link VsyncTracker}），
+ * 离送显时间还早的帧先持有，解码线程继续填充输入；错过显示时间的帧直接丢弃，避免一次卡顿导致后面的帧连续迟到。
+ * <p>
+ * 跳转时flush解码器，Extractor跳到目标之前的关键帧（{@link KeyframeIndex}），从关键帧解码到目标位置，
+ * 中间的帧不渲染，耗时只和GOP长度有关。拖动进度条期间只送入关键帧并立即渲染，然后等待下一次拖动。
+ * <p>
+ * 倍速播放按速度缩放显示时间。速度达到{@link #setKeyframeOnlySpeed(float)}后只送入关键帧，跳过中间的样本，
+ * 解码器的负载只和关键帧数量有关；倒放从当前位置沿关键帧向前逐个解码。
+ * <p>
+ * 设置了{@link ClipProvider}时，一个片段播放完不结束，而是flush解码器、送入下一个片段的csd，
+ * 接着用同一个解码器解码下一个片段，显示时间接在上一个片段的最后一帧后面，没有重新创建解码器的停顿。
+ *
+ * @date : 2026/10/19
+ */
+class DecodePlayer {
+    private static final String TAG = "DecodePlayer";
+
+    //没有可处理的输入、输出时，阻塞等待的时间
+    private static final long WAIT_TIMEOUT_US = 10_000;
+    //帧最多提前这么久送显，更早的帧先持有，期间继续填充输入
+    private static final long MAX_EARLY_NS = 50_000_000L;
+    //晚于显示时间超过这个值的帧直接丢弃
+    private static final long LATE_THRESHOLD_NS = 30_000_000L;
+    //晚了太久（解码器长时间卡住）时重新对齐播放时钟，而不是把之后的帧都丢掉
+    private static final long RESYNC_THRESHOLD_NS = 500_000_000L;
+    //默认达到这个倍速后只解码关键帧
+    private static final float DEFAULT_KEYFRAME_ONLY_SPEED = 4f;
+
+    private MediaExtractor mExtractor;
+    private final MediaCodec mDecoder;
+    @Nullable
+    private final VsyncTracker mVsyncTracker;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    private volatile boolean mStopped;
+    //关键帧索引和它所属的片段，索引可能在切换到该片段之前或者之后建好，只在属于当前片段时使用
+    private final Object mIndexLock = new Object();
+    @Nullable
+    private KeyframeIndex mKeyframeIndex;
+    @Nullable
+    private Playlist.Clip mKeyframeIndexClip;
+    //正在播放的片段，guarded by mIndexLock
+    private Playlist.Clip mClip;
+    private volatile long mPositionUs;
+    private volatile float mRequestedSpeed = 1f;
+    private volatile float mKeyframeOnlySpeed = DEFAULT_KEYFRAME_ONLY_SPEED;
+    @Nullable
+    private volatile ClipProvider mClipProvider;
+
+    //跳转请求，由其他线程设置，guarded by this
+    private long mSeekRequestUs = -1;
+    private boolean mScrubRequest;
+
+    //当前速度，负数为倒放
+    private float mSpeed = 1f;
+    private boolean mKeyframeOnly;
+
+    //拖动模式：只解码一个关键帧
+    private boolean mScrubbing;
+    //下一个输入送EOS：拖动的关键帧已经送入，或者倒放到了开头
+    private boolean mFeedEnd;
+    //早于这个时间的帧只解码不渲染
+    private long mSkipUntilUs = -1;
+
+    private boolean mInputDone;
+    private boolean mOutputDone;
+    //播放时钟的起点：mStartTimeNs时显示时间戳为mAnchorPtsUs的帧
+    private long mStartTimeNs;
+    private long mAnchorPtsUs;
+    //上一帧的显示时间和帧间隔，切换片段时用于接续时间线
+    private long mLastDisplayNs;
+    private long mFrameIntervalNs;
+    //新片段首帧的显示时间，0表示首帧立即显示
+    private long mClipStartNs;
+    //切换片段后，在样本之前送入的csd
+    private final List<ByteBuffer> mPendingCsd = new ArrayList<>();
+    private boolean mFirstFrame = true;
+
+    //已经取出、还没到送显时间的帧
+    private int mPendingIndex = -1;
+    private long mPendingPtsUs;
+    private boolean mPendingEos;
+
+    private int mRenderedFrames;
+    private int mDroppedFrames;
+
+    /**
+     * @param clip         第一个片段，已经选中了视频轨道
+     * @param decoder      已经configure、start，输出到Surface
+     * @param vsyncTracker 用于把送显时间对齐到vsync，为null时不对齐
+     */
+    DecodePlayer(Playlist.Clip clip, MediaCodec decoder, @Nullable VsyncTracker vsyncTracker) {
+        mClip = clip;
+        mExtractor = clip.extractor;
+        mDecoder = decoder;
+        mVsyncTracker = vsyncTracker;
+    }
+
+    /**
+     * 开始播放，阻塞直到播放完成或者{@link #stop()}
+     */
+    void play() {
+        while (!mStopped) {
+            applySpeed();
+            handleSeekRequest();
+            if (mOutputDone) {
+                if (!mScrubbing && mSpeed > 0) {
+                    if (switchToNextClip()) {
+                        continue;
+                    }
+                    break;
+                }
+                //拖动中的关键帧已经显示，或者倒放到了开头，等待下一次请求
+                waitForRequest(WAIT_TIMEOUT_US);
+                continue;
+            }
+            boolean fed = !mInputDone && feedInput(0);
+            //送入了数据时不等待，尽快回去继续填充输入
+            long earlyNs = drainOutput(fed ? 0 : WAIT_TIMEOUT_US);
+            if (earlyNs > 0 && !fed) {
+                waitForPending(earlyNs);
+            }
+        }
+        if (mPendingIndex >= 0) {
+            mDecoder.releaseOutputBuffer(mPendingIndex, false);
+            mPendingIndex = -1;
+        }
+        Log.i(TAG, "播放结束，渲染" + mRenderedFrames + "帧，丢弃" + mDroppedFrames + "帧");
+    }
+
+    /**
+     * 可以在任意线程调用
+     */
+    void stop() {
+        mStopped = true;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * 设置后跳转使用索引直接定位关键帧，可以在任意线程调用。
+     * 只在clip是正在播放的片段时使用，可以在播放器切换到clip之前设置
+     */
+    void setKeyframeIndex(Playlist.Clip clip, @Nullable KeyframeIndex index) {
+        synchronized (mIndexLock) {
+            mKeyframeIndexClip = clip;
+            mKeyframeIndex = index;
+        }
+    }
+
+    /**
+     * 当前片段的关键帧索引，还没有建好时返回null
+     */
+    @Nullable
+    private KeyframeIndex getKeyframeIndex() {
+        synchronized (mIndexLock) {
+            return mKeyframeIndexClip == mClip ? mKeyframeIndex : null;
+        }
+    }
+
+    /**
+     * 精确跳转：从之前的关键帧解码到timeUs，从timeUs开始继续播放，同时结束拖动模式。可以在任意线程调用
+     */
+    void seekTo(long timeUs) {
+        requestSeek(timeUs, false);
+    }
+
+    /**
+     * 拖动：只显示timeUs之前的关键帧，显示后停住等待下一次请求，直到{@link #seekTo(long)}。可以在任意线程调用
+     */
+    void scrubTo(long timeUs) {
+        requestSeek(timeUs, true);
+    }
+
+    private synchronized void requestSeek(long timeUs, boolean scrub) {
+        //连续的请求只处理最后一次
+        mSeekRequestUs = Math.max(0, timeUs);
+        mScrubRequest = scrub;
+        notifyAll();
+    }
+
+    /**
+     * 设置后片段播放完时获取下一个片段，复用解码器继续播放
+     */
+    void setClipProvider(@Nullable ClipProvider provider) {
+        mClipProvider = provider;
+    }
+
+    /**
+     * 设置播放速度，负数为倒放，可以在任意线程调用。切换方向时从当前位置重新定位
+     */
+    void setSpeed(float speed) {
+        if (speed == 0 || Float.isNaN(speed)) {
+            throw new IllegalArgumentException("invalid speed: " + speed);
+        }
+        synchronized (this) {
+            float oldSpeed = mRequestedSpeed;
+            mRequestedSpeed = speed;
+            if ((oldSpeed > 0) != (speed > 0) && mSeekRequestUs < 0) {
+                //解码器里是另一个方向的帧，需要flush
+                requestSeek(mPositionUs, false);
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * 速度（绝对值）达到多少后只解码关键帧，倒放始终只解码关键帧
+     */
+    void setKeyframeOnlySpeed(float speed) {
+        mKeyframeOnlySpeed = speed;
+    }
+
+    /**
+     * 最近一次渲染的帧的时间戳
+     */
+    long getPositionUs() {
+        return mPositionUs;
+    }
+
+    int getRenderedFrames() {
+        return mRenderedFrames;
+    }
+
+    int getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    private void applySpeed() {
+        float speed = mRequestedSpeed;
+        boolean keyframeOnly = speed < 0 || Math.abs(speed) >= mKeyframeOnlySpeed;
+        if (speed == mSpeed && keyframeOnly == mKeyframeOnly) {
+            return;
+        }
+        Log.i(TAG, "播放速度: " + speed + "x" + (keyframeOnly ? "，只解码关键帧" : ""));
+        mSpeed = speed;
+        //从普通播放切到只解码关键帧时，Extractor在送入下一个样本后再跳到下一个关键帧，解码器不会缺少参考帧
+        mKeyframeOnly = keyframeOnly;
+        //以下一帧重新对齐播放时钟
+        mFirstFrame = true;
+    }
+
+    /**
+     * 当前片段已经输出EOS，复用解码器切换到下一个片段
+     *
+     * @return 没有可以复用解码器的下一个片段时返回false
+     */
+    private boolean switchToNextClip() {
+        ClipProvider provider = mClipProvider;
+        Playlist.Clip clip = provider == null ? null : provider.nextClip();
+        if (clip == null) {
+            return false;
+        }
+        //解码器收到EOS后需要flush才能继续接收输入
+        mDecoder.flush();
+        mExtractor = clip.extractor;
+        synchronized (mIndexLock) {
+            //索引可能已经在nextClip()中建好并设置，不能清除
+            mClip = clip;
+        }
+        mPendingCsd.clear();
+        for (int i = 0; ; i++) {
+            ByteBuffer csd = clip.format.getByteBuffer("csd-" + i);
+            if (csd == null) {
+                break;
+            }
+            mPendingCsd.add(csd);
+        }
+        mInputDone = false;
+        mOutputDone = false;
+        mFeedEnd = false;
+        mSkipUntilUs = -1;
+        mPositionUs = 0;
+        mFirstFrame = true;
+        //接在上一个片段的最后一帧后面显示
+        mClipStartNs = mLastDisplayNs > 0 ? mLastDisplayNs + mFrameIntervalNs : 0;
+        Log.i(TAG, "切换到下一个片段: " + clip.uri);
+        return true;
+    }
+
+    private void handleSeekRequest() {
+        long targetUs;
+        boolean scrub;
+        synchronized (this) {
+            targetUs = mSeekRequestUs;
+            if (targetUs < 0) {
+                return;
+            }
+            scrub = mScrubRequest;
+            mSeekRequestUs = -1;
+        }
+        //flush之后所有输入、输出buffer都失效，持有的帧不能再release
+        TraceUtils.begin("DecodePlayer.seek");
+        mDecoder.flush();
+        mPendingIndex = -1;
+        mPendingEos = false;
+        KeyframeIndex index = getKeyframeIndex();
+        if (index != null) {
+            mExtractor.seekTo(index.keyframeAtOrBefore(targetUs), MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        } else {
+            mExtractor.seekTo(targetUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        }
+        mInputDone = false;
+        mOutputDone = false;
+        mScrubbing = scrub;
+        mFeedEnd = false;
+        mClipStartNs = 0;
+        //拖动时直接显示关键帧；精确跳转时关键帧到目标之间的帧只解码不渲染；倒放从关键帧开始往前
+        mSkipUntilUs = scrub || mSpeed < 0 ? -1 : targetUs;
+        //以跳转后的第一帧重新对齐播放时钟
+        mFirstFrame = true;
+        TraceUtils.end();
+    }
+
+    /**
+     * 等待跳转请求或者stop
+     */
+    private void waitForRequest(long timeoutUs) {
+        synchronized (this) {
+            if (!mStopped && mSeekRequestUs < 0) {
+                try {
+                    wait(Math.max(1, timeoutUs / 1000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    mStopped = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * 把样本读进所有空闲的输入buffer
+     *
+     * @param firstTimeoutUs 第一次取输入buffer时等待的时间，之后不再等待
+     * @return 是否送入了数据
+     */
+    private boolean feedInput(long firstTimeoutUs) {
+        TraceUtils.begin("DecodePlayer.feedInput");
+        try {
+            boolean fed = false;
+            long timeoutUs = firstTimeoutUs;
+            while (!mInputDone) {
+                int index = mDecoder.dequeueInputBuffer(timeoutUs);
+                timeoutUs = 0;
+                if (index < 0) {
+                    break;
+                }
+                ByteBuffer inputBuffer = mDecoder.getInputBuffer(index);
+                if (inputBuffer == null) {
+                    //刚dequeue到的index取不到buffer，解码器的状态已经不对。
+                    //不能当作读到结尾送入EOS，否则会被当成正常播放完成
+                    throw new IllegalStateException("解码器输入buffer为null, index=" + index);
+                }
+                if (!mPendingCsd.isEmpty()) {
+                    //新片段的编码参数可能不同，先送入csd
+                    ByteBuffer csd = mPendingCsd.remove(0).duplicate();
+                    int csdSize = csd.remaining();
+                    inputBuffer.clear();
+                    inputBuffer.put(csd);
+                    mDecoder.queueInputBuffer(index, 0, csdSize, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+                    fed = true;
+                    continue;
+                }
+                int sampleSize;
+                if (mFeedEnd) {
+                    //拖动时只解码一个关键帧，紧接着送入EOS让解码器马上输出
+                    sampleSize = -1;
+                } else {
+                    sampleSize = mExtractor.readSampleData(inputBuffer, 0);
+                }
+                if (sampleSize < 0) {
+                    mDecoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    mInputDone = true;
+                    Log.i(TAG, "送入EOS");
+                } else {
+                    long sampleTimeUs = mExtractor.getSampleTime();
+                    mDecoder.queueInputBuffer(index, 0, sampleSize, sampleTimeUs, 0);
+                    //从送入解码器到送显或者丢弃
+                    TraceUtils.beginAsync("DecodePlayer.frame", sampleTimeUs);
+                    if (mScrubbing) {
+                        mFeedEnd = true;
+                    } else if (mSpeed < 0) {
+                        mFeedEnd = !seekToPreviousKeyframe(sampleTimeUs);
+                    } else if (mKeyframeOnly) {
+                        mFeedEnd = !seekToNextKeyframe(sampleTimeUs);
+                    } else {
+                        mExtractor.advance();
+                    }
+                }
+                fed = true;
+            }
+            return fed;
+        } finally {
+            TraceUtils.end();
+        }
+    }
+
+    /**
+     * Extractor定位到timeUs之后的下一个关键帧
+     *
+     * @return 后面没有关键帧时返回false
+     */
+    private boolean seekToNextKeyframe(long timeUs) {
+        KeyframeIndex index = getKeyframeIndex();
+        if (index != null) {
+            int next = index.indexAtOrBefore(timeUs) + 1;
+            if (next >= index.size() || index.getTimeUs(next) <= timeUs) {
+                return false;
+            }
+            mExtractor.seekTo(index.getTimeUs(next), MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            return true;
+        }
+        mExtractor.seekTo(timeUs + 1, MediaExtractor.SEEK_TO_NEXT_SYNC);
+        //部分Extractor在最后一个关键帧时停在原地而不是返回-1
+        return mExtractor.getSampleTime() > timeUs;
+    }
+
+    /**
+     * Extractor定位到timeUs之前的上一个关键帧
+     *
+     * @return 已经是第一个关键帧时返回false
+     */
+    private boolean seekToPreviousKeyframe(long timeUs) {
+        if (timeUs <= 0) {
+            return false;
+        }
+        KeyframeIndex index = getKeyframeIndex();
+        long previousUs;
+        if (index != null) {
+            previousUs = index.keyframeAtOrBefore(timeUs - 1);
+            if (previousUs >= timeUs) {
+                return false;
+            }
+            mExtractor.seekTo(previousUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        } else {
+            mExtractor.seekTo(timeUs - 1, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            previousUs = mExtractor.getSampleTime();
+        }
+        return previousUs >= 0 && previousUs < timeUs;
+    }
+
+    /**
+     * 持有的帧还没到送显时间：还有输入时等待输入buffer并继续填充，不让解码线程睡眠；输入已经结束时才等待
+     */
+    private void waitForPending(long earlyNs) {
+        long timeoutUs = Math.max(1, Math.min(earlyNs / 1000, WAIT_TIMEOUT_US));
+        if (!mInputDone) {
+            feedInput(timeoutUs);
+            return;
+        }
+        waitForRequest(timeoutUs);
+    }
+
+    /**
+     * 取出解码器已经输出的帧，到了送显时间的送显，迟到的丢弃
+     *
+     * @param firstTimeoutUs 第一次取输出时等待的时间，之后不再等待
+     * @return 持有的帧距离可以送显还有多久，没有持有帧时返回0
+     */
+    private long drainOutput(long firstTimeoutUs) {
+        TraceUtils.begin("DecodePlayer.drainOutput");
+        try {
+            long timeoutUs = firstTimeoutUs;
+            while (!mOutputDone && !mStopped) {
+                synchronized (this) {
+                    if (mSeekRequestUs >= 0) {
+                        //有跳转请求，剩下的帧不需要了
+                        return 0;
+                    }
+                }
+                if (mPendingIndex < 0) {
+                    int index = mDecoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+                    timeoutUs = 0;
+                    if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                        break;
+                    }
+                    if (index < 0) {
+                        //INFO_OUTPUT_FORMAT_CHANGED等
+                        continue;
+                    }
+                    boolean eos = (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                    if (mBufferInfo.size <= 0) {
+                        mDecoder.releaseOutputBuffer(index, false);
+                        mOutputDone = eos;
+                        continue;
+                    }
+                    mPendingIndex = index;
+                    mPendingPtsUs = mBufferInfo.presentationTimeUs;
+                    mPendingEos = eos;
+                }
+                long earlyNs = releasePending();
+                if (earlyNs > 0) {
+                    return earlyNs;
+                }
+            }
+            return 0;
+        } finally {
+            TraceUtils.end();
+        }
+    }
+
+    /**
+     * 送显或丢弃持有的帧，还太早时继续持有
+     *
+     * @return 还需要等待的时间，已经处理掉时返回0
+     */
+    private long releasePending() {
+        if (mPendingPtsUs < mSkipUntilUs) {
+            //跳转时从关键帧解码到目标位置，中间的帧不渲染
+            mDecoder.releaseOutputBuffer(mPendingIndex, false);
+            clearPending();
+            return 0;
+        }
+        long nowNs = System.nanoTime();
+        long releaseNs;
+        if ((mFirstFrame || mScrubbing) && mClipStartNs <= nowNs) {
+            //首帧立即渲染，以首帧的时间戳作为播放时钟的起点，首帧pts不为0时也不需要等待
+            mFirstFrame = false;
+            mClipStartNs = 0;
+            mStartTimeNs = nowNs;
+            mAnchorPtsUs = mPendingPtsUs;
+            releaseNs = nowNs;
+        } else {
+            if (mFirstFrame) {
+                //切换片段，首帧接在上一个片段的最后一帧后面
+                mFirstFrame = false;
+                mStartTimeNs = mClipStartNs;
+                mClipStartNs = 0;
+                mAnchorPtsUs = mPendingPtsUs;
+            }
+            //时间戳的间隔按速度缩放，倒放时时间戳递减
+            long displayNs = mStartTimeNs
+                    + (long) (Math.abs(mPendingPtsUs - mAnchorPtsUs) * 1000L / Math.abs(mSpeed));
+            long lateNs = nowNs - displayNs;
+            if (lateNs > RESYNC_THRESHOLD_NS) {
+                Log.w(TAG, "解码卡顿" + lateNs / 1_000_000 + "ms，重新对齐播放时钟");
+                mStartTimeNs += lateNs;
+                displayNs = nowNs;
+            } else if (lateNs > LATE_THRESHOLD_NS) {
+                //错过了显示时间，显示出来只会让后面的帧也跟着迟到
+                mDecoder.releaseOutputBuffer(mPendingIndex, false);
+                mDroppedFrames++;
+                TraceUtils.counter("DecodePlayer.dropped", mDroppedFrames);
+                clearPending();
+                return 0;
+            }
+            releaseNs = mVsyncTracker != null ? mVsyncTracker.snapToVsync(displayNs) : displayNs;
+            long earlyNs = releaseNs - nowNs;
+            if (earlyNs > MAX_EARLY_NS) {
+                return earlyNs - MAX_EARLY_NS;
+            }
+        }
+        //由SurfaceFlinger在指定的vsync显示，解码线程不需要等待
+        mDecoder.releaseOutputBuffer(mPendingIndex, releaseNs);
+        if (mLastDisplayNs > 0 && releaseNs > mLastDisplayNs
+                && releaseNs - mLastDisplayNs < RESYNC_THRESHOLD_NS) {
+            mFrameIntervalNs = releaseNs - mLastDisplayNs;
+        }
+        mLastDisplayNs = releaseNs;
+        mRenderedFrames++;
+        mPositionUs = mPendingPtsUs;
+        TraceUtils.counter("DecodePlayer.pts", mPendingPtsUs);
+        clearPending();
+        return 0;
+    }
+
+    private void clearPending() {
+        TraceUtils.endAsync("DecodePlayer.frame", mPendingPtsUs);
+        mPendingIndex = -1;
+        if (mPendingEos) {
+            mOutputDone = true;
+        }
+        mPendingEos = false;
+    }
+
+    /**
+     * 提供下一个片段
+     */
+    interface ClipProvider {
+        /**
+         * 当前片段播放完时在播放线程调用
+         *
+         * @return 可以复用当前解码器的下一个片段，返回null时播放结束
+         */
+        @Nullable
+        Playlist.Clip nextClip();
+    }
+}
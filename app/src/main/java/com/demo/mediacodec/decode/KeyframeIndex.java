@@ -0,0 +1,231 @@
+package com.demo.mediacodec.decode;
+
+import android.content.Context;
+import android.media.MediaExtractor;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import androidx.annotation.Nullable;
+
+/**
+ * 视频轨道的关键帧（同步帧）时间索引，每个文件只建立一次，缓存在磁盘上。
+ * <p>
+ * 建立索引时用单独的MediaExtractor按SEEK_TO_NEXT_SYNC从一个关键帧跳到下一个关键帧，
+ * 只访问mp4的stss等样本表，不读取样本数据，耗时和关键帧数量成正比；
+ * 跳转的结果不可靠（时间不递增）时，退回到逐个样本检查SAMPLE_FLAG_SYNC。
+ *
+ * @date : 2026/10/19
+ */
+class KeyframeIndex {
+    private static final String TAG = "KeyframeIndex";
+
+    private static final String CACHE_DIR = "keyframe_index";
+    private static final int CACHE_VERSION = 2;
+
+    //升序排列的关键帧时间戳
+    private final long[] mTimesUs;
+
+    private KeyframeIndex(long[] timesUs) {
+        mTimesUs = timesUs;
+    }
+
+    /**
+     * 从磁盘缓存读取，没有缓存时建立索引并写入缓存。会访问文件，需要在子线程调用
+     *
+     * @param trackIndex     视频轨道
+     * @param fileSize       文件大小
+     * @param lastModifiedMs 文件的修改时间，和uri、文件大小一起区分不同的文件，
+     *                       同一个uri的文件被同样大小的内容覆盖时不会用到旧的索引
+     * @return 建立失败时返回null
+     */
+    @Nullable
+    static KeyframeIndex obtain(Context context, Uri uri, int trackIndex, long fileSize,
+                                long lastModifiedMs) {
+        String key = uri + "|" + trackIndex + "|" + fileSize + "|" + lastModifiedMs;
+        File dir = new File(context.getCacheDir(), CACHE_DIR);
+        File cacheFile = new File(dir, Integer.toHexString(key.hashCode()) + ".idx");
+        long[] timesUs = readCache(cacheFile, key);
+        if (timesUs != null) {
+            Log.i(TAG, "从缓存读取关键帧索引: " + timesUs.length + "个关键帧");
+            return new KeyframeIndex(timesUs);
+        }
+        long start = System.currentTimeMillis();
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(context, uri, null);
+            extractor.selectTrack(trackIndex);
+            timesUs = scanBySeek(extractor);
+            if (timesUs == null) {
+                timesUs = scanBySample(extractor);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "建立关键帧索引失败", e);
+            return null;
+        } finally {
+            extractor.release();
+        }
+        Log.i(TAG, "建立关键帧索引: " + timesUs.length + "个关键帧, 耗时"
+                + (System.currentTimeMillis() - start) + "ms");
+        if (timesUs.length == 0) {
+            return null;
+        }
+        if (dir.exists() || dir.mkdirs()) {
+            writeCache(cacheFile, key, timesUs);
+        }
+        return new KeyframeIndex(timesUs);
+    }
+
+    /**
+     * 按关键帧跳转，时间戳不递增时返回null
+     */
+    @Nullable
+    private static long[] scanBySeek(MediaExtractor extractor) {
+        LongList times = new LongList();
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        long time = extractor.getSampleTime();
+        while (time >= 0) {
+            if ((extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) == 0) {
+                return null;
+            }
+            if (times.size() > 0 && time <= times.get(times.size() - 1)) {
+                return null;
+            }
+            times.add(time);
+            extractor.seekTo(time + 1, MediaExtractor.SEEK_TO_NEXT_SYNC);
+            long next = extractor.getSampleTime();
+            if (next >= 0 && next <= time) {
+                //已经是最后一个关键帧，部分Extractor会停在原地而不是返回-1
+                break;
+            }
+            time = next;
+        }
+        return times.toArray();
+    }
+
+    private static long[] scanBySample(MediaExtractor extractor) {
+        LongList times = new LongList();
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        do {
+            long time = extractor.getSampleTime();
+            if (time < 0) {
+                break;
+            }
+            if ((extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                times.add(time);
+            }
+        } while (extractor.advance());
+        long[] result = times.toArray();
+        Arrays.sort(result);
+        return result;
+    }
+
+    @Nullable
+    private static long[] readCache(File file, String key) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)))) {
+            if (in.readInt() != CACHE_VERSION || !key.equals(in.readUTF())) {
+                return null;
+            }
+            int count = in.readInt();
+            long[] timesUs = new long[count];
+            for (int i = 0; i < count; i++) {
+                timesUs[i] = in.readLong();
+            }
+            return timesUs;
+        } catch (IOException e) {
+            Log.w(TAG, "读取缓存失败: " + file, e);
+            return null;
+        }
+    }
+
+    private static void writeCache(File file, String key, long[] timesUs) {
+        //先写临时文件再重命名，避免进程被杀或者同时建立索引时留下不完整的缓存
+        File tmp = new File(file.getParentFile(), file.getName() + "." + Thread.currentThread().getId()
+                + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)))) {
+            out.writeInt(CACHE_VERSION);
+            out.writeUTF(key);
+            out.writeInt(timesUs.length);
+            for (long time : timesUs) {
+                out.writeLong(time);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "写入缓存失败: " + file, e);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.w(TAG, "写入缓存失败: " + file);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+
+    int size() {
+        return mTimesUs.length;
+    }
+
+    long getTimeUs(int index) {
+        return mTimesUs[index];
+    }
+
+    /**
+     * 不晚于timeUs的最后一个关键帧的序号，timeUs早于第一个关键帧时返回0
+     */
+    int indexAtOrBefore(long timeUs) {
+        int index = Arrays.binarySearch(mTimesUs, timeUs);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return Math.max(0, index);
+    }
+
+    /**
+     * 不晚于timeUs的最后一个关键帧的时间
+     */
+    long keyframeAtOrBefore(long timeUs) {
+        return mTimesUs[indexAtOrBefore(timeUs)];
+    }
+
+    /**
+     * 不需要装箱的long列表
+     */
+    private static class LongList {
+        private long[] mValues = new long[256];
+        private int mSize;
+
+        void add(long value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+        }
+
+        long get(int index) {
+            return mValues[index];
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(mValues, mSize);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.demo.mediacodec.decode;
+
+import android.content.Context;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import androidx.annotation.Nullable;
+
+/**
+ * 播放列表，按顺序打开片段，可以循环。
+ * <p>
+ * 打开文件、解析容器需要时间，当前片段开始播放后调用{@link #prefetch()}在子线程提前打开下一个片段，
+ * 切换时直接拿到已经选好视频轨道的Extractor。
+ *
+ * @date : 2026/10/19
+ */
+class Playlist {
+    private static final String TAG = "Playlist";
+
+    private final Context mContext;
+    private final List<Uri> mUris;
+    private final boolean mLoop;
+    //下一个要打开的片段
+    private int mNextIndex;
+    private FutureTask<Clip> mPrefetchTask;
+    private boolean mReleased;
+
+    Playlist(Context context, List<Uri> uris, boolean loop) {
+        mContext = context.getApplicationContext();
+        mUris = new ArrayList<>(uris);
+        mLoop = loop;
+    }
+
+    int size() {
+        return mUris.size();
+    }
+
+    /**
+     * 取出下一个片段，已经预先打开时直接返回，否则同步打开
+     *
+     * @return 播放列表结束时返回null
+     */
+    @Nullable
+    Clip next() throws IOException {
+        FutureTask<Clip> task;
+        Uri uri = null;
+        synchronized (this) {
+            task = mPrefetchTask;
+            mPrefetchTask = null;
+            if (task == null) {
+                uri = nextUri();
+            }
+        }
+        if (task == null) {
+            return uri == null ? null : Clip.open(mContext, uri);
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * 在子线程提前打开下一个片段
+     */
+    synchronized void prefetch() {
+        if (mReleased || mPrefetchTask != null) {
+            return;
+        }
+        Uri uri = nextUri();
+        if (uri == null) {
+            return;
+        }
+        FutureTask<Clip> task = new FutureTask<>(new Callable<Clip>() {
+            @Override
+            public Clip call() throws Exception {
+                return Clip.open(mContext, uri);
+            }
+        });
+        mPrefetchTask = task;
+        new Thread(task, "PlaylistPrefetch").start();
+    }
+
+    /**
+     * 释放预先打开的片段，已经取出的片段由使用者释放
+     */
+    void release() {
+        FutureTask<Clip> task;
+        synchronized (this) {
+            mReleased = true;
+            task = mPrefetchTask;
+            mPrefetchTask = null;
+        }
+        if (task == null) {
+            return;
+        }
+        try {
+            task.get().release();
+        } catch (Exception ignore) {
+        }
+    }
+
+    @Nullable
+    private Uri nextUri() {
+        if (mNextIndex >= mUris.size()) {
+            if (!mLoop || mUris.isEmpty()) {
+                return null;
+            }
+            mNextIndex = 0;
+        }
+        return mUris.get(mNextIndex++);
+    }
+
+    /**
+     * 一个已经选中视频轨道的片段
+     */
+    static class Clip {
+        final Uri uri;
+        final MediaExtractor extractor;
+        final MediaFormat format;
+        final int trackIndex;
+        final long fileSize;
+        //文件的修改时间（毫秒），获取失败时为0
+        final long lastModifiedMs;
+        private final ParcelFileDescriptor mPfd;
+
+        private Clip(Uri uri, ParcelFileDescriptor pfd, MediaExtractor extractor, MediaFormat format,
+                     int trackIndex) {
+            this.uri = uri;
+            this.extractor = extractor;
+            this.format = format;
+            this.trackIndex = trackIndex;
+            this.fileSize = pfd.getStatSize();
+            this.lastModifiedMs = getLastModifiedMs(pfd);
+            mPfd = pfd;
+        }
+
+        private static long getLastModifiedMs(ParcelFileDescriptor pfd) {
+            try {
+                return Os.fstat(pfd.getFileDescriptor()).st_mtime * 1000;
+            } catch (ErrnoException e) {
+                Log.w(TAG, "获取文件修改时间失败", e);
+                return 0;
+            }
+        }
+
+        static Clip open(Context context, Uri uri) throws IOException {
+            ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+            if (pfd == null) {
+                throw new IOException("打开文件失败: " + uri);
+            }
+            MediaExtractor extractor = new MediaExtractor();
+            try {
+                extractor.setDataSource(pfd.getFileDescriptor());
+                int trackCount = extractor.getTrackCount();
+                for (int i = 0; i < trackCount; i++) {
+                    MediaFormat format = extractor.getTrackFormat(i);
+                    String mime = format.getString(MediaFormat.KEY_MIME);
+                    if (!TextUtils.isEmpty(mime) && mime.startsWith("video")) {
+                        //选中该视频轨道，后面读取轨道数据，就是读取的该轨道的
+                        extractor.selectTrack(i);
+                        return new Clip(uri, pfd, extractor, format, i);
+                    }
+                }
+                throw new IOException("没有找到视频轨道: " + uri);
+            } catch (IOException | RuntimeException e) {
+                extractor.release();
+                try {
+                    pfd.close();
+                } catch (IOException ignore) {
+                }
+                throw e;
+            }
+        }
+
+        void release() {
+            extractor.release();
+            try {
+                mPfd.close();
+            } catch (IOException e) {
+                Log.w(TAG, "release: ", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.demo.mediacodec.decode;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Choreographer;
+
+/**
+ * 在单独的线程上通过Choreographer跟踪屏幕vsync的时间点，用于把帧的送显时间对齐到vsync。
+ * <p>
+ * vsync周期由屏幕刷新率决定，这里只记录最近一次vsync的时间（相位），
+ * 和System.nanoTime是同一时钟，可以直接用于MediaCodec.releaseOutputBuffer(index, renderTimestampNs)。
+ *
+ * @date : 2026/10/19
+ */
+class VsyncTracker implements Choreographer.FrameCallback {
+
+    //送显时间提前于目标vsync的比例，给SurfaceFlinger合成留出时间
+    private static final long RELEASE_OFFSET_PERCENT = 80;
+
+    private final long mPeriodNs;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private Choreographer mChoreographer;
+    private volatile long mLastVsyncNs;
+
+    /**
+     * @param refreshRate 屏幕刷新率，无效时按60Hz处理
+     */
+    VsyncTracker(float refreshRate) {
+        mPeriodNs = (long) (1_000_000_000L / (refreshRate >= 10 ? refreshRate : 60f));
+    }
+
+    void start() {
+        mThread = new HandlerThread("VsyncTracker");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                //Choreographer和线程的Looper绑定
+                mChoreographer = Choreographer.getInstance();
+                mChoreographer.postFrameCallback(VsyncTracker.this);
+            }
+        });
+    }
+
+    void stop() {
+        if (mHandler == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mChoreographer != null) {
+                    mChoreographer.removeFrameCallback(VsyncTracker.this);
+                }
+            }
+        });
+        mThread.quitSafely();
+        mHandler = null;
+        mThread = null;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mLastVsyncNs = frameTimeNanos;
+        mChoreographer.postFrameCallback(this);
+    }
+
+    /**
+     * 把期望的显示时间对齐到最近的vsync，返回给releaseOutputBuffer的送显时间
+     */
+    long snapToVsync(long displayTimeNs) {
+        long lastVsyncNs = mLastVsyncNs;
+        if (lastVsyncNs == 0) {
+            //还没有收到vsync
+            return displayTimeNs;
+        }
+        long periods = Math.round((displayTimeNs - lastVsyncNs) / (double) mPeriodNs);
+        long vsyncNs = lastVsyncNs + periods * mPeriodNs;
+        return vsyncNs - mPeriodNs * RELEASE_OFFSET_PERCENT / 100;
+    }
+}
@@ -0,0 +1,112 @@
+package com.demo.mediacodec.transcode;
+
+/**
+ * 恒定帧率（CFR）输出的时间戳调度。
+ * <p>
+ * 输出时间戳固定落在 origin + k / fps 的网格上（origin为第一帧的pts），
+ * 每个网格点取pts距离它最近的解码帧：即一帧负责 [与上一帧的中点, 与下一帧的中点) 之间的网格点。
+ * 一帧覆盖多个网格点时重复输出，一个网格点都没覆盖到时被丢弃。
+ * <p>
+ * 使用方式：解码出新的一帧（还没有渲染）时，先循环{@link #pollSlot(long)}，
+ * 用当前已经锁定到纹理上的帧填满这些网格点，然后再渲染新的帧并调用{@link #onFrameLatched(long)}；
+ * 解码结束时循环{@link #pollSlotAtEnd()}把最后一帧输出完。
+ *
+ * @date : 2026/10/19
+ */
+class ConstantFrameRateScheduler {
+
+    private final int mFps;
+
+    private long mOriginUs = -1;
+    //下一个待输出的网格序号
+    private long mNextSlot;
+
+    //当前锁定到纹理上的帧
+    private long mLatchedPtsUs = -1;
+    private long mLastFrameDeltaUs;
+    private int mLatchedOutputCount;
+
+    private int mDuplicatedFrames;
+    private int mDroppedFrames;
+
+    ConstantFrameRateScheduler(int fps) {
+        if (fps <= 0) {
+            throw new IllegalArgumentException("fps must be > 0: " + fps);
+        }
+        mFps = fps;
+    }
+
+    int getFps() {
+        return mFps;
+    }
+
+    /**
+     * 每帧的时长
+     */
+    long getFrameDurationUs() {
+        return 1_000_000L / mFps;
+    }
+
+    /**
+     * 下一帧（pts为nextFramePtsUs）到来之前，当前锁定的帧还需要输出的网格时间
+     *
+     * @return 网格时间，没有需要输出的返回-1
+     */
+    long pollSlot(long nextFramePtsUs) {
+        if (mLatchedPtsUs < 0) {
+            return -1;
+        }
+        return poll(mLatchedPtsUs + (nextFramePtsUs - mLatchedPtsUs) / 2);
+    }
+
+    /**
+     * 解码结束之后，最后一帧还需要输出的网格时间。最后一帧的时长按它和上一帧的间隔估算
+     *
+     * @return 网格时间，没有需要输出的返回-1
+     */
+    long pollSlotAtEnd() {
+        if (mLatchedPtsUs < 0) {
+            return -1;
+        }
+        long delta = mLastFrameDeltaUs > 0 ? mLastFrameDeltaUs : getFrameDurationUs();
+        return poll(mLatchedPtsUs + delta / 2);
+    }
+
+    /**
+     * 新的一帧已经锁定到纹理上
+     */
+    void onFrameLatched(long ptsUs) {
+        if (mOriginUs < 0) {
+            mOriginUs = ptsUs;
+        }
+        if (mLatchedPtsUs >= 0) {
+            if (mLatchedOutputCount == 0) {
+                mDroppedFrames++;
+            }
+            mLastFrameDeltaUs = ptsUs - mLatchedPtsUs;
+        }
+        mLatchedPtsUs = ptsUs;
+        mLatchedOutputCount = 0;
+    }
+
+    int getDuplicatedFrames() {
+        return mDuplicatedFrames;
+    }
+
+    int getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    private long poll(long boundaryUs) {
+        //按序号计算网格时间，避免累加造成误差
+        long slotUs = mOriginUs + mNextSlot * 1_000_000L / mFps;
+        if (slotUs >= boundaryUs) {
+            return -1;
+        }
+        mNextSlot++;
+        if (++mLatchedOutputCount > 1) {
+            mDuplicatedFrames++;
+        }
+        return slotUs;
+    }
+}
@@ -0,0 +1,431 @@
+package com.demo.mediacodec.transcode;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import com.demo.mediacodec.MediaCodecUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 探测编码器是否能正常输出B帧。
+ * <p>
+ * 有些编码器设置了KEY_MAX_B_FRAMES之后configure失败，或者输出的时间戳错乱，所以不能直接开启。
+ * 这里用一段很短的合成画面（320x240，移动的色块）实际编码一次（AVC使用High Profile），检查：
+ * 输出的帧数和时间戳与输入一致、第一帧是关键帧、确实出现了B帧带来的乱序并且乱序深度合理。
+ * 结果按编码器名称、mime保存在SharedPreferences中，系统升级（Build.FINGERPRINT变化）后重新探测。
+ * <p>
+ * 探测需要实际编码两次，只在后台线程进行，不阻塞转码的准备；还没有结果时按不支持处理。
+ * 探测中途出错（例如和正在使用的编解码器争抢资源）时不保存结果，下次再探测。
+ *
+ * @date : 2026/10/19
+ */
+public class EncoderProbe {
+    private static final String TAG = "EncoderProbe";
+
+    private static final String PREFS_NAME = "encoder_probe";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+
+    public static final int B_FRAMES_UNSUPPORTED = 0;
+    /**
+     * 只设置KEY_MAX_B_FRAMES即可
+     */
+    public static final int B_FRAMES_SUPPORTED = 1;
+    /**
+     * 需要同时设置KEY_LATENCY
+     */
+    public static final int B_FRAMES_WITH_LATENCY = 2;
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int FPS = 30;
+    private static final int FRAME_COUNT = 30;
+    private static final int MAX_REORDER_DEPTH = 3;
+    private static final long TIMEOUT_US = 10_000;
+    private static final long DRAIN_TIMEOUT_MS = 3000;
+
+    //H.264附录A表A-1：Level、每秒最大宏块数、每帧最大宏块数、最大码率（kbps，Baseline/Main，High为1.25倍）
+    private static final int[] AVC_LEVELS = {
+            MediaCodecInfo.CodecProfileLevel.AVCLevel1,
+            MediaCodecInfo.CodecProfileLevel.AVCLevel11,
+            MediaCodecInfo.CodecProfileLevel.AVCLevel12,
+            MediaCodecInfo.CodecProfileLevel.AVCLevel13,
+            MediaCodecInfo.CodecProfileLevel.AVCLevel2,
+            MediaCodecInfo.CodecProfileLevel.AVCLevel21,
+            MediaCodecInfo.CodecProfileLevel.AVCLevel22,
+            MediaCodecInfo.CodecProfileLevel.AVCLevel3,
+            MediaCodecInfo.CodecProfileLevel.AVCLevel31,
+            MediaCodecInfo.CodecProfileLevel.AVCLevel32,
+            MediaCodecInfo.CodecProfileLevel.AVCLevel4,
+            MediaCodecInfo.CodecProfileLevel.AVCLevel41,
+            MediaCodecInfo.CodecProfileLevel.AVCLevel42,
+            MediaCodecInfo.CodecProfileLevel.AVCLevel5,
+            MediaCodecInfo.CodecProfileLevel.AVCLevel51,
+            MediaCodecInfo.CodecProfileLevel.AVCLevel52,
+    };
+    private static final int[] AVC_MAX_MBPS = {1485, 3000, 6000, 11880, 11880, 19800, 20250, 40500,
+            108000, 216000, 245760, 245760, 522240, 589824, 983040, 2073600};
+    private static final int[] AVC_MAX_FS = {99, 396, 396, 396, 396, 792, 1620, 1620, 3600, 5120,
+            8192, 8192, 8704, 22080, 36864, 36864};
+    private static final int[] AVC_MAX_BR_KBPS = {64, 192, 384, 768, 2000, 4000, 4000, 10000, 14000,
+            20000, 20000, 50000, 50000, 135000, 240000, 240000};
+
+    //probe的结果
+    private static final int PROBE_PASSED = 0;
+    private static final int PROBE_FAILED = 1;
+    //探测没有完成，不能说明编码器不支持
+    private static final int PROBE_INCONCLUSIVE = 2;
+
+    //正在后台探测的key，guarded by sProbing
+    private static final Set<String> sProbing = new HashSet<>();
+    //同一时间只进行一个探测，避免多个探测的编码器互相争抢资源
+    private static final Object sProbeLock = new Object();
+
+    /**
+     * 获取编码器的B帧支持情况，只读取已经保存的结果，不会阻塞。
+     * 没有探测过时在后台开始探测，这次返回{@link #B_FRAMES_UNSUPPORTED}
+     *
+     * @return {@link #B_FRAMES_UNSUPPORTED}、{@link #B_FRAMES_SUPPORTED}、{@link #B_FRAMES_WITH_LATENCY}
+     */
+    public static int getBFrameSupport(Context context, String codecName, String mime) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            //KEY_MAX_B_FRAMES是Q才开放的
+            return B_FRAMES_UNSUPPORTED;
+        }
+        SharedPreferences sp = getPrefs(context);
+        String key = keyOf(codecName, mime);
+        if (sp.contains(key)) {
+            return sp.getInt(key, B_FRAMES_UNSUPPORTED);
+        }
+        probeAsync(context, codecName, mime);
+        return B_FRAMES_UNSUPPORTED;
+    }
+
+    /**
+     * 在后台探测系统默认的AVC、HEVC编码器，进入转码界面时调用，让第一次转码就能用上探测结果
+     */
+    public static void probeDefaultEncodersAsync(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return;
+        }
+        Context appContext = context.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (String mime : Arrays.asList(MediaFormat.MIMETYPE_VIDEO_AVC,
+                        MediaFormat.MIMETYPE_VIDEO_HEVC)) {
+                    String codecName = MediaCodecUtils.findEncoderByFormat(
+                            MediaFormat.createVideoFormat(mime, WIDTH, HEIGHT));
+                    if (codecName != null) {
+                        probeAsync(appContext, codecName, mime);
+                    }
+                }
+            }
+        }, "EncoderProbe").start();
+    }
+
+    /**
+     * 在后台探测，已经有结果或者正在探测时忽略
+     */
+    public static void probeAsync(Context context, String codecName, String mime) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return;
+        }
+        Context appContext = context.getApplicationContext();
+        String key = keyOf(codecName, mime);
+        synchronized (sProbing) {
+            if (!sProbing.add(key)) {
+                return;
+            }
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (sProbeLock) {
+                        SharedPreferences sp = getPrefs(appContext);
+                        if (!sp.contains(key)) {
+                            probeAndSave(sp, key, codecName, mime);
+                        }
+                    }
+                } finally {
+                    synchronized (sProbing) {
+                        sProbing.remove(key);
+                    }
+                }
+            }
+        }, "EncoderProbe").start();
+    }
+
+    private static void probeAndSave(SharedPreferences sp, String key, String codecName, String mime) {
+        int result;
+        int probe = probe(codecName, mime, false);
+        if (probe == PROBE_PASSED) {
+            result = B_FRAMES_SUPPORTED;
+        } else if (probe == PROBE_FAILED) {
+            probe = probe(codecName, mime, true);
+            result = probe == PROBE_PASSED ? B_FRAMES_WITH_LATENCY : B_FRAMES_UNSUPPORTED;
+        } else {
+            result = B_FRAMES_UNSUPPORTED;
+        }
+        if (probe == PROBE_INCONCLUSIVE) {
+            Log.i(TAG, "B帧探测没有完成，不保存结果: " + codecName + "(" + mime + ")");
+            return;
+        }
+        Log.i(TAG, "B帧探测结果: " + codecName + "(" + mime + ") -> " + result);
+        sp.edit().putInt(key, result).apply();
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        SharedPreferences sp = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        synchronized (sProbing) {
+            if (!Build.FINGERPRINT.equals(sp.getString(KEY_FINGERPRINT, null))) {
+                //系统升级后编码器的行为可能变化，清除所有结果
+                sp.edit().clear().putString(KEY_FINGERPRINT, Build.FINGERPRINT).apply();
+            }
+        }
+        return sp;
+    }
+
+    private static String keyOf(String codecName, String mime) {
+        //v2：AVC开始使用High Profile探测，之前保存的结果作废
+        return "bframes|v2|" + codecName + "|" + mime;
+    }
+
+    /**
+     * 把B帧相关的参数设置到输出格式中，格式中需要有mime、宽高、帧率
+     */
+    public static void applyBFrames(MediaFormat format, int support) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || support == B_FRAMES_UNSUPPORTED) {
+            return;
+        }
+        format.setInteger(MediaFormat.KEY_MAX_B_FRAMES, 1);
+        if (support == B_FRAMES_WITH_LATENCY) {
+            format.setInteger(MediaFormat.KEY_LATENCY, 2);
+        }
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(format.getString(MediaFormat.KEY_MIME))) {
+            applyAvcProfile(format);
+        }
+    }
+
+    /**
+     * AVC的Baseline、Constrained Baseline不支持B帧，很多编码器不指定Profile时默认使用它们，
+     * 这时设置KEY_MAX_B_FRAMES也不会输出B帧，需要指定High及对应的Level
+     */
+    private static void applyAvcProfile(MediaFormat format) {
+        int profile = format.containsKey(MediaFormat.KEY_PROFILE)
+                ? format.getInteger(MediaFormat.KEY_PROFILE) : 0;
+        if (profile != 0 && profile != MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline
+                && profile != MediaCodecInfo.CodecProfileLevel.AVCProfileConstrainedBaseline) {
+            //Main、High等已经支持B帧
+            return;
+        }
+        format.setInteger(MediaFormat.KEY_PROFILE, MediaCodecInfo.CodecProfileLevel.AVCProfileHigh);
+        int bitrate = format.containsKey(MediaFormat.KEY_BIT_RATE)
+                ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+        format.setInteger(MediaFormat.KEY_LEVEL, avcHighLevelFor(
+                format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT),
+                getFrameRate(format), bitrate));
+    }
+
+    /**
+     * High Profile下能容纳这个分辨率、帧率、码率的最低Level，超出表格时返回最高的5.2
+     *
+     * @param bitrate 码率（bps），不确定时传0，只按分辨率和帧率计算
+     */
+    static int avcHighLevelFor(int width, int height, int fps, int bitrate) {
+        long frameMbs = (long) ((width + 15) / 16) * ((height + 15) / 16);
+        long mbps = frameMbs * Math.max(1, fps);
+        for (int i = 0; i < AVC_LEVELS.length; i++) {
+            if (frameMbs <= AVC_MAX_FS[i] && mbps <= AVC_MAX_MBPS[i]
+                    && bitrate <= AVC_MAX_BR_KBPS[i] * 1250L) {
+                return AVC_LEVELS[i];
+            }
+        }
+        return AVC_LEVELS[AVC_LEVELS.length - 1];
+    }
+
+    private static int getFrameRate(MediaFormat format) {
+        if (!format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+            return 30;
+        }
+        try {
+            return format.getInteger(MediaFormat.KEY_FRAME_RATE);
+        } catch (ClassCastException e) {
+            return Math.round(format.getFloat(MediaFormat.KEY_FRAME_RATE));
+        }
+    }
+
+    /**
+     * 实际编码一次
+     *
+     * @return configure被拒绝或者输出不符合要求时返回{@link #PROBE_FAILED}，
+     * 其他原因（创建编码器、EGL环境失败，资源不足等）没有完成时返回{@link #PROBE_INCONCLUSIVE}
+     */
+    private static int probe(String codecName, String mime, boolean withLatency) {
+        MediaCodec encoder = null;
+        InputSurface inputSurface = null;
+        try {
+            MediaFormat format = MediaFormat.createVideoFormat(mime, WIDTH, HEIGHT);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, 500_000);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, FPS);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+            applyBFrames(format, withLatency ? B_FRAMES_WITH_LATENCY : B_FRAMES_SUPPORTED);
+
+            encoder = MediaCodec.createByCodecName(codecName);
+            try {
+                encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            } catch (MediaCodec.CodecException e) {
+                if (e.isTransient() || e.isRecoverable()) {
+                    //资源不足等，稍后可能成功
+                    throw e;
+                }
+                Log.w(TAG, "probe: configure失败: " + codecName + ", withLatency: " + withLatency, e);
+                return PROBE_FAILED;
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "probe: 参数不被接受: " + codecName + ", withLatency: " + withLatency, e);
+                return PROBE_FAILED;
+            }
+            Surface surface = encoder.createInputSurface();
+            inputSurface = new InputSurface(surface,
+                    new VideoOutputConfig(MediaCodecUtils.OutputLevel.NO_HDR));
+            inputSurface.makeCurrent();
+            encoder.start();
+
+            List<Long> outputPts = new ArrayList<>();
+            boolean[] firstIsKeyFrame = new boolean[1];
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                drawFrame(i);
+                inputSurface.setPresentationTime(ptsOf(i) * 1000);
+                inputSurface.swapBuffers();
+                drain(encoder, info, outputPts, firstIsKeyFrame, false);
+            }
+            encoder.signalEndOfInputStream();
+            if (!drain(encoder, info, outputPts, firstIsKeyFrame, true)) {
+                //超时没有输出完，可能是设备繁忙，不能说明不支持
+                Log.w(TAG, "probe: 等待输出超时: " + codecName + ", withLatency: " + withLatency);
+                return PROBE_INCONCLUSIVE;
+            }
+            return validate(outputPts, firstIsKeyFrame[0]) ? PROBE_PASSED : PROBE_FAILED;
+        } catch (Exception e) {
+            Log.w(TAG, "probe failed: " + codecName + ", withLatency: " + withLatency, e);
+            return PROBE_INCONCLUSIVE;
+        } finally {
+            if (encoder != null) {
+                try {
+                    encoder.stop();
+                } catch (Exception ignore) {
+                }
+                encoder.release();
+            }
+            if (inputSurface != null) {
+                inputSurface.release();
+            }
+        }
+    }
+
+    private static long ptsOf(int frame) {
+        return frame * 1_000_000L / FPS;
+    }
+
+    /**
+     * 合成画面：背景颜色渐变，加一个移动的色块，保证帧间有运动，编码器才会使用B帧
+     */
+    private static void drawFrame(int frame) {
+        float t = frame * 1f / FRAME_COUNT;
+        GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+        GLES20.glClearColor(t, 0.3f, 1f - t, 1f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        int boxSize = HEIGHT / 4;
+        int x = (WIDTH - boxSize) * frame / FRAME_COUNT;
+        int y = (HEIGHT - boxSize) * ((frame * 7) % FRAME_COUNT) / FRAME_COUNT;
+        GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+        GLES20.glScissor(x, y, boxSize, boxSize);
+        GLES20.glClearColor(1f, 1f - t, 0f, 1f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+    }
+
+    /**
+     * @return 是否输出了EOS
+     */
+    private static boolean drain(MediaCodec encoder, MediaCodec.BufferInfo info, List<Long> outputPts,
+                                 boolean[] firstIsKeyFrame, boolean untilEos) {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        while (true) {
+            int index = encoder.dequeueOutputBuffer(info, TIMEOUT_US);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!untilEos || System.currentTimeMillis() > deadline) {
+                    return false;
+                }
+                continue;
+            }
+            if (index < 0) {
+                //INFO_OUTPUT_FORMAT_CHANGED等
+                continue;
+            }
+            boolean eos = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                if (outputPts.isEmpty()) {
+                    firstIsKeyFrame[0] = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+                }
+                outputPts.add(info.presentationTimeUs);
+            }
+            encoder.releaseOutputBuffer(index, false);
+            if (eos) {
+                return true;
+            }
+        }
+    }
+
+    private static boolean validate(List<Long> outputPts, boolean firstIsKeyFrame) {
+        if (!firstIsKeyFrame || outputPts.size() != FRAME_COUNT) {
+            Log.w(TAG, "validate: 输出帧数" + outputPts.size() + ", 首帧关键帧: " + firstIsKeyFrame);
+            return false;
+        }
+        //输出的时间戳必须正好是输入时间戳的一个排列
+        Set<Long> expected = new HashSet<>();
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            expected.add(ptsOf(i));
+        }
+        if (!expected.equals(new HashSet<>(outputPts))) {
+            Log.w(TAG, "validate: 输出时间戳和输入不一致 " + outputPts);
+            return false;
+        }
+        //乱序深度：某一帧之前输出的、显示时间比它晚的帧数
+        int maxDepth = 0;
+        for (int i = 0; i < outputPts.size(); i++) {
+            int depth = 0;
+            for (int j = 0; j < i; j++) {
+                if (outputPts.get(j) > outputPts.get(i)) {
+                    depth++;
+                }
+            }
+            maxDepth = Math.max(maxDepth, depth);
+        }
+        if (maxDepth == 0) {
+            //编码器接受了参数，但实际没有输出B帧，开启也没有收益
+            Log.w(TAG, "validate: 没有输出B帧");
+            return false;
+        }
+        if (maxDepth > MAX_REORDER_DEPTH) {
+            Log.w(TAG, "validate: 乱序深度异常 " + maxDepth);
+            return false;
+        }
+        return true;
+    }
+}
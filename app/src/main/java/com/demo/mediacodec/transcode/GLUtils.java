@@ -48,6 +48,70 @@ public class GLUtils {
             "void main() {                                                      \n" +
             "  gl_FragColor = texture2D(sTexture, vTextureCoord);               \n" +
             "}                                                                  \n";
+    /**
+     * 根据需要的画面处理生成RGBA片元着色器，所有处理都在一次绘制中完成
+     *
+     * @param colorMatrix  是否应用颜色矩阵（uColorMatrix、uColorOffset）
+     * @param overlayCount 叠加图层的数量，每个图层只多一次纹理采样
+     *                     （sOverlayN、uOverlayRectN、uOverlayUvN、uOverlayAlphaN，以及uViewSize）
+     */
+    public static String buildRgbaFragmentShader(boolean colorMatrix, int overlayCount) {
+        if (!colorMatrix && overlayCount <= 0) {
+            return RGBA_FRAGMENT_SHADER;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("#extension GL_OES_EGL_image_external : require\n");
+        if (overlayCount > 0) {
+            //gl_FragCoord换算成归一化坐标时，mediump在4K画面上误差有好几个像素
+            sb.append("#ifdef GL_FRAGMENT_PRECISION_HIGH\n")
+                    .append("#define OVERLAY_PRECISION highp\n")
+                    .append("#else\n")
+                    .append("#define OVERLAY_PRECISION mediump\n")
+                    .append("#endif\n");
+        }
+        sb.append("precision mediump float;\n")
+                .append("varying vec2 vTextureCoord;\n")
+                .append("uniform samplerExternalOES sTexture;\n");
+        if (colorMatrix) {
+            sb.append("uniform mat4 uColorMatrix;\n")
+                    .append("uniform vec4 uColorOffset;\n");
+        }
+        if (overlayCount > 0) {
+            sb.append("uniform OVERLAY_PRECISION vec2 uViewSize;\n");
+        }
+        for (int i = 0; i < overlayCount; i++) {
+            //uOverlayRect：图层在输出画面中的位置（左下角为原点的归一化坐标，x、y、w、h）
+            //uOverlayUv：图层在纹理中的区域（u、v、宽、高），精灵图通过它切换帧
+            sb.append("uniform sampler2D sOverlay").append(i).append(";\n")
+                    .append("uniform OVERLAY_PRECISION vec4 uOverlayRect").append(i).append(";\n")
+                    .append("uniform vec4 uOverlayUv").append(i).append(";\n")
+                    .append("uniform float uOverlayAlpha").append(i).append(";\n");
+        }
+        sb.append("void main() {\n")
+                .append("  vec4 color = texture2D(sTexture, vTextureCoord);\n");
+        if (colorMatrix) {
+            sb.append("  color = clamp(uColorMatrix * color + uColorOffset, 0.0, 1.0);\n");
+        }
+        if (overlayCount > 0) {
+            sb.append("  OVERLAY_PRECISION vec2 pos = gl_FragCoord.xy / uViewSize;\n")
+                    .append("  OVERLAY_PRECISION vec2 p;\n")
+                    .append("  vec4 o;\n")
+                    .append("  float inside;\n");
+        }
+        for (int i = 0; i < overlayCount; i++) {
+            //Bitmap上传后第一行在t=0处，所以y方向要翻转；Bitmap是预乘alpha的
+            sb.append("  p = (pos - uOverlayRect").append(i).append(".xy) / uOverlayRect")
+                    .append(i).append(".zw;\n")
+                    .append("  inside = step(0.0, p.x) * step(p.x, 1.0) * step(0.0, p.y) * step(p.y, 1.0);\n")
+                    .append("  o = texture2D(sOverlay").append(i).append(", uOverlayUv").append(i)
+                    .append(".xy + vec2(p.x, 1.0 - p.y) * uOverlayUv").append(i).append(".zw);\n")
+                    .append("  o *= uOverlayAlpha").append(i).append(" * inside;\n")
+                    .append("  color.rgb = o.rgb + color.rgb * (1.0 - o.a);\n");
+        }
+        sb.append("  gl_FragColor = color;\n")
+                .append("}\n");
+        return sb.toString();
+    }
     //endregion
 
     //region yuvp10 glsl
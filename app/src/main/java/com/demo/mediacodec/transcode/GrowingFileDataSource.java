@@ -0,0 +1,166 @@
+package com.demo.mediacodec.transcode;
+
+import android.media.MediaDataSource;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * 读取一个还在写入中的文件（例如正在上传、下载的视频），用于边写边转码。
+ * <p>
+ * readAt读到还没写入的位置时会阻塞等待，直到文件长度增长到需要的位置，或者到达声明的最终长度。
+ * 注意：源文件必须是moov在前（fast-start）或者分段（fragmented）的MP4，
+ * 否则MediaExtractor在解析时就要读到文件末尾的moov，效果上还是要等文件写完才能开始转码。
+ *
+ * @date : 2026/10/19
+ */
+public class GrowingFileDataSource extends MediaDataSource {
+    private static final long POLL_INTERVAL_MS = 20;
+    /**
+     * 文件超过这个时间没有增长，认为写入方已经异常中断
+     */
+    public static final long DEFAULT_STALL_TIMEOUT_MS = 30_000;
+
+    private final File mFile;
+    private final long mFinalLength;
+    private final long mStallTimeoutMs;
+
+    private RandomAccessFile mRaf;
+    private volatile boolean mClosed;
+
+    //最近一次观察到文件增长的时间及长度
+    private long mLastGrowTimeMs;
+    private long mLastLength = -1;
+
+    /**
+     * @param file        正在写入的文件
+     * @param finalLength 文件写完之后的最终长度（一般由上传、下载协议提前告知）
+     */
+    public GrowingFileDataSource(File file, long finalLength) {
+        this(file, finalLength, DEFAULT_STALL_TIMEOUT_MS);
+    }
+
+    public GrowingFileDataSource(File file, long finalLength, long stallTimeoutMs) {
+        mFile = file;
+        mFinalLength = finalLength;
+        mStallTimeoutMs = stallTimeoutMs;
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (position >= mFinalLength) {
+            return -1;
+        }
+        size = (int) Math.min(size, mFinalLength - position);
+        if (size <= 0) {
+            return 0;
+        }
+        awaitAvailable(position + size);
+        RandomAccessFile raf = openIfNeeded();
+        raf.seek(position);
+        int total = 0;
+        while (total < size) {
+            int read = raf.read(buffer, offset + total, size - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total > 0 ? total : -1;
+    }
+
+    @Override
+    public long getSize() {
+        return mFinalLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        synchronized (this) {
+            if (mRaf != null) {
+                mRaf.close();
+                mRaf = null;
+            }
+        }
+    }
+
+    /**
+     * 检查文件顶层box的顺序，moov（或者分段的moof）在mdat之前才能做到边写边转码。
+     * 该方法也会阻塞等待文件头部写入。
+     */
+    public boolean isStreamable() throws IOException {
+        byte[] header = new byte[16];
+        long position = 0;
+        while (position + 8 <= mFinalLength) {
+            if (readAt(position, header, 0, 8) < 8) {
+                return false;
+            }
+            long boxSize = ((header[0] & 0xffL) << 24) | ((header[1] & 0xffL) << 16)
+                    | ((header[2] & 0xffL) << 8) | (header[3] & 0xffL);
+            String type = new String(header, 4, 4, "US-ASCII");
+            if ("moov".equals(type) || "moof".equals(type)) {
+                return true;
+            }
+            if ("mdat".equals(type)) {
+                return false;
+            }
+            if (boxSize == 1) {
+                //64位的largesize
+                if (readAt(position + 8, header, 8, 8) < 8) {
+                    return false;
+                }
+                boxSize = 0;
+                for (int i = 8; i < 16; i++) {
+                    boxSize = (boxSize << 8) | (header[i] & 0xffL);
+                }
+            } else if (boxSize == 0) {
+                //box一直延续到文件末尾
+                return false;
+            }
+            if (boxSize < 8) {
+                return false;
+            }
+            position += boxSize;
+        }
+        return false;
+    }
+
+    private RandomAccessFile openIfNeeded() throws IOException {
+        if (mRaf == null) {
+            mRaf = new RandomAccessFile(mFile, "r");
+        }
+        return mRaf;
+    }
+
+    private void awaitAvailable(long end) throws IOException {
+        while (true) {
+            if (mClosed) {
+                throw new IOException("data source closed");
+            }
+            long length = mFile.length();
+            long now = now();
+            if (length != mLastLength) {
+                mLastLength = length;
+                mLastGrowTimeMs = now;
+            }
+            if (length >= end) {
+                return;
+            }
+            if (now - mLastGrowTimeMs > mStallTimeoutMs) {
+                throw new IOException("文件超过" + mStallTimeoutMs + "ms没有增长，已写入：" + length
+                        + "/" + mFinalLength);
+            }
+            SystemClock.sleep(POLL_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * 判断文件是否停止增长使用的时间，测试中可以替换成模拟的时间
+     */
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+}
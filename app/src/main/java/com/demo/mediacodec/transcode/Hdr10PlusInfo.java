@@ -0,0 +1,73 @@
+package com.demo.mediacodec.transcode;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import androidx.annotation.Nullable;
+
+/**
+ * 可重复使用的hdr10+元数据。
+ * <p>
+ * 解码器在元数据变化时通过onOutputFormatChanged给出新的值，之后的帧都沿用它；
+ * Bundle.putByteArray需要长度正好的数组，长度不变时复用同一个数组，逐帧转发给编码器时不分配内存。
+ *
+ * @date : 2026/10/19
+ */
+class Hdr10PlusInfo {
+    private byte[] mData;
+    private boolean mValid;
+
+    /**
+     * 从解码器输出格式中的KEY_HDR10_PLUS_INFO读取，为null或者为空时清除
+     */
+    void set(@Nullable ByteBuffer buffer) {
+        if (buffer == null) {
+            mValid = false;
+            return;
+        }
+        int length = buffer.limit();
+        if (length <= 0) {
+            mValid = false;
+            return;
+        }
+        if (mData == null || mData.length != length) {
+            mData = new byte[length];
+        }
+        //按绝对位置读取，不改变buffer的position，也不用duplicate分配新的ByteBuffer
+        for (int i = 0; i < length; i++) {
+            mData[i] = buffer.get(i);
+        }
+        mValid = true;
+    }
+
+    /**
+     * 复制另一份元数据
+     */
+    void set(Hdr10PlusInfo other) {
+        if (!other.mValid) {
+            mValid = false;
+            return;
+        }
+        if (mData == null || mData.length != other.mData.length) {
+            mData = Arrays.copyOf(other.mData, other.mData.length);
+        } else {
+            System.arraycopy(other.mData, 0, mData, 0, mData.length);
+        }
+        mValid = true;
+    }
+
+    void clear() {
+        mValid = false;
+    }
+
+    boolean isValid() {
+        return mValid;
+    }
+
+    /**
+     * 当前的元数据，{@link #isValid()}为false时不能使用。下一次set时内容会被覆盖
+     */
+    byte[] getData() {
+        return mData;
+    }
+}
@@ -13,6 +13,7 @@ import android.util.Log;
 import android.view.Surface;
 
 import com.demo.mediacodec.MediaCodecUtils;
+import com.demo.mediacodec.TraceUtils;
 
 //代码来源http://androidxref.com/9.0.0_r3/xref/cts/tests/tests/media/src/android/media/cts
 
@@ -167,7 +168,12 @@ public class InputSurface {
      * Calls eglSwapBuffers.  Use this to "publish" the current frame.
      */
     public boolean swapBuffers() {
-        return EGL14.eglSwapBuffers(mEGLDisplay, mEGLSurface);
+        TraceUtils.begin("InputSurface.swapBuffers");
+        try {
+            return EGL14.eglSwapBuffers(mEGLDisplay, mEGLSurface);
+        } finally {
+            TraceUtils.end();
+        }
     }
 
     /**
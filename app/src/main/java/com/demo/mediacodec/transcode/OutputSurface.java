@@ -9,6 +9,10 @@ import android.opengl.EGLSurface;
 import android.util.Log;
 import android.view.Surface;
 
+import com.demo.mediacodec.TraceUtils;
+
+import java.util.List;
+
 //代码来源http://androidxref.com/9.0.0_r3/xref/cts/tests/tests/media/src/android/media/cts
 /**
  * Holds state associated with a Surface used for MediaCodec decoder output.
@@ -130,29 +134,34 @@ public class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
      * data is available.
      */
     public void awaitNewImage() {
-        final int TIMEOUT_MS = 500;
+        TraceUtils.begin("OutputSurface.awaitNewImage");
+        try {
+            final int TIMEOUT_MS = 500;
 
-        synchronized (mFrameSyncObject) {
-            while (!mFrameAvailable) {
-                try {
-                    // Wait for onFrameAvailable() to signal us.  Use a timeout to avoid
-                    // stalling the test if it doesn't arrive.
-                    mFrameSyncObject.wait(TIMEOUT_MS);
-                    if (!mFrameAvailable) {
-                        // TODO: if "spurious wakeup", continue while loop
-                        throw new RuntimeException("Surface frame wait timed out");
+            synchronized (mFrameSyncObject) {
+                while (!mFrameAvailable) {
+                    try {
+                        // Wait for onFrameAvailable() to signal us.  Use a timeout to avoid
+                        // stalling the test if it doesn't arrive.
+                        mFrameSyncObject.wait(TIMEOUT_MS);
+                        if (!mFrameAvailable) {
+                            // TODO: if "spurious wakeup", continue while loop
+                            throw new RuntimeException("Surface frame wait timed out after " + TIMEOUT_MS + "ms");
+                        }
+                    } catch (InterruptedException ie) {
+                        // shouldn't happen
+                        throw new RuntimeException(ie);
                     }
-                } catch (InterruptedException ie) {
-                    // shouldn't happen
-                    throw new RuntimeException(ie);
                 }
+                mFrameAvailable = false;
             }
-            mFrameAvailable = false;
-        }
 
-        // Latch the data.
-        mTextureRender.checkGlError("before updateTexImage");
-        mSurfaceTexture.updateTexImage();
+            // Latch the data.
+            mTextureRender.checkGlError("before updateTexImage");
+            mSurfaceTexture.updateTexImage();
+        } finally {
+            TraceUtils.end();
+        }
     }
 
     /**
@@ -186,9 +195,50 @@ public class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
 
     /**
      * Draws the data from SurfaceTexture onto the current EGL surface.
+     *
+     * @param ptsUs 这次输出的时间戳，叠加动画按它取帧
+     */
+    public void drawImage(long ptsUs) {
+        TraceUtils.begin("OutputSurface.drawImage");
+        try {
+            mTextureRender.drawFrame(mSurfaceTexture, ptsUs);
+        } finally {
+            TraceUtils.end();
+        }
+    }
+
+    /**
+     * 把当前帧额外绘制到场景检测的FBO上，需要在awaitNewImage之后调用
+     *
+     * @param surfaceWidth  绘制完成后恢复的窗口Surface的宽
+     * @param surfaceHeight 绘制完成后恢复的窗口Surface的高
+     * @return 是否发生了场景切换
+     */
+    public boolean detectSceneCut(SceneCutDetector detector, int surfaceWidth, int surfaceHeight) {
+        detector.beginDraw();
+        //刚锁定的解码帧，使用它自己的时间戳
+        mTextureRender.drawFrame(mSurfaceTexture, mSurfaceTexture.getTimestamp() / 1000,
+                SceneCutDetector.WIDTH, SceneCutDetector.HEIGHT);
+        return detector.endDraw(surfaceWidth, surfaceHeight);
+    }
+
+    /**
+     * 设置渲染时的画面处理（裁剪、旋转、缩放、颜色矩阵），需要在EGLContext为current的线程调用
+     *
+     * @see TextureRender#setFilter(RenderFilter, int, int, int, int)
+     */
+    public void setFilter(RenderFilter filter, int srcWidth, int srcHeight, int dstWidth,
+                          int dstHeight) {
+        mTextureRender.setFilter(filter, srcWidth, srcHeight, dstWidth, dstHeight);
+    }
+
+    /**
+     * 设置叠加的图片（水印等），需要在EGLContext为current的线程调用
+     *
+     * @see TextureRender#setOverlays(List, int, int)
      */
-    public void drawImage() {
-        mTextureRender.drawFrame(mSurfaceTexture);
+    public void setOverlays(List<VideoOverlay> overlays, int dstWidth, int dstHeight) {
+        mTextureRender.setOverlays(overlays, dstWidth, dstHeight);
     }
 
     public void latchImage() {
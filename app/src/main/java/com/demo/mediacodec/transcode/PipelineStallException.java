@@ -0,0 +1,18 @@
+package com.demo.mediacodec.transcode;
+
+/**
+ * 转码流水线超过{@link TranscodeConfig#stallTimeoutMs}没有推进，并且无法恢复。
+ * message中包含各阶段的帧数、时间戳和疑似卡住的阶段
+ *
+ * @date : 2026/10/19
+ */
+public class PipelineStallException extends Exception {
+
+    public PipelineStallException(String message) {
+        super(message);
+    }
+
+    public PipelineStallException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,292 @@
+package com.demo.mediacodec.transcode;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+/**
+ * 转码流水线的看门狗：记录每个阶段最近一次推进的时间、帧数和时间戳，
+ * 超过阈值没有帧写入Muxer时，生成各阶段的快照并回调{@link OnStallListener}。
+ * <p>
+ * 各阶段在不同的线程上报：读取线程（提取）、解码回调线程（解码输入、输出、渲染）、编码回调线程（编码输出、写入）。
+ * 同步调用的阶段（读取样本、渲染、写入）用{@link #begin}/{@link #end}标记正在执行，
+ * 卡在这些调用里时可以直接确定是哪个阶段；编解码器内部卡住时，按送入和输出的帧数差判断。
+ * 上报的方法都是同步的，不分配内存，可以逐帧调用。
+ *
+ * @date : 2026/10/19
+ */
+class PipelineWatchdog {
+    private static final String TAG = "PipelineWatchdog";
+
+    /**
+     * 流水线的阶段，按数据流动的顺序排列
+     */
+    enum Stage {
+        //读取样本
+        EXTRACTOR,
+        //样本送入解码器
+        DECODER_INPUT,
+        //解码器输出帧
+        DECODER_OUTPUT,
+        //帧绘制后送入编码器
+        RENDER,
+        //编码器输出帧
+        ENCODER_OUTPUT,
+        //写入Muxer
+        MUXER
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    //检查的最大间隔
+    private static final long MAX_CHECK_INTERVAL_MS = 1000;
+    //stop时等待检查线程退出的时间
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    interface OnStallListener {
+        /**
+         * 超过阈值没有写入新的帧，在看门狗的线程调用。回调之后重新计时，仍然没有推进时会再次回调
+         */
+        void onStall(Snapshot snapshot);
+    }
+
+    private final long mTimeoutMs;
+    private final OnStallListener mListener;
+
+    private final Object mLock = new Object();
+    //以下数组按Stage.ordinal()索引，guarded by mLock
+    private final long[] mLastProgressMs = new long[STAGES.length];
+    private final long[] mLastPtsUs = new long[STAGES.length];
+    private final long[] mCounts = new long[STAGES.length];
+    //开始执行同步调用的时间，0表示没有在执行
+    private final long[] mBusySinceMs = new long[STAGES.length];
+    //开始计时的时间，启动、回调之后更新
+    private long mArmedMs;
+
+    private volatile boolean mStopped;
+    private Thread mThread;
+
+    /**
+     * @param timeoutMs 没有帧写入Muxer的时间超过这个值时认为卡住
+     */
+    PipelineWatchdog(long timeoutMs, OnStallListener listener) {
+        mTimeoutMs = timeoutMs;
+        mListener = listener;
+        long now = now();
+        for (int i = 0; i < STAGES.length; i++) {
+            mLastProgressMs[i] = now;
+            mLastPtsUs[i] = -1;
+        }
+        mArmedMs = now;
+    }
+
+    void start() {
+        synchronized (mLock) {
+            mArmedMs = now();
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                checkLoop();
+            }
+        }, "PipelineWatchdog");
+        mThread.start();
+    }
+
+    /**
+     * 停止检查，可以重复调用，也可以在{@link OnStallListener#onStall}中调用
+     */
+    void stop() {
+        mStopped = true;
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+        Thread thread = mThread;
+        mThread = null;
+        if (thread == null || thread == Thread.currentThread()) {
+            return;
+        }
+        try {
+            thread.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 开始一个同步调用，需要在同一线程调用{@link #end}
+     */
+    void begin(Stage stage) {
+        synchronized (mLock) {
+            mBusySinceMs[stage.ordinal()] = now();
+        }
+    }
+
+    void end(Stage stage) {
+        synchronized (mLock) {
+            mBusySinceMs[stage.ordinal()] = 0;
+        }
+    }
+
+    /**
+     * 阶段处理完一帧
+     */
+    void progress(Stage stage, long ptsUs) {
+        int i = stage.ordinal();
+        synchronized (mLock) {
+            mLastProgressMs[i] = now();
+            mLastPtsUs[i] = ptsUs;
+            mCounts[i]++;
+        }
+    }
+
+    /**
+     * 阶段最近处理的一帧的时间戳，还没有处理过时返回-1
+     */
+    long getLastPtsUs(Stage stage) {
+        synchronized (mLock) {
+            return mLastPtsUs[stage.ordinal()];
+        }
+    }
+
+    /**
+     * 当前各阶段的状态，用于出错时的日志
+     */
+    Snapshot snapshot() {
+        synchronized (mLock) {
+            long now = now();
+            return new Snapshot(now - Math.max(mArmedMs, mLastProgressMs[Stage.MUXER.ordinal()]),
+                    now, mLastProgressMs, mLastPtsUs, mCounts, mBusySinceMs);
+        }
+    }
+
+    private void checkLoop() {
+        long intervalMs = Math.max(1, Math.min(MAX_CHECK_INTERVAL_MS, mTimeoutMs / 4));
+        while (!mStopped) {
+            Snapshot snapshot = null;
+            synchronized (mLock) {
+                try {
+                    mLock.wait(intervalMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (mStopped) {
+                    return;
+                }
+                long now = now();
+                long lastMs = Math.max(mArmedMs, mLastProgressMs[Stage.MUXER.ordinal()]);
+                if (now - lastMs >= mTimeoutMs) {
+                    snapshot = new Snapshot(now - lastMs, now, mLastProgressMs, mLastPtsUs,
+                            mCounts, mBusySinceMs);
+                    mArmedMs = now;
+                }
+            }
+            if (snapshot != null) {
+                Log.e(TAG, "流水线卡住: " + snapshot);
+                mListener.onStall(snapshot);
+            }
+        }
+    }
+
+    /**
+     * 计时使用的时间，测试中可以替换成模拟的时间。构造方法中也会调用，子类重写时不能依赖自己的字段
+     */
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * 某一时刻各阶段的状态
+     */
+    static class Snapshot {
+        //距离上一次写入Muxer的时间
+        final long stalledMs;
+        //按Stage.ordinal()索引：距离最近一次推进的时间、最近的时间戳、已处理的帧数、正在执行同步调用的时长（-1表示没有）
+        final long[] idleMs = new long[STAGES.length];
+        final long[] lastPtsUs = new long[STAGES.length];
+        final long[] counts = new long[STAGES.length];
+        final long[] busyMs = new long[STAGES.length];
+        //疑似卡住的阶段，无法判断时为null
+        @Nullable
+        final Stage suspect;
+
+        private Snapshot(long stalledMs, long now, long[] lastProgressMs, long[] lastPtsUs,
+                         long[] counts, long[] busySinceMs) {
+            this.stalledMs = stalledMs;
+            for (int i = 0; i < STAGES.length; i++) {
+                idleMs[i] = now - lastProgressMs[i];
+                this.lastPtsUs[i] = lastPtsUs[i];
+                this.counts[i] = counts[i];
+                busyMs[i] = busySinceMs[i] > 0 ? now - busySinceMs[i] : -1;
+            }
+            suspect = findSuspect();
+        }
+
+        /**
+         * 提前读好、还没送入解码器的样本数
+         */
+        long prefetchedSamples() {
+            return counts[Stage.EXTRACTOR.ordinal()] - counts[Stage.DECODER_INPUT.ordinal()];
+        }
+
+        /**
+         * 已经送入解码器、还没有输出的帧数
+         */
+        long decoderInFlight() {
+            return counts[Stage.DECODER_INPUT.ordinal()] - counts[Stage.DECODER_OUTPUT.ordinal()];
+        }
+
+        /**
+         * 已经送入编码器、还没有输出的帧数
+         */
+        long encoderInFlight() {
+            return counts[Stage.RENDER.ordinal()] - counts[Stage.ENCODER_OUTPUT.ordinal()];
+        }
+
+        private Stage findSuspect() {
+            //卡在同步调用里的阶段可以直接确定，有多个时取执行最久的
+            Stage busiest = null;
+            long busiestMs = -1;
+            for (Stage stage : STAGES) {
+                if (busyMs[stage.ordinal()] > busiestMs) {
+                    busiestMs = busyMs[stage.ordinal()];
+                    busiest = stage;
+                }
+            }
+            if (busiest != null && busiestMs >= stalledMs) {
+                return busiest;
+            }
+            //编解码器内部卡住：有送入的帧，但一直没有输出。
+            //解码器卡住时编码器里也会留着几帧（B帧等待后面的帧），所以先检查解码器
+            if (decoderInFlight() > 0 && idleMs[Stage.DECODER_OUTPUT.ordinal()] >= stalledMs) {
+                return Stage.DECODER_OUTPUT;
+            }
+            if (encoderInFlight() > 0 && idleMs[Stage.ENCODER_OUTPUT.ordinal()] >= stalledMs) {
+                return Stage.ENCODER_OUTPUT;
+            }
+            if (prefetchedSamples() == 0 && idleMs[Stage.EXTRACTOR.ordinal()] >= stalledMs) {
+                return Stage.EXTRACTOR;
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(stalledMs).append("ms没有写入新的帧，疑似卡住的阶段: ")
+                    .append(suspect != null ? suspect : "未知")
+                    .append("\n预读样本: ").append(prefetchedSamples())
+                    .append("，解码中: ").append(decoderInFlight())
+                    .append("，编码中: ").append(encoderInFlight());
+            for (Stage stage : STAGES) {
+                int i = stage.ordinal();
+                sb.append('\n').append(stage).append(": ").append(counts[i]).append("帧，pts=")
+                        .append(lastPtsUs[i]).append("，").append(idleMs[i]).append("ms前推进");
+                if (busyMs[i] >= 0) {
+                    sb.append("，已执行").append(busyMs[i]).append("ms");
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.demo.mediacodec.transcode;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * 从PowerManager读取温控等级，Q以下没有温控接口，始终返回{@link #STATUS_NONE}
+ *
+ * @date : 2026/10/19
+ */
+public class PowerManagerThermalSource implements ThermalSource {
+
+    private final PowerManager mPowerManager;
+
+    public PowerManagerThermalSource(Context context) {
+        mPowerManager = (PowerManager) context.getApplicationContext()
+                .getSystemService(Context.POWER_SERVICE);
+    }
+
+    @Override
+    public int getThermalStatus() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || mPowerManager == null) {
+            return STATUS_NONE;
+        }
+        return mPowerManager.getCurrentThermalStatus();
+    }
+}
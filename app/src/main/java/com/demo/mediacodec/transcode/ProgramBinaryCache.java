@@ -0,0 +1,256 @@
+package com.demo.mediacodec.transcode;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 缓存链接好的GL Program二进制（glGetProgramBinary/glProgramBinary，需要ES3），
+ * 避免每次创建OutputSurface都要重新编译、链接shader。
+ * <p>
+ * 缓存的key由GL_RENDERER、GL_VERSION（包含驱动版本）和shader源码计算得到，同时保存在内存和磁盘上。
+ * 驱动升级等原因导致二进制加载失败时，会自动删除对应缓存，回退到重新编译。
+ * 所有方法都需要在EGLContext已经current的线程上调用。
+ *
+ * @date : 2026/10/19
+ */
+class ProgramBinaryCache {
+    private static final String TAG = "ProgramBinaryCache";
+
+    private static final int FILE_MAGIC = 0x50524247; //"PRBG"
+
+    private static File sCacheDir;
+    private static final Map<String, Entry> sMemoryCache = new HashMap<>();
+
+    private static class Entry {
+        final int format;
+        final byte[] binary;
+
+        Entry(int format, byte[] binary) {
+            this.format = format;
+            this.binary = binary;
+        }
+    }
+
+    /**
+     * 设置磁盘缓存目录，没有初始化时只使用内存缓存
+     */
+    static synchronized void init(Context context) {
+        if (sCacheDir == null) {
+            sCacheDir = new File(context.getCacheDir(), "gl_program_binary");
+        }
+    }
+
+    /**
+     * 当前Context是否支持获取Program二进制
+     */
+    static boolean isSupported() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        if (version == null || !version.startsWith("OpenGL ES 3")) {
+            return false;
+        }
+        int[] formats = new int[1];
+        GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+        clearGlError();
+        return formats[0] > 0;
+    }
+
+    /**
+     * 尝试从缓存中加载Program
+     *
+     * @return 加载成功的program，失败返回0
+     */
+    static int load(String vertexSource, String fragmentSource) {
+        if (!isSupported()) {
+            return 0;
+        }
+        String key = createKey(vertexSource, fragmentSource);
+        if (key == null) {
+            return 0;
+        }
+        Entry entry = getEntry(key);
+        if (entry == null) {
+            return 0;
+        }
+        int program = GLES20.glCreateProgram();
+        if (program == 0) {
+            clearGlError();
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(entry.binary.length).order(ByteOrder.nativeOrder());
+        buffer.put(entry.binary).position(0);
+        GLES30.glProgramBinary(program, entry.format, buffer, entry.binary.length);
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        clearGlError();
+        if (linkStatus[0] != GLES20.GL_TRUE) {
+            Log.w(TAG, "load: 缓存的program二进制已失效，删除缓存 " + key);
+            GLES20.glDeleteProgram(program);
+            remove(key);
+            return 0;
+        }
+        return program;
+    }
+
+    /**
+     * 链接之前调用，提示驱动保留program二进制
+     */
+    static void prepareForSave(int program) {
+        if (!isSupported()) {
+            return;
+        }
+        GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+        clearGlError();
+    }
+
+    /**
+     * 链接成功之后调用，保存program二进制
+     */
+    static void save(int program, String vertexSource, String fragmentSource) {
+        if (!isSupported()) {
+            return;
+        }
+        String key = createKey(vertexSource, fragmentSource);
+        if (key == null) {
+            return;
+        }
+        int[] length = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0) {
+            clearGlError();
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        int[] format = new int[1];
+        GLES30.glGetProgramBinary(program, length[0], length, 0, format, 0, buffer);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || length[0] <= 0) {
+            clearGlError();
+            return;
+        }
+        byte[] binary = new byte[length[0]];
+        buffer.position(0);
+        buffer.get(binary);
+        Entry entry = new Entry(format[0], binary);
+        synchronized (ProgramBinaryCache.class) {
+            sMemoryCache.put(key, entry);
+        }
+        writeToDisk(key, entry);
+    }
+
+    private static synchronized Entry getEntry(String key) {
+        Entry entry = sMemoryCache.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        entry = readFromDisk(key);
+        if (entry != null) {
+            sMemoryCache.put(key, entry);
+        }
+        return entry;
+    }
+
+    private static synchronized void remove(String key) {
+        sMemoryCache.remove(key);
+        if (sCacheDir != null) {
+            //noinspection ResultOfMethodCallIgnored
+            new File(sCacheDir, key).delete();
+        }
+    }
+
+    private static Entry readFromDisk(String key) {
+        if (sCacheDir == null) {
+            return null;
+        }
+        File file = new File(sCacheDir, key);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("bad magic");
+            }
+            int format = in.readInt();
+            int length = in.readInt();
+            if (length <= 0 || length > file.length()) {
+                throw new IOException("bad length: " + length);
+            }
+            byte[] binary = new byte[length];
+            in.readFully(binary);
+            return new Entry(format, binary);
+        } catch (IOException e) {
+            Log.w(TAG, "readFromDisk: 读取缓存失败 " + key, e);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    private static void writeToDisk(String key, Entry entry) {
+        File dir;
+        synchronized (ProgramBinaryCache.class) {
+            dir = sCacheDir;
+        }
+        if (dir == null || (!dir.exists() && !dir.mkdirs())) {
+            return;
+        }
+        //先写临时文件再重命名，避免进程被杀时留下不完整的缓存
+        File tmp = new File(dir, key + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(entry.format);
+            out.writeInt(entry.binary.length);
+            out.write(entry.binary);
+        } catch (IOException e) {
+            Log.w(TAG, "writeToDisk: 写入缓存失败 " + key, e);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(new File(dir, key))) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+
+    private static String createKey(String vertexSource, String fragmentSource) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(String.valueOf(GLES20.glGetString(GLES20.GL_RENDERER)).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(String.valueOf(GLES20.glGetString(GLES20.GL_VERSION)).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(vertexSource.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(fragmentSource.getBytes(StandardCharsets.UTF_8));
+            byte[] hash = digest.digest();
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    private static void clearGlError() {
+        //noinspection StatementWithEmptyBody
+        while (GLES20.glGetError() != GLES20.GL_NO_ERROR) {
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.demo.mediacodec.transcode;
+
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+/**
+ * 统计转码进度，并把逐帧的进度合并成固定间隔的{@link TranscodeProgress}。
+ * <p>
+ * 进度按解码输出的时间戳计算，包括被丢弃、没有送去编码的帧，丢帧较多时进度也能走到最后；
+ * 编码器还没有输出完时最多显示99%。
+ * 剩余时间按“媒体时间/实际耗时”的速度估计，用指数平滑避免跳动。
+ * 解码和编码回调在不同线程，方法都是同步的。
+ *
+ * @date : 2026/10/19
+ */
+class ProgressTracker {
+    //速度的平滑系数
+    private static final float SPEED_SMOOTHING = 0.3f;
+
+    private final long mDurationUs;
+    private final long mIntervalMs;
+    private final long mStartMs;
+
+    private long mPositionUs;
+    private int mEncodedFrames;
+    private int mDroppedFrames;
+    private long mEncodedBytes;
+    private long mEncodedPositionUs;
+
+    //上一次回调时的状态
+    private long mLastReportMs;
+    private long mLastReportPositionUs;
+    private int mLastReportFrames;
+    //平滑后的速度：每毫秒处理的媒体时间（微秒）
+    private float mSmoothedSpeed;
+
+    /**
+     * @param intervalMs 两次回调之间的最小间隔
+     */
+    ProgressTracker(long durationUs, long intervalMs) {
+        mDurationUs = durationUs;
+        mIntervalMs = Math.max(0, intervalMs);
+        mStartMs = now();
+        mLastReportMs = mStartMs;
+    }
+
+    /**
+     * 解码输出一帧时调用
+     *
+     * @param encoded 是否送去编码，false表示被丢弃
+     * @return 到了回调间隔时返回新的进度，否则返回null
+     */
+    @Nullable
+    synchronized TranscodeProgress onFrameDecoded(long ptsUs, boolean encoded) {
+        if (!encoded) {
+            mDroppedFrames++;
+        }
+        if (ptsUs > mPositionUs) {
+            mPositionUs = ptsUs;
+        }
+        return maybeReport();
+    }
+
+    /**
+     * 编码输出一帧时调用
+     *
+     * @return 到了回调间隔时返回新的进度，否则返回null
+     */
+    @Nullable
+    synchronized TranscodeProgress onFrameEncoded(long ptsUs, int size) {
+        mEncodedFrames++;
+        mEncodedBytes += size;
+        if (ptsUs > mEncodedPositionUs) {
+            mEncodedPositionUs = ptsUs;
+        }
+        return maybeReport();
+    }
+
+    @Nullable
+    private TranscodeProgress maybeReport() {
+        long nowMs = now();
+        long elapsedMs = nowMs - mLastReportMs;
+        if (elapsedMs < mIntervalMs) {
+            return null;
+        }
+        float fps = elapsedMs > 0 ? (mEncodedFrames - mLastReportFrames) * 1000f / elapsedMs : 0;
+        if (elapsedMs > 0) {
+            float speed = (mPositionUs - mLastReportPositionUs) / (float) elapsedMs;
+            mSmoothedSpeed = mSmoothedSpeed <= 0 ? speed
+                    : mSmoothedSpeed + (speed - mSmoothedSpeed) * SPEED_SMOOTHING;
+        }
+        mLastReportMs = nowMs;
+        mLastReportPositionUs = mPositionUs;
+        mLastReportFrames = mEncodedFrames;
+
+        int percent = mDurationUs > 0 ? (int) Math.min(99, mPositionUs * 100 / mDurationUs) : 0;
+        long bitrate = mEncodedPositionUs > 0 ? mEncodedBytes * 8 * 1_000_000L / mEncodedPositionUs : 0;
+        long etaMs = -1;
+        if (mSmoothedSpeed > 0 && mDurationUs > 0) {
+            etaMs = (long) (Math.max(0, mDurationUs - mPositionUs) / mSmoothedSpeed);
+        }
+        return new TranscodeProgress(percent, mEncodedFrames, mDroppedFrames, fps, bitrate, etaMs,
+                nowMs - mStartMs);
+    }
+
+    private static long now() {
+        return SystemClock.elapsedRealtime();
+    }
+}
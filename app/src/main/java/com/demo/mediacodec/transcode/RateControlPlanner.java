@@ -0,0 +1,113 @@
+package com.demo.mediacodec.transcode;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 根据编码器能力（EncoderCapabilities）选择码率控制模式和目标码率。
+ * <p>
+ * 没有指定码率时，优先使用CQ（恒定质量）模式，按{@link TranscodeConfig#quality}映射到编码器的质量范围；
+ * 不支持CQ时使用VBR，再不行使用CBR，码率由每像素比特数（bpp）模型按输出分辨率、帧率、编码格式估算。
+ *
+ * @date : 2026/10/19
+ */
+public class RateControlPlanner {
+    private static final String TAG = "RateControlPlanner";
+
+    //1080p作为bpp模型的基准分辨率
+    private static final double REF_PIXELS = 1920 * 1080;
+    private static final double BPP_AVC = 0.10;
+    //HEVC等新一代编码格式同画质大约节省30%~40%码率
+    private static final double BPP_NEXT_GEN = 0.07;
+    private static final double HDR_FACTOR = 1.25;
+
+    /**
+     * 按bpp模型估算码率：
+     * 分辨率越大，画面冗余越多，每像素需要的比特数越低；帧率越高，相邻帧越相似，码率也不随帧率线性增长。
+     */
+    public static int estimateBitrate(@NonNull String mime, int width, int height, int fps,
+                                      boolean hdr) {
+        double pixels = Math.max(1, width) * (double) Math.max(1, height);
+        double bpp = MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime) ? BPP_AVC : BPP_NEXT_GEN;
+        bpp *= Math.pow(REF_PIXELS / pixels, 0.25);
+        if (hdr) {
+            bpp *= HDR_FACTOR;
+        }
+        double frameRate = Math.pow((fps > 0 ? fps : 30) / 30.0, 0.75) * 30;
+        return (int) Math.min(Integer.MAX_VALUE, pixels * bpp * frameRate);
+    }
+
+    /**
+     * 根据选定编码器的能力，设置码率控制模式、码率、质量，以及需要时的复杂度
+     *
+     * @param capabilities 编码器能力，为null时保持format不变
+     */
+    public static void apply(@NonNull MediaFormat format,
+                             @Nullable MediaCodecInfo.CodecCapabilities capabilities,
+                             @NonNull TranscodeConfig config) {
+        if (capabilities == null) {
+            return;
+        }
+        MediaCodecInfo.EncoderCapabilities encoderCaps = capabilities.getEncoderCapabilities();
+        if (encoderCaps == null) {
+            return;
+        }
+        MediaCodecInfo.VideoCapabilities videoCaps = capabilities.getVideoCapabilities();
+        if (videoCaps != null && format.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            Range<Integer> bitrateRange = videoCaps.getBitrateRange();
+            if (bitrateRange != null) {
+                format.setInteger(MediaFormat.KEY_BIT_RATE,
+                        bitrateRange.clamp(format.getInteger(MediaFormat.KEY_BIT_RATE)));
+            }
+        }
+
+        //指定了码率或者目标大小时，必须按码率控制，不能使用CQ
+        boolean autoBitrate = config.bitrate <= 0 && config.targetSizeBytes <= 0;
+        int mode = -1;
+        if (autoBitrate && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P
+                && encoderCaps.isBitrateModeSupported(
+                MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ)) {
+            Range<Integer> qualityRange = encoderCaps.getQualityRange();
+            if (qualityRange != null && qualityRange.getUpper() > qualityRange.getLower()) {
+                float quality = Math.max(0f, Math.min(1f, config.quality));
+                int value = qualityRange.getLower()
+                        + Math.round((qualityRange.getUpper() - qualityRange.getLower()) * quality);
+                format.setInteger(MediaFormat.KEY_QUALITY, value);
+                mode = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ;
+            }
+        }
+        if (mode < 0) {
+            if (encoderCaps.isBitrateModeSupported(
+                    MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR)) {
+                mode = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+            } else if (encoderCaps.isBitrateModeSupported(
+                    MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR)) {
+                mode = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR;
+            }
+        }
+        if (mode >= 0) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, mode);
+        }
+
+        //复杂度越高编码越慢：码率受限（指定码率、目标大小）时画质更好，CQ模式下文件更小。
+        //只在明确要求压缩率时使用，其他情况保持编码器的默认值，不拖慢实时和离线转码的速度
+        Range<Integer> complexityRange = encoderCaps.getComplexityRange();
+        if (config.highCompression && complexityRange != null
+                && complexityRange.getUpper() > complexityRange.getLower()) {
+            format.setInteger(MediaFormat.KEY_COMPLEXITY, complexityRange.getUpper());
+        }
+        Log.i(TAG, "码率控制: mode=" + mode
+                + ", bitrate=" + getInteger(format, MediaFormat.KEY_BIT_RATE)
+                + ", quality=" + getInteger(format, MediaFormat.KEY_QUALITY));
+    }
+
+    private static int getInteger(MediaFormat format, String key) {
+        return format.containsKey(key) ? format.getInteger(key) : -1;
+    }
+}
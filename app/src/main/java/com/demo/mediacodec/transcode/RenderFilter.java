@@ -0,0 +1,54 @@
+package com.demo.mediacodec.transcode;
+
+import android.graphics.RectF;
+
+/**
+ * 转码渲染时附加的画面处理：裁剪、旋转、缩放、颜色矩阵。
+ * <p>
+ * 这些处理不会增加额外的渲染pass：裁剪合并到纹理矩阵，旋转、缩放合并到MVP矩阵，
+ * 颜色矩阵合并到生成的片元着色器中，最终每帧仍然只有一次glDrawArrays。
+ *
+ * @date : 2026/10/19
+ */
+public class RenderFilter {
+
+    /**
+     * 拉伸铺满输出画面（默认行为）
+     */
+    public static final int SCALE_STRETCH = 0;
+    /**
+     * 等比缩放，完整显示画面，空白部分为黑边
+     */
+    public static final int SCALE_FIT = 1;
+    /**
+     * 等比缩放，铺满输出画面，超出部分被裁掉
+     */
+    public static final int SCALE_FILL = 2;
+
+    /**
+     * 源画面的裁剪区域，归一化坐标[0,1]，以左上角为原点；null表示不裁剪
+     */
+    public RectF crop;
+
+    /**
+     * 额外的顺时针旋转角度，只支持0、90、180、270
+     */
+    public int rotation;
+
+    public int scaleMode = SCALE_STRETCH;
+
+    /**
+     * 4x4颜色矩阵，列主序（和android.opengl.Matrix一致），作用于RGBA：
+     * out = colorMatrix * in + colorOffset。null表示不做颜色处理
+     */
+    public float[] colorMatrix;
+
+    /**
+     * 颜色偏移，长度为4，可以为null
+     */
+    public float[] colorOffset;
+
+    boolean hasColorMatrix() {
+        return colorMatrix != null && colorMatrix.length >= 16;
+    }
+}
@@ -0,0 +1,279 @@
+package com.demo.mediacodec.transcode;
+
+import android.media.MediaExtractor;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+
+import com.demo.mediacodec.TraceUtils;
+
+import java.nio.ByteBuffer;
+
+import androidx.annotation.Nullable;
+
+/**
+ * 在单独的线程上提前读取样本，放进固定数量、可以重复使用的direct buffer环形队列。
+ * <p>
+ * 解码器的回调线程只从队列里拷贝数据到输入buffer，不再直接调用Extractor，
+ * 存储的读取延迟（FUSE、SD卡、还在写入的文件）不会阻塞解码器的回调线程。
+ * 队列为空时{@link #peek()}返回null，之后有样本读好时在消费者的Handler上回调一次通知。
+ * <p>
+ * 启动后Extractor只能由读取线程访问，{@link #stop()}返回true后才能重新seek。
+ * 读取线程阻塞在数据源里没有及时退出时，Extractor的释放需要交给{@link #runWhenExited}，等线程退出后再进行。
+ *
+ * @date : 2026/10/19
+ */
+class SamplePrefetcher {
+    private static final String TAG = "SamplePrefetcher";
+
+    static final int DEFAULT_CAPACITY = 8;
+    //样本buffer的初始大小，Extractor没有给出max-input-size时使用
+    static final int DEFAULT_SAMPLE_SIZE = 512 * 1024;
+    //样本buffer最多扩容到这么大
+    private static final int MAX_SAMPLE_SIZE = 64 * 1024 * 1024;
+    //stop时等待读取线程退出的时间
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    /**
+     * 一个读好的样本，消费者只读
+     */
+    static class Sample {
+        ByteBuffer buffer;
+        int size;
+        long timeUs;
+        int flags;
+        boolean eos;
+
+        private Sample(int capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    private final MediaExtractor mExtractor;
+    private final PipelineWatchdog mWatchdog;
+    private final Handler mConsumerHandler;
+    private final Runnable mOnSampleReady;
+    private final Sample[] mRing;
+
+    private final Object mLock = new Object();
+    //下一个要消费的样本，guarded by mLock
+    private int mReadIndex;
+    //已经读好的样本数，guarded by mLock
+    private int mCount;
+    //消费者取不到样本，需要在读好时通知，guarded by mLock
+    private boolean mConsumerWaiting;
+
+    private volatile boolean mStopped;
+    private Thread mThread;
+    //读取线程已经启动、已经退出，guarded by mLock
+    private boolean mStarted;
+    private boolean mExited;
+    //读取线程退出时执行的清理，guarded by mLock
+    private Runnable mOnExit;
+
+    /**
+     * @param capacity      队列中最多提前读取的样本数
+     * @param sampleSize    样本buffer的初始大小，样本更大时自动扩容
+     * @param onSampleReady 队列为空之后又有样本读好时，post到consumerHandler上执行
+     */
+    SamplePrefetcher(MediaExtractor extractor, PipelineWatchdog watchdog, int capacity, int sampleSize,
+                     Handler consumerHandler, Runnable onSampleReady) {
+        mExtractor = extractor;
+        mWatchdog = watchdog;
+        mConsumerHandler = consumerHandler;
+        mOnSampleReady = onSampleReady;
+        mRing = new Sample[Math.max(2, capacity)];
+        for (int i = 0; i < mRing.length; i++) {
+            mRing[i] = new Sample(Math.max(1024, sampleSize));
+        }
+    }
+
+    void start() {
+        synchronized (mLock) {
+            mStarted = true;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    readLoop();
+                } finally {
+                    onReaderExit();
+                }
+            }
+        }, "SamplePrefetcher");
+        mThread.start();
+    }
+
+    /**
+     * 停止读取并等待读取线程退出，可以重复调用
+     *
+     * @return 读取线程是否已经退出。返回false时线程可能还阻塞在数据源的读取里，醒来后仍会访问Extractor
+     */
+    boolean stop() {
+        mStopped = true;
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+        Thread thread = mThread;
+        mThread = null;
+        if (thread == null || thread == Thread.currentThread()) {
+            return true;
+        }
+        try {
+            thread.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            Log.w(TAG, "stop: 读取线程没有及时退出");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 读取线程是否已经退出，或者没有启动过。退出后才能访问Extractor
+     */
+    boolean isExited() {
+        synchronized (mLock) {
+            return !mStarted || mExited;
+        }
+    }
+
+    /**
+     * 读取线程退出后执行cleanup（释放Extractor等），已经退出或者没有启动时立即在当前线程执行。
+     * 用于{@link #stop()}返回false时，不能在读取线程还在访问Extractor时释放它
+     */
+    void runWhenExited(Runnable cleanup) {
+        synchronized (mLock) {
+            if (mStarted && !mExited) {
+                mOnExit = cleanup;
+                return;
+            }
+        }
+        cleanup.run();
+    }
+
+    private void onReaderExit() {
+        Runnable cleanup;
+        synchronized (mLock) {
+            mExited = true;
+            cleanup = mOnExit;
+            mOnExit = null;
+        }
+        if (cleanup != null) {
+            Log.i(TAG, "读取线程退出，执行延后的清理");
+            cleanup.run();
+        }
+    }
+
+    /**
+     * 消费者线程调用，获取最早读好的样本，用完后调用{@link #recycle()}。
+     * 没有读好的样本时返回null，之后有样本读好时会回调onSampleReady
+     */
+    @Nullable
+    Sample peek() {
+        synchronized (mLock) {
+            if (mCount == 0) {
+                mConsumerWaiting = true;
+                return null;
+            }
+            return mRing[mReadIndex];
+        }
+    }
+
+    /**
+     * 归还{@link #peek()}得到的样本，buffer交给读取线程重新使用
+     */
+    void recycle() {
+        synchronized (mLock) {
+            if (mCount == 0) {
+                return;
+            }
+            mReadIndex = (mReadIndex + 1) % mRing.length;
+            mCount--;
+            mLock.notifyAll();
+        }
+    }
+
+    private void readLoop() {
+        while (!mStopped) {
+            Sample sample;
+            synchronized (mLock) {
+                while (mCount == mRing.length && !mStopped) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mStopped) {
+                    return;
+                }
+                //队列未满时，mReadIndex + mCount位置的样本不会被消费者访问
+                sample = mRing[(mReadIndex + mCount) % mRing.length];
+            }
+            TraceUtils.begin("Extractor.readSample");
+            mWatchdog.begin(PipelineWatchdog.Stage.EXTRACTOR);
+            try {
+                readSample(sample);
+                if (!sample.eos) {
+                    TraceUtils.counter("Extractor.pts", sample.timeUs);
+                    mWatchdog.progress(PipelineWatchdog.Stage.EXTRACTOR, sample.timeUs);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "读取样本失败，按EOS处理", e);
+                sample.eos = true;
+            } finally {
+                mWatchdog.end(PipelineWatchdog.Stage.EXTRACTOR);
+                TraceUtils.end();
+            }
+            boolean notify;
+            synchronized (mLock) {
+                mCount++;
+                notify = mConsumerWaiting;
+                mConsumerWaiting = false;
+            }
+            if (notify) {
+                mConsumerHandler.post(mOnSampleReady);
+            }
+            if (sample.eos) {
+                return;
+            }
+        }
+    }
+
+    private void readSample(Sample sample) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            long size = mExtractor.getSampleSize();
+            if (size > sample.buffer.capacity() && size <= MAX_SAMPLE_SIZE) {
+                sample.buffer = ByteBuffer.allocateDirect((int) size);
+            }
+        }
+        int size;
+        while (true) {
+            try {
+                size = mExtractor.readSampleData(sample.buffer, 0);
+                break;
+            } catch (IllegalArgumentException e) {
+                //buffer放不下这个样本
+                int capacity = sample.buffer.capacity();
+                if (capacity >= MAX_SAMPLE_SIZE) {
+                    throw e;
+                }
+                sample.buffer = ByteBuffer.allocateDirect(Math.min(MAX_SAMPLE_SIZE, capacity * 2));
+            }
+        }
+        if (size < 0) {
+            sample.eos = true;
+            sample.size = 0;
+            return;
+        }
+        sample.eos = false;
+        sample.size = size;
+        sample.timeUs = mExtractor.getSampleTime();
+        sample.flags = mExtractor.getSampleFlags();
+        mExtractor.advance();
+    }
+}
@@ -0,0 +1,136 @@
+package com.demo.mediacodec.transcode;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 场景切换检测：把每帧额外绘制到一个很小的FBO上读回，统计亮度直方图，
+ * 和上一帧的直方图差异超过阈值时认为发生了场景切换，由调用方向编码器请求关键帧。
+ * <p>
+ * FBO只有{@link #WIDTH}x{@link #HEIGHT}，读回的数据不到10KB，相比整帧的绘制、编码可以忽略。
+ * 所有方法都需要在EGLContext为current的线程调用。
+ *
+ * @date : 2026/10/19
+ */
+class SceneCutDetector {
+    private static final String TAG = "SceneCutDetector";
+
+    static final int WIDTH = 64;
+    static final int HEIGHT = 36;
+    private static final int BINS = 32;
+    private static final int PIXELS = WIDTH * HEIGHT;
+
+    /**
+     * 默认阈值：两帧直方图归一化后的差异（0~1）
+     */
+    static final float DEFAULT_THRESHOLD = 0.4f;
+
+    private final float mThreshold;
+    private final int mMinIntervalFrames;
+
+    private int mFramebuffer;
+    private int mTexture;
+    private final ByteBuffer mPixels;
+    private int[] mHistogram = new int[BINS];
+    private int[] mPrevHistogram = new int[BINS];
+    private boolean mHasPrev;
+    private int mFramesSinceCut;
+    private int mCutCount;
+
+    /**
+     * @param threshold         直方图差异的阈值，越小越敏感
+     * @param minIntervalFrames 两次场景切换之间至少间隔的帧数，避免闪光灯等情况连续插入关键帧
+     */
+    SceneCutDetector(float threshold, int minIntervalFrames) {
+        mThreshold = threshold;
+        mMinIntervalFrames = Math.max(1, minIntervalFrames);
+        mPixels = ByteBuffer.allocateDirect(PIXELS * 4).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * 创建FBO，失败时返回false，此时不能使用场景检测
+     */
+    boolean setup() {
+        int[] ids = new int[1];
+        GLES20.glGenTextures(1, ids, 0);
+        mTexture = ids[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, WIDTH, HEIGHT, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+
+        GLES20.glGenFramebuffers(1, ids, 0);
+        mFramebuffer = ids[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mTexture, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            Log.w(TAG, "setup: FBO不完整, status: " + status);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 绘制之前调用，切换到FBO
+     */
+    void beginDraw() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glViewport(0, 0, WIDTH, HEIGHT);
+    }
+
+    /**
+     * 绘制之后调用，读回并统计直方图，然后恢复到窗口Surface
+     *
+     * @return 是否发生了场景切换
+     */
+    boolean endDraw(int surfaceWidth, int surfaceHeight) {
+        mPixels.position(0);
+        GLES20.glReadPixels(0, 0, WIDTH, HEIGHT, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mPixels);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(0, 0, surfaceWidth, surfaceHeight);
+
+        int[] histogram = mHistogram;
+        for (int i = 0; i < BINS; i++) {
+            histogram[i] = 0;
+        }
+        for (int i = 0; i < PIXELS * 4; i += 4) {
+            int r = mPixels.get(i) & 0xff;
+            int g = mPixels.get(i + 1) & 0xff;
+            int b = mPixels.get(i + 2) & 0xff;
+            int luma = (77 * r + 150 * g + 29 * b) >> 8;
+            histogram[luma * BINS >> 8]++;
+        }
+
+        boolean cut = false;
+        mFramesSinceCut++;
+        if (mHasPrev) {
+            int diff = 0;
+            for (int i = 0; i < BINS; i++) {
+                diff += Math.abs(histogram[i] - mPrevHistogram[i]);
+            }
+            float distance = diff / (2f * PIXELS);
+            if (distance > mThreshold && mFramesSinceCut >= mMinIntervalFrames) {
+                cut = true;
+                mFramesSinceCut = 0;
+                mCutCount++;
+            }
+        }
+        mHistogram = mPrevHistogram;
+        mPrevHistogram = histogram;
+        mHasPrev = true;
+        return cut;
+    }
+
+    int getCutCount() {
+        return mCutCount;
+    }
+}
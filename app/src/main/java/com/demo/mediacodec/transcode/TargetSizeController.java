@@ -0,0 +1,85 @@
+package com.demo.mediacodec.transcode;
+
+import android.util.Log;
+
+/**
+ * 目标文件大小模式的码率闭环控制。
+ * <p>
+ * 开始时按时长估算需要的码率；编码过程中累计实际写入的字节数，和按时间线性分配的预算比较，
+ * 每隔{@link #ADJUST_INTERVAL_US}根据剩余的预算和剩余的时长重新计算码率，
+ * 通过PARAMETER_KEY_VIDEO_BITRATE动态调整编码器，一次转码就能接近目标大小。
+ *
+ * @date : 2026/10/19
+ */
+class TargetSizeController {
+    private static final String TAG = "TargetSizeController";
+
+    //为mp4的moov等容器开销预留的比例
+    private static final double CONTAINER_OVERHEAD = 0.01;
+    private static final long ADJUST_INTERVAL_US = 1_000_000L;
+    //剩余时长太短时不再调整，编码器来不及响应
+    private static final long MIN_REMAINING_US = 1_000_000L;
+    //码率变化小于这个比例时不调整
+    private static final double MIN_CHANGE = 0.05;
+    //相对于初始码率的调整范围
+    private static final double MIN_FACTOR = 0.25;
+    private static final double MAX_FACTOR = 4;
+
+    private final long mTargetBytes;
+    private final long mDurationUs;
+    private final int mInitialBitrate;
+    private int mCurrentBitrate;
+
+    private long mWrittenBytes;
+    private long mLastAdjustUs;
+
+    TargetSizeController(long targetBytes, long durationUs) {
+        mTargetBytes = (long) (targetBytes * (1 - CONTAINER_OVERHEAD));
+        mDurationUs = Math.max(1, durationUs);
+        mInitialBitrate = (int) Math.min(Integer.MAX_VALUE,
+                mTargetBytes * 8 * 1_000_000L / mDurationUs);
+        mCurrentBitrate = mInitialBitrate;
+    }
+
+    /**
+     * 开始编码时使用的码率
+     */
+    int getInitialBitrate() {
+        return mInitialBitrate;
+    }
+
+    /**
+     * 编码器写出一帧后调用
+     *
+     * @return 需要调整到的新码率，不需要调整时返回-1
+     */
+    int onSampleWritten(int size, long ptsUs) {
+        mWrittenBytes += size;
+        if (ptsUs - mLastAdjustUs < ADJUST_INTERVAL_US) {
+            return -1;
+        }
+        mLastAdjustUs = ptsUs;
+        long remainingUs = mDurationUs - ptsUs;
+        if (remainingUs < MIN_REMAINING_US) {
+            return -1;
+        }
+        long remainingBytes = Math.max(0, mTargetBytes - mWrittenBytes);
+        double needed = remainingBytes * 8 * 1_000_000.0 / remainingUs;
+        needed = Math.max(mInitialBitrate * MIN_FACTOR, Math.min(mInitialBitrate * MAX_FACTOR, needed));
+        if (Math.abs(needed - mCurrentBitrate) < mCurrentBitrate * MIN_CHANGE) {
+            return -1;
+        }
+        mCurrentBitrate = (int) Math.min(Integer.MAX_VALUE, needed);
+        Log.i(TAG, "已写入" + mWrittenBytes + "/" + mTargetBytes + "字节, 预算"
+                + (mTargetBytes * ptsUs / mDurationUs) + ", 调整码率为" + mCurrentBitrate);
+        return mCurrentBitrate;
+    }
+
+    long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    long getTargetBytes() {
+        return mTargetBytes;
+    }
+}
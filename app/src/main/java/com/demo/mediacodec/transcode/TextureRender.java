@@ -17,6 +17,9 @@
 package com.demo.mediacodec.transcode;
 
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
@@ -30,6 +33,10 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 //代码来源http://androidxref.com/9.0.0_r3/xref/cts/tests/tests/media/src/android/media/cts
 
@@ -57,13 +64,56 @@ class TextureRender {
 
     private float[] mMVPMatrix = new float[16];
     private float[] mSTMatrix = new float[16];
+    //裁剪对应的纹理坐标变换，和mSTMatrix相乘后作为最终的纹理矩阵
+    private float[] mCropMatrix = new float[16];
+    private float[] mTexMatrix = new float[16];
+
+    /**
+     * 一个链接好的program以及它的各个句柄
+     */
+    private static class Program {
+        int id;
+        int aPosition;
+        int aTextureCoord;
+        int uMVPMatrix;
+        int uSTMatrix;
+        int uColorMatrix = -1;
+        int uColorOffset = -1;
+        int uViewSize = -1;
+        int[] sOverlay;
+        int[] uOverlayRect;
+        int[] uOverlayUv;
+        int[] uOverlayAlpha;
+    }
+
+    /**
+     * 一个叠加图层：所有静态图片合成的一张纹理，或者一张精灵图
+     */
+    private static class OverlayLayer {
+        int textureId;
+        //在输出画面中的位置，左下角为原点的归一化坐标：x、y、w、h
+        final float[] rect = new float[4];
+        //当前帧在纹理中的区域：u、v、宽、高
+        final float[] uv = {0f, 0f, 1f, 1f};
+        float alpha = 1f;
+        //精灵图，静态图层为null
+        VideoOverlay sprite;
+    }
+
+    //合成静态图片时图层纹理的最大边长
+    private static final int MAX_OVERLAY_TEXTURE_SIZE = 2048;
+
+    //按滤镜组合缓存生成的program，切换滤镜时不用重复编译
+    private final Map<String, Program> mPrograms = new HashMap<>();
+    private Program mProgram;
+    private RenderFilter mFilter;
+    private final float[] mColorOffset = new float[4];
+    private boolean mUseColorMatrix;
+    //合成后最多两个图层：静态图片一张，精灵图一张
+    private final List<OverlayLayer> mOverlayLayers = new ArrayList<>();
+    private final float[] mViewSize = new float[2];
 
-    private int mProgram;
     private int mTextureID = -12345;
-    private int muMVPMatrixHandle;
-    private int muSTMatrixHandle;
-    private int maPositionHandle;
-    private int maTextureHandle;
 
     public TextureRender(VideoOutputConfig outputConfig) {
         mOutputConfig = outputConfig;
@@ -73,42 +123,66 @@ class TextureRender {
         mTriangleVertices.put(mTriangleVerticesData).position(0);
 
         Matrix.setIdentityM(mSTMatrix, 0);
+        Matrix.setIdentityM(mMVPMatrix, 0);
+        Matrix.setIdentityM(mCropMatrix, 0);
     }
 
     public int getTextureId() {
         return mTextureID;
     }
 
-    public void drawFrame(SurfaceTexture st) {
+    /**
+     * @param ptsUs 输出帧的时间戳，用于叠加动画的取帧。恒定帧率时同一个解码帧会以不同的时间戳重复输出，
+     *              不能使用SurfaceTexture的时间戳
+     */
+    public void drawFrame(SurfaceTexture st, long ptsUs) {
+        drawFrame(st, ptsUs, mViewSize[0], mViewSize[1]);
+    }
+
+    /**
+     * @param ptsUs      输出帧的时间戳
+     * @param viewWidth  当前绘制目标的宽，用于计算叠加图片的位置
+     * @param viewHeight 当前绘制目标的高
+     */
+    public void drawFrame(SurfaceTexture st, long ptsUs, float viewWidth, float viewHeight) {
         checkGlError("onDrawFrame start");
         st.getTransformMatrix(mSTMatrix);
+        Matrix.multiplyMM(mTexMatrix, 0, mSTMatrix, 0, mCropMatrix, 0);
 
-        GLES20.glClearColor(0.0f, 1.0f, 0.0f, 1.0f);
+        //等比缩放（SCALE_FIT）时，画面以外的区域是黑边
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
         GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
 
-        GLES20.glUseProgram(mProgram);
+        Program program = mProgram;
+        GLES20.glUseProgram(program.id);
         checkGlError("glUseProgram");
 
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextureID);
 
         mTriangleVertices.position(TRIANGLE_VERTICES_DATA_POS_OFFSET);
-        GLES20.glVertexAttribPointer(maPositionHandle, 3, GLES20.GL_FLOAT, false,
+        GLES20.glVertexAttribPointer(program.aPosition, 3, GLES20.GL_FLOAT, false,
                 TRIANGLE_VERTICES_DATA_STRIDE_BYTES, mTriangleVertices);
         checkGlError("glVertexAttribPointer maPosition");
-        GLES20.glEnableVertexAttribArray(maPositionHandle);
+        GLES20.glEnableVertexAttribArray(program.aPosition);
         checkGlError("glEnableVertexAttribArray maPositionHandle");
 
         mTriangleVertices.position(TRIANGLE_VERTICES_DATA_UV_OFFSET);
-        GLES20.glVertexAttribPointer(maTextureHandle, 2, GLES20.GL_FLOAT, false,
+        GLES20.glVertexAttribPointer(program.aTextureCoord, 2, GLES20.GL_FLOAT, false,
                 TRIANGLE_VERTICES_DATA_STRIDE_BYTES, mTriangleVertices);
         checkGlError("glVertexAttribPointer maTextureHandle");
-        GLES20.glEnableVertexAttribArray(maTextureHandle);
+        GLES20.glEnableVertexAttribArray(program.aTextureCoord);
         checkGlError("glEnableVertexAttribArray maTextureHandle");
 
-        Matrix.setIdentityM(mMVPMatrix, 0);
-        GLES20.glUniformMatrix4fv(muMVPMatrixHandle, 1, false, mMVPMatrix, 0);
-        GLES20.glUniformMatrix4fv(muSTMatrixHandle, 1, false, mSTMatrix, 0);
+        GLES20.glUniformMatrix4fv(program.uMVPMatrix, 1, false, mMVPMatrix, 0);
+        GLES20.glUniformMatrix4fv(program.uSTMatrix, 1, false, mTexMatrix, 0);
+        if (program.uColorMatrix != -1) {
+            GLES20.glUniformMatrix4fv(program.uColorMatrix, 1, false, mFilter.colorMatrix, 0);
+            GLES20.glUniform4fv(program.uColorOffset, 1, mColorOffset, 0);
+        }
+        if (program.uViewSize != -1) {
+            bindOverlays(program, ptsUs, viewWidth, viewHeight);
+        }
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
         checkGlError("glDrawArrays");
@@ -116,40 +190,238 @@ class TextureRender {
     }
 
     /**
-     * Initializes GL state.  Call this after the EGL surface has been created and made current.
+     * 设置画面处理，需要在GL线程调用。
+     *
+     * @param filter    为null时恢复为直接绘制
+     * @param srcWidth  解码画面（已经应用了视频自带的旋转角度）的宽
+     * @param srcHeight 解码画面的高
+     * @param dstWidth  输出画面的宽
+     * @param dstHeight 输出画面的高
      */
-    public void surfaceCreated() {
-        if (mOutputConfig.eglColorSpace == MediaCodecUtils.EGLColorSpace.YUVP10) {
-            mProgram = createProgram(GLUtils.YUV_VERTEX_SHADER, GLUtils.YUV_FRAGMENT_SHADER);
-        } else {
-            mProgram = createProgram(GLUtils.RGBA_VERTEX_SHADER, GLUtils.RGBA_FRAGMENT_SHADER);
+    public void setFilter(RenderFilter filter, int srcWidth, int srcHeight, int dstWidth,
+                          int dstHeight) {
+        mFilter = filter;
+        Matrix.setIdentityM(mMVPMatrix, 0);
+        Matrix.setIdentityM(mCropMatrix, 0);
+        if (filter == null) {
+            mUseColorMatrix = false;
+            mProgram = obtainProgram(false, mOverlayLayers.size());
+            return;
         }
-        if (mProgram == 0) {
-            throw new RuntimeException("failed creating program");
+
+        float cropWidth = 1f, cropHeight = 1f;
+        if (filter.crop != null) {
+            //纹理坐标以左下角为原点，裁剪区域以左上角为原点
+            cropWidth = filter.crop.width();
+            cropHeight = filter.crop.height();
+            Matrix.translateM(mCropMatrix, 0, filter.crop.left, 1f - filter.crop.bottom, 0);
+            Matrix.scaleM(mCropMatrix, 0, cropWidth, cropHeight, 1f);
         }
-        maPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
-        checkGlError("glGetAttribLocation aPosition");
-        if (maPositionHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for aPosition");
+
+        int rotation = ((filter.rotation % 360) + 360) % 360;
+        float contentWidth = srcWidth * cropWidth;
+        float contentHeight = srcHeight * cropHeight;
+        if (rotation == 90 || rotation == 270) {
+            float temp = contentWidth;
+            contentWidth = contentHeight;
+            contentHeight = temp;
         }
-        maTextureHandle = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
-        checkGlError("glGetAttribLocation aTextureCoord");
-        if (maTextureHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for aTextureCoord");
+        float scaleX = 1f, scaleY = 1f;
+        if (filter.scaleMode != RenderFilter.SCALE_STRETCH && contentWidth > 0 && contentHeight > 0
+                && dstWidth > 0 && dstHeight > 0) {
+            float srcAspect = contentWidth / contentHeight;
+            float dstAspect = dstWidth * 1f / dstHeight;
+            boolean wider = srcAspect > dstAspect;
+            if (filter.scaleMode == RenderFilter.SCALE_FIT) {
+                if (wider) {
+                    scaleY = dstAspect / srcAspect;
+                } else {
+                    scaleX = srcAspect / dstAspect;
+                }
+            } else {
+                if (wider) {
+                    scaleX = srcAspect / dstAspect;
+                } else {
+                    scaleY = dstAspect / srcAspect;
+                }
+            }
+        }
+        //先旋转再缩放：MVP = S * R
+        Matrix.scaleM(mMVPMatrix, 0, scaleX, scaleY, 1f);
+        if (rotation != 0) {
+            Matrix.rotateM(mMVPMatrix, 0, -rotation, 0f, 0f, 1f);
         }
 
-        muMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
-        checkGlError("glGetUniformLocation uMVPMatrix");
-        if (muMVPMatrixHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for uMVPMatrix");
+        boolean colorMatrix = filter.hasColorMatrix();
+        if (colorMatrix && mOutputConfig.eglColorSpace == MediaCodecUtils.EGLColorSpace.YUVP10) {
+            //YUV输出直接采样YUV数据，颜色矩阵作用在RGBA上，这里不支持
+            Log.w(TAG, "setFilter: YUV输出不支持颜色矩阵，已忽略");
+            colorMatrix = false;
+        }
+        if (colorMatrix) {
+            for (int i = 0; i < 4; i++) {
+                mColorOffset[i] = filter.colorOffset != null && filter.colorOffset.length > i
+                        ? filter.colorOffset[i] : 0f;
+            }
         }
+        mUseColorMatrix = colorMatrix;
+        mProgram = obtainProgram(colorMatrix, mOverlayLayers.size());
+    }
 
-        muSTMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uSTMatrix");
-        checkGlError("glGetUniformLocation uSTMatrix");
-        if (muSTMatrixHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for uSTMatrix");
+    /**
+     * 设置叠加的图片，需要在GL线程调用。图片在这里一次性上传为纹理，之后每帧只多一次纹理采样。
+     * <p>
+     * 所有静态图片会先用Canvas合成到一张图层里；精灵图单独一个图层，只支持一张。
+     * 叠加只覆盖视频画面所在的区域，SCALE_FIT产生的黑边上不会绘制。
+     *
+     * @param overlays  为null或者空时不叠加
+     * @param dstWidth  输出画面的宽
+     * @param dstHeight 输出画面的高
+     */
+    public void setOverlays(List<VideoOverlay> overlays, int dstWidth, int dstHeight) {
+        releaseOverlays();
+        mViewSize[0] = dstWidth;
+        mViewSize[1] = dstHeight;
+        if (overlays != null && !overlays.isEmpty()) {
+            if (mOutputConfig.eglColorSpace == MediaCodecUtils.EGLColorSpace.YUVP10) {
+                //YUV输出直接写YUV数据，无法和RGBA的图片混合
+                Log.w(TAG, "setOverlays: YUV输出不支持叠加图片，已忽略");
+            } else {
+                List<VideoOverlay> statics = new ArrayList<>();
+                VideoOverlay sprite = null;
+                for (VideoOverlay overlay : overlays) {
+                    if (overlay == null || overlay.bitmap == null || overlay.bitmap.isRecycled()
+                            || overlay.dstRect == null || overlay.dstRect.isEmpty()) {
+                        continue;
+                    }
+                    if (!overlay.isAnimated()) {
+                        statics.add(overlay);
+                    } else if (sprite == null) {
+                        sprite = overlay;
+                    } else {
+                        Log.w(TAG, "setOverlays: 只支持一张精灵图，多余的已忽略");
+                    }
+                }
+                OverlayLayer staticLayer = statics.isEmpty() ? null
+                        : createStaticLayer(statics, dstWidth, dstHeight);
+                if (staticLayer != null) {
+                    mOverlayLayers.add(staticLayer);
+                }
+                if (sprite != null) {
+                    mOverlayLayers.add(createSpriteLayer(sprite));
+                }
+            }
+        }
+        mProgram = obtainProgram(mUseColorMatrix, mOverlayLayers.size());
+    }
+
+    private OverlayLayer createStaticLayer(List<VideoOverlay> overlays, int dstWidth,
+                                           int dstHeight) {
+        RectF union = new RectF(overlays.get(0).dstRect);
+        for (VideoOverlay overlay : overlays) {
+            union.union(overlay.dstRect);
+        }
+        if (!union.intersect(0f, 0f, 1f, 1f)) {
+            Log.w(TAG, "setOverlays: 叠加图片都在画面之外，已忽略");
+            return null;
+        }
+        float layerWidth = Math.max(1f, union.width() * dstWidth);
+        float layerHeight = Math.max(1f, union.height() * dstHeight);
+        float scale = Math.min(1f, MAX_OVERLAY_TEXTURE_SIZE / Math.max(layerWidth, layerHeight));
+        Bitmap layer = Bitmap.createBitmap(Math.max(1, Math.round(layerWidth * scale)),
+                Math.max(1, Math.round(layerHeight * scale)), Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(layer);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        RectF dst = new RectF();
+        float pxWidth = layer.getWidth() / union.width();
+        float pxHeight = layer.getHeight() / union.height();
+        for (VideoOverlay overlay : overlays) {
+            dst.set((overlay.dstRect.left - union.left) * pxWidth,
+                    (overlay.dstRect.top - union.top) * pxHeight,
+                    (overlay.dstRect.right - union.left) * pxWidth,
+                    (overlay.dstRect.bottom - union.top) * pxHeight);
+            paint.setAlpha(Math.round(Math.max(0f, Math.min(1f, overlay.alpha)) * 255));
+            canvas.drawBitmap(overlay.bitmap, null, dst, paint);
+        }
+        OverlayLayer result = new OverlayLayer();
+        result.textureId = uploadTexture(layer);
+        layer.recycle();
+        setLayerRect(result, union);
+        return result;
+    }
+
+    private OverlayLayer createSpriteLayer(VideoOverlay sprite) {
+        OverlayLayer result = new OverlayLayer();
+        result.textureId = uploadTexture(sprite.bitmap);
+        result.sprite = sprite;
+        result.alpha = Math.max(0f, Math.min(1f, sprite.alpha));
+        result.uv[2] = 1f / sprite.columns;
+        result.uv[3] = 1f / sprite.rows;
+        setLayerRect(result, sprite.dstRect);
+        return result;
+    }
+
+    private static void setLayerRect(OverlayLayer layer, RectF rect) {
+        //叠加区域以左上角为原点，gl_FragCoord以左下角为原点
+        layer.rect[0] = rect.left;
+        layer.rect[1] = 1f - rect.bottom;
+        layer.rect[2] = rect.width();
+        layer.rect[3] = rect.height();
+    }
+
+    private int uploadTexture(Bitmap bitmap) {
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        android.opengl.GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+        checkGlError("upload overlay texture");
+        return textures[0];
+    }
+
+    /**
+     * 绑定叠加图层的纹理和参数，精灵图根据帧时间戳切换到对应的帧
+     */
+    private void bindOverlays(Program program, long ptsUs, float viewWidth, float viewHeight) {
+        GLES20.glUniform2f(program.uViewSize, viewWidth, viewHeight);
+        for (int i = 0; i < mOverlayLayers.size(); i++) {
+            OverlayLayer layer = mOverlayLayers.get(i);
+            VideoOverlay sprite = layer.sprite;
+            if (sprite != null) {
+                int frame = (int) ((Math.max(0, ptsUs) / sprite.frameDurationUs) % sprite.frameCount);
+                layer.uv[0] = (frame % sprite.columns) * layer.uv[2];
+                layer.uv[1] = (frame / sprite.columns % sprite.rows) * layer.uv[3];
+            }
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE1 + i);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, layer.textureId);
+            GLES20.glUniform1i(program.sOverlay[i], 1 + i);
+            GLES20.glUniform4fv(program.uOverlayRect[i], 1, layer.rect, 0);
+            GLES20.glUniform4fv(program.uOverlayUv[i], 1, layer.uv, 0);
+            GLES20.glUniform1f(program.uOverlayAlpha[i], layer.alpha);
         }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        checkGlError("bindOverlays");
+    }
 
+    private void releaseOverlays() {
+        for (OverlayLayer layer : mOverlayLayers) {
+            GLES20.glDeleteTextures(1, new int[]{layer.textureId}, 0);
+        }
+        mOverlayLayers.clear();
+    }
+
+    /**
+     * Initializes GL state.  Call this after the EGL surface has been created and made current.
+     */
+    public void surfaceCreated() {
+        mProgram = obtainProgram(false, 0);
 
         int[] textures = new int[1];
         GLES20.glGenTextures(1, textures, 0);
@@ -169,6 +441,79 @@ class TextureRender {
         checkGlError("glTexParameter");
     }
 
+    /**
+     * 获取（必要时生成）对应滤镜组合的program
+     */
+    private Program obtainProgram(boolean colorMatrix, int overlayCount) {
+        boolean yuv = mOutputConfig.eglColorSpace == MediaCodecUtils.EGLColorSpace.YUVP10;
+        String key = (yuv ? "yuv" : "rgba") + (colorMatrix ? "|colorMatrix" : "")
+                + (overlayCount > 0 ? "|overlay" + overlayCount : "");
+        Program program = mPrograms.get(key);
+        if (program != null) {
+            return program;
+        }
+        program = new Program();
+        if (yuv) {
+            program.id = createProgram(GLUtils.YUV_VERTEX_SHADER, GLUtils.YUV_FRAGMENT_SHADER);
+        } else {
+            program.id = createProgram(GLUtils.RGBA_VERTEX_SHADER,
+                    GLUtils.buildRgbaFragmentShader(colorMatrix, overlayCount));
+        }
+        if (program.id == 0) {
+            throw new RuntimeException("failed creating program");
+        }
+        program.aPosition = GLES20.glGetAttribLocation(program.id, "aPosition");
+        checkGlError("glGetAttribLocation aPosition");
+        if (program.aPosition == -1) {
+            throw new RuntimeException("Could not get attrib location for aPosition");
+        }
+        program.aTextureCoord = GLES20.glGetAttribLocation(program.id, "aTextureCoord");
+        checkGlError("glGetAttribLocation aTextureCoord");
+        if (program.aTextureCoord == -1) {
+            throw new RuntimeException("Could not get attrib location for aTextureCoord");
+        }
+
+        program.uMVPMatrix = GLES20.glGetUniformLocation(program.id, "uMVPMatrix");
+        checkGlError("glGetUniformLocation uMVPMatrix");
+        if (program.uMVPMatrix == -1) {
+            throw new RuntimeException("Could not get attrib location for uMVPMatrix");
+        }
+
+        program.uSTMatrix = GLES20.glGetUniformLocation(program.id, "uSTMatrix");
+        checkGlError("glGetUniformLocation uSTMatrix");
+        if (program.uSTMatrix == -1) {
+            throw new RuntimeException("Could not get attrib location for uSTMatrix");
+        }
+
+        if (colorMatrix) {
+            program.uColorMatrix = GLES20.glGetUniformLocation(program.id, "uColorMatrix");
+            program.uColorOffset = GLES20.glGetUniformLocation(program.id, "uColorOffset");
+            checkGlError("glGetUniformLocation uColorMatrix");
+            if (program.uColorMatrix == -1 || program.uColorOffset == -1) {
+                throw new RuntimeException("Could not get attrib location for uColorMatrix");
+            }
+        }
+        if (overlayCount > 0) {
+            program.uViewSize = GLES20.glGetUniformLocation(program.id, "uViewSize");
+            program.sOverlay = new int[overlayCount];
+            program.uOverlayRect = new int[overlayCount];
+            program.uOverlayUv = new int[overlayCount];
+            program.uOverlayAlpha = new int[overlayCount];
+            for (int i = 0; i < overlayCount; i++) {
+                program.sOverlay[i] = GLES20.glGetUniformLocation(program.id, "sOverlay" + i);
+                program.uOverlayRect[i] = GLES20.glGetUniformLocation(program.id, "uOverlayRect" + i);
+                program.uOverlayUv[i] = GLES20.glGetUniformLocation(program.id, "uOverlayUv" + i);
+                program.uOverlayAlpha[i] = GLES20.glGetUniformLocation(program.id, "uOverlayAlpha" + i);
+            }
+            checkGlError("glGetUniformLocation uOverlay");
+            if (program.uViewSize == -1) {
+                throw new RuntimeException("Could not get attrib location for uViewSize");
+            }
+        }
+        mPrograms.put(key, program);
+        return program;
+    }
+
     private int loadShader(int shaderType, String source) {
         int shader = GLES20.glCreateShader(shaderType);
         checkGlError("glCreateShader type=" + shaderType);
@@ -186,6 +531,11 @@ class TextureRender {
     }
 
     private int createProgram(String vertexSource, String fragmentSource) {
+        //优先使用缓存的program二进制，省去编译、链接的耗时
+        int cachedProgram = ProgramBinaryCache.load(vertexSource, fragmentSource);
+        if (cachedProgram != 0) {
+            return cachedProgram;
+        }
         int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
         if (vertexShader == 0) {
             return 0;
@@ -204,6 +554,7 @@ class TextureRender {
         checkGlError("glAttachShader");
         GLES20.glAttachShader(program, pixelShader);
         checkGlError("glAttachShader");
+        ProgramBinaryCache.prepareForSave(program);
         GLES20.glLinkProgram(program);
         int[] linkStatus = new int[1];
         GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
@@ -212,6 +563,8 @@ class TextureRender {
             Log.e(TAG, GLES20.glGetProgramInfoLog(program));
             GLES20.glDeleteProgram(program);
             program = 0;
+        } else {
+            ProgramBinaryCache.save(program, vertexSource, fragmentSource);
         }
         return program;
     }
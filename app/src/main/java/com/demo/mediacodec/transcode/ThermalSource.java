@@ -0,0 +1,25 @@
+package com.demo.mediacodec.transcode;
+
+/**
+ * 设备温控状态的来源，{@link ThermalThrottlePolicy}通过它获取当前的温控等级。
+ * <p>
+ * 正式使用{@link PowerManagerThermalSource}，也可以实现一个假的来源来模拟设备发热的过程。
+ *
+ * @date : 2026/10/19
+ */
+public interface ThermalSource {
+
+    //和PowerManager.THERMAL_STATUS_*的取值一致
+    int STATUS_NONE = 0;
+    int STATUS_LIGHT = 1;
+    int STATUS_MODERATE = 2;
+    int STATUS_SEVERE = 3;
+    int STATUS_CRITICAL = 4;
+    int STATUS_EMERGENCY = 5;
+    int STATUS_SHUTDOWN = 6;
+
+    /**
+     * 当前的温控等级，{@link #STATUS_NONE}~{@link #STATUS_SHUTDOWN}
+     */
+    int getThermalStatus();
+}
@@ -0,0 +1,207 @@
+package com.demo.mediacodec.transcode;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * 长时间批量转码的温控降速策略。
+ * <p>
+ * 设备发热后SoC会大幅降频，如果一直全速运行，转码速度会先冲高再断崖式下跌。这里根据温控等级：
+ * <ul>
+ * <li>限制编解码器的运行速率（KEY_OPERATING_RATE），以开始发热时实测的速度为基准按等级打折，保持可持续的速度；</li>
+ * <li>两次转码之间等待一段冷却时间；</li>
+ * <li>减少同时进行的编解码会话数。</li>
+ * </ul>
+ * 多个{@link TranscodeRunner}共用同一个实例。具体的数值都在protected方法中，可以继承修改；
+ * 温控等级来自{@link ThermalSource}，时间来自{@link #now()}，都可以替换成模拟的实现。
+ *
+ * @date : 2026/10/19
+ */
+public class ThermalThrottlePolicy {
+    private static final String TAG = "ThermalThrottlePolicy";
+
+    /**
+     * 不需要调整运行速率
+     */
+    public static final int NO_CHANGE = -1;
+    /**
+     * 不限制运行速率
+     */
+    public static final int UNLIMITED = 0;
+
+    //等待期间重新检查温控等级的间隔
+    private static final long POLL_INTERVAL_MS = 1000;
+    //实测速度的平滑系数
+    private static final float FPS_SMOOTHING = 0.3f;
+
+    private final ThermalSource mSource;
+    private final int mMaxSessions;
+
+    private final Object mLock = new Object();
+    private int mActiveSessions;
+    private long mLastSessionEndMs = Long.MIN_VALUE / 2;
+
+    /**
+     * @param maxSessions 设备不发热时最多同时进行的转码数
+     */
+    public ThermalThrottlePolicy(ThermalSource source, int maxSessions) {
+        mSource = source;
+        mMaxSessions = Math.max(1, maxSessions);
+    }
+
+    /**
+     * 开始一次转码前调用（会阻塞，需要在子线程调用）：
+     * 同时进行的转码数达到当前等级的上限，或者距离上一次转码结束还没有冷却足够时间时等待
+     */
+    public Session acquireSession() throws InterruptedException {
+        synchronized (mLock) {
+            boolean waited = false;
+            while (true) {
+                int status = mSource.getThermalStatus();
+                long cooldownMs = mLastSessionEndMs + getCooldownMs(status) - now();
+                if (mActiveSessions < getMaxSessions(status) && cooldownMs <= 0) {
+                    mActiveSessions++;
+                    if (waited) {
+                        Log.i(TAG, "等待结束，温控等级: " + status);
+                    }
+                    return new Session();
+                }
+                if (!waited) {
+                    Log.i(TAG, "温控等级: " + status + ", 进行中: " + mActiveSessions
+                            + ", 需要冷却: " + Math.max(0, cooldownMs) + "ms，等待");
+                    waited = true;
+                }
+                long waitMs = cooldownMs > 0 ? Math.min(cooldownMs, POLL_INTERVAL_MS) : POLL_INTERVAL_MS;
+                mLock.wait(waitMs);
+            }
+        }
+    }
+
+    /**
+     * 不等待的{@link #acquireSession()}，预热编解码器时使用，预热的编解码器也计入同时进行的会话数
+     *
+     * @return 需要等待时返回null
+     */
+    public Session tryAcquireSession() {
+        synchronized (mLock) {
+            int status = mSource.getThermalStatus();
+            long cooldownMs = mLastSessionEndMs + getCooldownMs(status) - now();
+            if (mActiveSessions < getMaxSessions(status) && cooldownMs <= 0) {
+                mActiveSessions++;
+                return new Session();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 当前温控等级下最多同时进行的转码数
+     */
+    protected int getMaxSessions(int status) {
+        if (status >= ThermalSource.STATUS_SEVERE) {
+            return 1;
+        }
+        if (status == ThermalSource.STATUS_MODERATE) {
+            return Math.max(1, mMaxSessions / 2);
+        }
+        return mMaxSessions;
+    }
+
+    /**
+     * 当前温控等级下，上一次转码结束后需要等待的时间
+     */
+    protected long getCooldownMs(int status) {
+        if (status >= ThermalSource.STATUS_CRITICAL) {
+            return 30_000;
+        }
+        if (status == ThermalSource.STATUS_SEVERE) {
+            return 10_000;
+        }
+        if (status == ThermalSource.STATUS_MODERATE) {
+            return 2_000;
+        }
+        return 0;
+    }
+
+    /**
+     * 当前温控等级下，运行速率相对于基准速度的比例，不小于1表示不限制
+     */
+    protected float getRateFactor(int status) {
+        if (status >= ThermalSource.STATUS_CRITICAL) {
+            return 0.4f;
+        }
+        if (status == ThermalSource.STATUS_SEVERE) {
+            return 0.6f;
+        }
+        if (status == ThermalSource.STATUS_MODERATE) {
+            return 0.8f;
+        }
+        return 1f;
+    }
+
+    protected long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    private void onSessionEnd() {
+        synchronized (mLock) {
+            mActiveSessions = Math.max(0, mActiveSessions - 1);
+            mLastSessionEndMs = now();
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * 一次转码的限速状态
+     */
+    public class Session {
+        private float mSmoothedFps;
+        //开始发热时的实测速度，作为可持续速度的基准
+        private float mBaselineFps;
+        private int mRate = UNLIMITED;
+        private boolean mReleased;
+
+        private Session() {
+        }
+
+        /**
+         * 转码过程中定期调用，传入这段时间实测的速度
+         *
+         * @return 需要设置给编解码器的运行速率（fps），{@link #UNLIMITED}表示恢复不限制，{@link #NO_CHANGE}表示不需要调整
+         */
+        public int onThroughput(float measuredFps) {
+            mSmoothedFps = mSmoothedFps <= 0 ? measuredFps
+                    : mSmoothedFps + (measuredFps - mSmoothedFps) * FPS_SMOOTHING;
+            int status = mSource.getThermalStatus();
+            float factor = getRateFactor(status);
+            int rate;
+            if (factor >= 1f) {
+                mBaselineFps = 0;
+                rate = UNLIMITED;
+            } else {
+                if (mBaselineFps <= 0) {
+                    mBaselineFps = mSmoothedFps;
+                }
+                rate = Math.max(1, Math.round(mBaselineFps * factor));
+            }
+            if (rate == mRate) {
+                return NO_CHANGE;
+            }
+            Log.i(TAG, "温控等级: " + status + ", 实测: " + mSmoothedFps + "fps, 运行速率调整为: "
+                    + (rate == UNLIMITED ? "不限制" : rate + "fps"));
+            mRate = rate;
+            return rate;
+        }
+
+        /**
+         * 转码结束（完成、出错、取消）时调用，可以重复调用
+         */
+        public synchronized void release() {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            onSessionEnd();
+        }
+    }
+}
@@ -21,6 +21,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
 
 import androidx.annotation.Nullable;
 import androidx.annotation.UiThread;
@@ -34,18 +36,35 @@ import androidx.annotation.UiThread;
 public class TranscodeActivity extends BaseActivity implements TranscodeRunner.OnTranscodeListener {
 
     private TextView mVideoInfoTv, mErrorTv;
-    private TextInputEditText mDstWidthEdt, mDstHeightEdt, mDstBitrateEdt, mDstFpsEdt;
+    private TextInputEditText mDstWidthEdt, mDstHeightEdt, mDstBitrateEdt, mDstFpsEdt, mDstGopEdt,
+            mDstTargetSizeEdt;
     private Button mTransCodeBtn;
 
     private TranscodeRunner transcodeRunner;
+    //所有转码共用的温控策略
+    private ThermalThrottlePolicy mThrottlePolicy;
     private ProgressDialog mProgressDialog;
+    //还没有显示的最新进度，主线程上最多只有一个待处理的刷新
+    private final AtomicReference<TranscodeProgress> mPendingProgress = new AtomicReference<>();
+    private final Runnable mProgressUpdater = new Runnable() {
+        @Override
+        public void run() {
+            TranscodeProgress progress = mPendingProgress.getAndSet(null);
+            if (progress != null) {
+                showOrUpdateProgress(progress);
+            }
+        }
+    };
 
-    private MaterialCheckBox mH265Cb, mKeepHdrCb, mForce8BitCb;
+    private MaterialCheckBox mH265Cb, mKeepHdrCb, mForce8BitCb, mCfrCb, mSceneCutCb, mOfflineCb;
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_transcode);
+        mThrottlePolicy = new ThermalThrottlePolicy(new PowerManagerThermalSource(this), 2);
+        //用户选择视频、设置参数时在后台探测B帧支持，不占用转码的准备时间
+        EncoderProbe.probeDefaultEncodersAsync(this);
 
         findViewById(R.id.btn_select_video).setOnClickListener(v -> {
             openPicker();
@@ -64,11 +83,16 @@ public class TranscodeActivity extends BaseActivity implements TranscodeRunner.O
         });
         mKeepHdrCb = findViewById(R.id.cb_keep_hdr);
         mForce8BitCb = findViewById(R.id.cb_force_8_bit);
+        mCfrCb = findViewById(R.id.cb_cfr);
+        mSceneCutCb = findViewById(R.id.cb_scene_cut);
+        mOfflineCb = findViewById(R.id.cb_offline);
         mVideoInfoTv = findViewById(R.id.tv_ori_video_info);
         mDstWidthEdt = findViewById(R.id.edt_dst_width);
         mDstHeightEdt = findViewById(R.id.edt_dst_height);
         mDstBitrateEdt = findViewById(R.id.edt_dst_bitrate);
         mDstFpsEdt = findViewById(R.id.edt_dst_fps);
+        mDstGopEdt = findViewById(R.id.edt_dst_gop);
+        mDstTargetSizeEdt = findViewById(R.id.edt_dst_target_size);
 
         TextWatcher watcher = new TextWatcher() {
             @Override
@@ -94,19 +118,10 @@ public class TranscodeActivity extends BaseActivity implements TranscodeRunner.O
 
         mTransCodeBtn.setOnClickListener(v -> {
             mErrorTv.setText(null);
-            File dstDir = getExternalCacheDir();
-            TranscodeConfig config = new TranscodeConfig();
-            config.dstPath = new File(dstDir, "output.mp4");
-            config.h265 = mH265Cb.isChecked();
-            config.outWidth = Integer.parseInt(mDstWidthEdt.getEditableText().toString());
-            config.outHeight = Integer.parseInt(mDstHeightEdt.getEditableText().toString());
-            config.bitrate = Integer.parseInt(mDstBitrateEdt.getEditableText().toString());
-            config.fps = Integer.parseInt(mDstFpsEdt.getEditableText().toString());
-            config.keepHdr = mKeepHdrCb.isChecked();
+            TranscodeConfig config = buildConfig();
             if (config.keepHdr && !config.h265) {
                 Toast.makeText(this, "仅支持H265编码的HDR效果", Toast.LENGTH_SHORT).show();
             }
-            config.force8Bit = mForce8BitCb.isChecked();
             try {
                 if (config.dstPath.exists()) {
                     config.dstPath.delete();
@@ -117,6 +132,29 @@ public class TranscodeActivity extends BaseActivity implements TranscodeRunner.O
         });
     }
 
+    /**
+     * 根据界面上的设置生成转码参数
+     */
+    private TranscodeConfig buildConfig() {
+        File dstDir = getExternalCacheDir();
+        TranscodeConfig config = new TranscodeConfig();
+        config.dstPath = new File(dstDir, "output.mp4");
+        config.h265 = mH265Cb.isChecked();
+        config.outWidth = Integer.parseInt(mDstWidthEdt.getEditableText().toString());
+        config.outHeight = Integer.parseInt(mDstHeightEdt.getEditableText().toString());
+        config.bitrate = Integer.parseInt(mDstBitrateEdt.getEditableText().toString());
+        config.targetSizeBytes = (long) (Float.parseFloat(
+                mDstTargetSizeEdt.getEditableText().toString()) * 1024 * 1024);
+        config.fps = Integer.parseInt(mDstFpsEdt.getEditableText().toString());
+        config.gopSeconds = Float.parseFloat(mDstGopEdt.getEditableText().toString());
+        config.keepHdr = mKeepHdrCb.isChecked();
+        config.force8Bit = mForce8BitCb.isChecked();
+        config.constantFrameRate = mCfrCb.isChecked();
+        config.sceneCutDetection = mSceneCutCb.isChecked();
+        config.offline = mOfflineCb.isChecked();
+        return config;
+    }
+
     @Override
     protected void onVideoCallback(Uri videoUri) {
         if (transcodeRunner != null) {
@@ -124,6 +162,7 @@ public class TranscodeActivity extends BaseActivity implements TranscodeRunner.O
         }
         transcodeRunner = new TranscodeRunner(this, videoUri);
         transcodeRunner.setTransCodeListener(this);
+        transcodeRunner.setThrottlePolicy(mThrottlePolicy);
         transcodeRunner.prepareAsync();
     }
 
@@ -163,6 +202,11 @@ public class TranscodeActivity extends BaseActivity implements TranscodeRunner.O
                 mForce8BitCb.setEnabled(false);
                 mForce8BitCb.setChecked(false);
             }
+            //用户修改参数的同时，按界面上的默认参数预热编解码器
+            try {
+                transcodeRunner.prewarm(buildConfig());
+            } catch (NumberFormatException ignore) {
+            }
         });
     }
 
@@ -183,10 +227,11 @@ public class TranscodeActivity extends BaseActivity implements TranscodeRunner.O
     }
 
     @Override
-    public void onTranscodeProgress(int current) {
-        runOnUiThread(() -> {
-            showOrUpdateProgress(current);
-        });
+    public void onTranscodeProgress(TranscodeProgress progress) {
+        //上一次的刷新还没执行时只替换进度，不再发送消息
+        if (mPendingProgress.getAndSet(progress) == null) {
+            runOnUiThread(mProgressUpdater);
+        }
     }
 
     @Override
@@ -204,7 +249,7 @@ public class TranscodeActivity extends BaseActivity implements TranscodeRunner.O
     }
 
     @UiThread
-    private void showOrUpdateProgress(int current) {
+    private void showOrUpdateProgress(TranscodeProgress progress) {
         if (mProgressDialog == null) {
             mProgressDialog = new ProgressDialog(this);
             mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
@@ -212,8 +257,14 @@ public class TranscodeActivity extends BaseActivity implements TranscodeRunner.O
             mProgressDialog.setCanceledOnTouchOutside(false);
             mProgressDialog.setMax(100);
             mProgressDialog.setTitle("正在转码");
+            //没有初始的message时，之后设置的message不会显示
+            mProgressDialog.setMessage("");
         }
-        mProgressDialog.setProgress(current);
+        mProgressDialog.setProgress(progress.percent);
+        String eta = progress.etaMs >= 0 ? (progress.etaMs + 999) / 1000 + "秒" : "计算中";
+        mProgressDialog.setMessage(String.format(Locale.US, "%d帧（丢弃%d帧），%.1ffps，%.2fMbps，剩余%s",
+                progress.encodedFrames, progress.droppedFrames, progress.fps,
+                progress.bitrate / 1_000_000f, eta));
         if (!mProgressDialog.isShowing()) {
             mProgressDialog.show();
         }
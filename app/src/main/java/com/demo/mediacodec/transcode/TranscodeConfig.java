@@ -1,6 +1,7 @@
 package com.demo.mediacodec.transcode;
 
 import java.io.File;
+import java.util.List;
 
 /**
  * @author : chenqiao
@@ -11,8 +12,34 @@ public class TranscodeConfig {
     public boolean h265;
     public int outWidth;
     public int outHeight;
+    //小于等于0时根据分辨率、帧率自动选择，支持CQ的编码器使用恒定质量模式
     public int bitrate;
+    //CQ模式的画质，0~1，映射到编码器的质量范围
+    public float quality = 0.7f;
+    //使用编码器最高的复杂度换取压缩率：同样的码率画质更好，或者同样的画质文件更小，编码更慢
+    public boolean highCompression;
+    //目标文件大小（字节），大于0时忽略bitrate，根据已写入的大小动态调整码率
+    public long targetSizeBytes;
     public int fps;
+    //关键帧间隔（秒），0表示全部是关键帧，负数表示只有第一帧是关键帧。
+    //Android 7.1以下只支持整数秒：正数四舍五入到至少1秒，负数按-1处理
+    public float gopSeconds = 1f;
+    //检测到场景切换时额外插入关键帧
+    public boolean sceneCutDetection;
     public boolean force8Bit;
     public boolean keepHdr;
+    //离线模式：编解码器使用非实时优先级和最高的运行速率，尽可能快地完成转码
+    public boolean offline;
+    //恒定帧率输出：按fps的固定间隔生成时间戳，对可变帧率的源视频重复或丢弃帧
+    public boolean constantFrameRate;
+    //渲染时附加的画面处理，为null则不处理
+    public RenderFilter filter;
+    //叠加的水印、角标等图片，为null则不叠加
+    public List<VideoOverlay> overlays;
+    //进度回调的最小间隔（毫秒），逐帧回调会给主线程发送大量消息
+    public long progressIntervalMs = 250;
+    //超过这个时间（毫秒）没有写入新的帧时认为流水线卡住，小于等于0时不检测
+    public long stallTimeoutMs = 10_000;
+    //卡住时先尝试从关键帧恢复一次，仍然卡住再报错；为false时直接报错，批量转码时可以尽快释放编解码器
+    public boolean stallRecovery = true;
 }
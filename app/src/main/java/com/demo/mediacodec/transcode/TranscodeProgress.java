@@ -0,0 +1,33 @@
+package com.demo.mediacodec.transcode;
+
+/**
+ * 转码进度，按{@link TranscodeConfig#progressIntervalMs}的间隔合并后回调
+ *
+ * @date : 2026/10/19
+ */
+public class TranscodeProgress {
+    //0~100，按已经处理（编码或者丢弃）到的时间计算
+    public final int percent;
+    //已经编码输出的帧数
+    public final int encodedFrames;
+    //解码后没有送去编码的帧数（降帧率、恒定帧率丢弃等）
+    public final int droppedFrames;
+    //最近一段时间的编码速度
+    public final float fps;
+    //目前为止输出的平均码率（bps）
+    public final long bitrate;
+    //平滑后的预计剩余时间（毫秒），还无法估计时为-1
+    public final long etaMs;
+    public final long elapsedMs;
+
+    TranscodeProgress(int percent, int encodedFrames, int droppedFrames, float fps, long bitrate,
+                      long etaMs, long elapsedMs) {
+        this.percent = percent;
+        this.encodedFrames = encodedFrames;
+        this.droppedFrames = droppedFrames;
+        this.fps = fps;
+        this.bitrate = bitrate;
+        this.etaMs = etaMs;
+        this.elapsedMs = elapsedMs;
+    }
+}
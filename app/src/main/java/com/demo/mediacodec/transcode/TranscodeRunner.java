@@ -2,7 +2,10 @@ package com.demo.mediacodec.transcode;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.media.Image;
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaDataSource;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
@@ -12,17 +15,27 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.Surface;
 
 import com.demo.mediacodec.MediaCodecUtils;
+import com.demo.mediacodec.TraceUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 /**
  * 视频转码的原理：
@@ -36,6 +49,9 @@ import androidx.annotation.NonNull;
  */
 public class TranscodeRunner {
 
+    //逐帧的日志每帧都会拼接字符串，只在调试时打开
+    private static final boolean VERBOSE = false;
+
     private InputSurface mEncoderInputSurface;
     private OutputSurface mDecoderOutputSurface;
 
@@ -45,7 +61,10 @@ public class TranscodeRunner {
 
         void onError(Exception e);
 
-        void onTranscodeProgress(int current);
+        /**
+         * 按{@link TranscodeConfig#progressIntervalMs}的间隔回调，在编解码的回调线程调用
+         */
+        void onTranscodeProgress(TranscodeProgress progress);
 
         void onTranscodeDone(File output);
 
@@ -53,9 +72,26 @@ public class TranscodeRunner {
 
     private final Context mContext;
     private final Uri mVideoUri;
+    //边写边转码时的数据源，和mVideoUri二选一
+    private final MediaDataSource mDataSource;
     private TranscodeConfig mConfig;
     private ParcelFileDescriptor pf;
     private MediaFormat mOriVideoFormat;
+    //解码器使用的格式，是从Extractor重新获取的副本，查找解码器时的降级修改不会影响mOriVideoFormat
+    private MediaFormat mDecodeFormat;
+    //prepare时就开始的HDRVivid判定，和用户设置参数、创建编解码器并行
+    private Future<Boolean> mHdrVividProbe;
+    //预热任务，以及预热成功的编码器对应的参数
+    private volatile FutureTask<Void> mPrewarmTask;
+    private String mPrewarmKey;
+    //预热时createOutputFormat修正后的帧率，使用预热的编码器时同步到mConfig
+    private int mPrewarmFps;
+    private VideoOutputConfig mPrewarmOutputConfig;
+    //预热线程是否还在运行，以及是否已经release，guarded by mPrewarmLock。
+    //release时预热还没结束的话，由预热线程在结束时释放
+    private final Object mPrewarmLock = new Object();
+    private boolean mPrewarming;
+    private volatile boolean mReleased;
     private MediaFormat mOutputFormat;
     private MediaFormat mRealOutputFormat;
 
@@ -68,6 +104,9 @@ public class TranscodeRunner {
     private boolean mMaybeSwitchWH;
 
     private OnTranscodeListener listener;
+    //温控降速策略，为null时不限速
+    private ThermalThrottlePolicy mThrottlePolicy;
+    private ThermalThrottlePolicy.Session mThrottleSession;
 
     //媒体提取器
     private MediaExtractor mMediaExtractor;
@@ -83,6 +122,21 @@ public class TranscodeRunner {
     //解码回调线程
     private HandlerThread mDecodeCodecThread;
     private Handler mDecodeCodecHandler;
+    //在子线程提前读取样本，解码回调线程只拷贝数据
+    private SamplePrefetcher mSamplePrefetcher;
+    //stop超时、可能还阻塞在数据源里的读取线程，它退出之前不能访问Extractor
+    private SamplePrefetcher mLingeringPrefetcher;
+    //还没有填充数据的解码器输入buffer，只在解码回调线程访问
+    private final ArrayDeque<Integer> mDecoderInputIndices = new ArrayDeque<>();
+    private final Runnable mFeedDecoderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            MediaCodec decoder = mDecoder;
+            if (decoder != null) {
+                feedDecoderInput(decoder);
+            }
+        }
+    };
 
     //编码回调线程
     private HandlerThread mEncodeCodecThread;
@@ -91,21 +145,207 @@ public class TranscodeRunner {
     public TranscodeRunner(Context context, Uri uri) {
         mContext = context;
         mVideoUri = uri;
+        mDataSource = null;
+        ProgramBinaryCache.init(context);
+    }
+
+    /**
+     * 从自定义数据源读取视频，例如{@link GrowingFileDataSource}，可以在文件还在写入时就开始转码
+     */
+    public TranscodeRunner(Context context, MediaDataSource dataSource) {
+        mContext = context;
+        mVideoUri = null;
+        mDataSource = dataSource;
+        ProgramBinaryCache.init(context);
     }
 
     public void setTransCodeListener(OnTranscodeListener listener) {
         this.listener = listener;
     }
 
+    /**
+     * 设置温控降速策略，批量转码时所有的TranscodeRunner应该共用同一个策略
+     */
+    public void setThrottlePolicy(ThermalThrottlePolicy policy) {
+        mThrottlePolicy = policy;
+    }
+
+    /**
+     * 预热：在用户设置转码参数的同时，提前创建解码器，并按预计的参数创建、configure编码器。
+     * 开始转码时参数和预计的一致就直接使用，否则丢弃预热的编码器。需要在{@link OnTranscodeListener#onPrepareDone}之后调用
+     *
+     * @param likelyConfig 预计的转码参数，一般是界面上的默认值
+     */
+    public void prewarm(@NonNull TranscodeConfig likelyConfig) {
+        if (mOriVideoFormat == null || mPrewarmTask != null || mDecoder != null || mEncoder != null) {
+            return;
+        }
+        FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                try {
+                    doPrewarm(likelyConfig);
+                } finally {
+                    onPrewarmFinished();
+                }
+                return null;
+            }
+        });
+        synchronized (mPrewarmLock) {
+            if (mReleased) {
+                return;
+            }
+            mPrewarming = true;
+        }
+        mPrewarmTask = task;
+        new Thread(task, "TranscodePrewarm").start();
+    }
+
+    /**
+     * 预热线程结束前调用，预热期间已经release的话，在这里释放预热创建的编解码器等资源
+     */
+    private void onPrewarmFinished() {
+        boolean released;
+        synchronized (mPrewarmLock) {
+            mPrewarming = false;
+            released = mReleased;
+        }
+        if (released) {
+            //在预热任务自身的线程里，不能再等待它完成
+            mPrewarmTask = null;
+            releaseInternal();
+        }
+    }
+
+    private void doPrewarm(TranscodeConfig likelyConfig) {
+        if (mReleased) {
+            return;
+        }
+        if (!isExtractorIdle()) {
+            //上一次转码的读取线程还在访问Extractor
+            return;
+        }
+        if (mThrottlePolicy != null && mThrottleSession == null) {
+            //预热的编解码器也占用硬件资源，计入同时进行的会话数；开始转码时直接使用这个会话
+            mThrottleSession = mThrottlePolicy.tryAcquireSession();
+            if (mThrottleSession == null) {
+                Log.i("TranscodeRunner", "prewarm: 同时进行的转码数已达上限或者需要冷却，不预热");
+                return;
+            }
+        }
+        long startMs = SystemClock.elapsedRealtime();
+        try {
+            createDecoder(mMediaExtractor.getTrackFormat(mVideoTrackerIndex));
+        } catch (Exception e) {
+            Log.w("TranscodeRunner", "prewarm: 创建解码器失败", e);
+            releaseDecoder();
+        }
+        if (mReleased) {
+            //已经release，不再创建编码器，解码器在onPrewarmFinished中释放
+            return;
+        }
+        mConfig = likelyConfig;
+        //createOutputFormat会按源视频修正fps，key需要在这之前计算，和开始转码时的参数按同样的值比较
+        String key = encoderKey(likelyConfig);
+        VideoOutputConfig outputConfig = createOutputConfig(likelyConfig);
+        try {
+            innerPrepareEncoder(outputConfig, true);
+            mPrewarmKey = key;
+            mPrewarmFps = likelyConfig.fps;
+            mPrewarmOutputConfig = outputConfig;
+        } catch (Exception e) {
+            Log.w("TranscodeRunner", "prewarm: 创建编码器失败", e);
+            releaseEncoder();
+        }
+        Log.i("TranscodeRunner", "预热耗时: " + (SystemClock.elapsedRealtime() - startMs) + "ms");
+    }
+
+    private void awaitPrewarm() {
+        FutureTask<Void> task = mPrewarmTask;
+        if (task == null) {
+            return;
+        }
+        try {
+            task.get();
+        } catch (Exception e) {
+            Log.w("TranscodeRunner", "awaitPrewarm: ", e);
+        }
+        mPrewarmTask = null;
+    }
+
+    /**
+     * 取出预热的编码器，参数和预热时不一致则释放
+     *
+     * @return 预热时使用的VideoOutputConfig，没有可用的预热编码器时返回null
+     */
+    private VideoOutputConfig takePrewarmedEncoder() {
+        String key = mPrewarmKey;
+        VideoOutputConfig outputConfig = mPrewarmOutputConfig;
+        mPrewarmKey = null;
+        mPrewarmOutputConfig = null;
+        if (key == null || mEncoder == null) {
+            return null;
+        }
+        if (!key.equals(encoderKey(mConfig))) {
+            Log.i("TranscodeRunner", "转码参数和预热时不一致，丢弃预热的编码器");
+            releaseEncoder();
+            return null;
+        }
+        //不再经过createOutputFormat，使用预热时修正过的帧率
+        mConfig.fps = mPrewarmFps;
+        return outputConfig;
+    }
+
+    /**
+     * 使用预热的编码器，只需要创建InputSurface；失败时按正常流程重新创建并降级
+     */
+    private void prepareEncoderWithPrewarmed(VideoOutputConfig outputConfig) throws Exception {
+        try {
+            prepareEncoderInputSurface(outputConfig);
+        } catch (NoSupportMediaCodecException e) {
+            Log.w("TranscodeRunner", "预热的编码器创建InputSurface失败，重新准备", e);
+            innerPrepareEncoder(outputConfig, false);
+        }
+    }
+
+    private static VideoOutputConfig createOutputConfig(TranscodeConfig config) {
+        VideoOutputConfig outputConfig = new VideoOutputConfig(MediaCodecUtils.OutputLevel.DEFAULT);
+        if (!config.keepHdr) {
+            outputConfig.outputLevel = MediaCodecUtils.OutputLevel.NO_HDR;
+        }
+        outputConfig.force8Bit = config.force8Bit;
+        return outputConfig;
+    }
+
+    /**
+     * 影响编码器创建、configure的参数，一致时可以使用预热的编码器
+     */
+    private static String encoderKey(TranscodeConfig config) {
+        return config.h265 + "|" + config.outWidth + "x" + config.outHeight + "|" + config.bitrate
+                + "|" + config.quality + "|" + config.highCompression + "|" + config.targetSizeBytes
+                + "|" + config.fps
+                + "|" + config.gopSeconds + "|" + config.constantFrameRate + "|" + config.force8Bit
+                + "|" + config.keepHdr + "|" + config.offline;
+    }
+
     public void prepareAsync() {
         new Thread(new Runnable() {
             @Override
             public void run() {
                 mMediaExtractor = new MediaExtractor();
                 try {
-                    ContentResolver contentResolver = mContext.getContentResolver();
-                    pf = contentResolver.openFileDescriptor(mVideoUri, "r");
-                    mMediaExtractor.setDataSource(pf.getFileDescriptor());
+                    if (mDataSource != null) {
+                        if (mDataSource instanceof GrowingFileDataSource
+                                && !((GrowingFileDataSource) mDataSource).isStreamable()) {
+                            //moov在文件末尾，Extractor需要等文件写完才能解析出轨道信息
+                            Log.w("TranscodeRunner", "prepare: 源文件不是fast-start格式，需要等待文件写完");
+                        }
+                        mMediaExtractor.setDataSource(mDataSource);
+                    } else {
+                        ContentResolver contentResolver = mContext.getContentResolver();
+                        pf = contentResolver.openFileDescriptor(mVideoUri, "r");
+                        mMediaExtractor.setDataSource(pf.getFileDescriptor());
+                    }
                     int trackCount = mMediaExtractor.getTrackCount();
                     for (int i = 0; i < trackCount; i++) {
                         MediaFormat format = mMediaExtractor.getTrackFormat(i);
@@ -117,6 +357,7 @@ public class TranscodeRunner {
                             //选中该视频轨道，后面读取轨道数据，就是读取的该轨道的
                             mVideoTrackerIndex = i;
                             mMediaExtractor.selectTrack(i);
+                            startHdrVividProbe();
                             if (listener != null) {
                                 listener.onPrepareDone(mOriVideoFormat);
                             }
@@ -124,7 +365,7 @@ public class TranscodeRunner {
                         }
                     }
                     callError(new IOException("没有找到视频轨道！"));
-                } catch (IOException e) {
+                } catch (IOException | RuntimeException e) {
                     e.printStackTrace();
                     callError(e);
                 }
@@ -132,31 +373,43 @@ public class TranscodeRunner {
         }).start();
     }
 
-    public void startTranscode(@NonNull TranscodeConfig transcodeConfig) {
-        mConfig = transcodeConfig;
-        new Thread(new Runnable() {
-
-            private void innerPrepareEncoder(VideoOutputConfig outputConfig) throws Exception {
-                try {
-                    prepareEncoder(outputConfig);
-                } catch (NoSupportMediaCodecException e) {
-                    if (outputConfig.outputLevel == MediaCodecUtils.OutputLevel.DEFAULT) {
-                        //降到NoProfile模式
-                        outputConfig.outputLevel = MediaCodecUtils.OutputLevel.NO_PROFILE;
-                        e.printStackTrace();
-                        Log.w("TranscodeRunner", "prepareEncoder: 降级至NoProfile模式");
-                        innerPrepareEncoder(outputConfig);
-                    } else if (outputConfig.outputLevel == MediaCodecUtils.OutputLevel.NO_PROFILE) {
-                        //降到NoHDR模式
-                        outputConfig.outputLevel = MediaCodecUtils.OutputLevel.NO_HDR;
-                        e.printStackTrace();
-                        Log.w("TranscodeRunner", "prepareEncoder: 降级至NoHDR模式");
-                        innerPrepareEncoder(outputConfig);
-                    } else {
-                        throw e;
-                    }
+    /**
+     * HDRVivid的判定需要用MediaMetadataRetriever重新解析文件，比较耗时，只对BT2020的视频在子线程提前进行
+     */
+    private void startHdrVividProbe() {
+        mHdrVividProbe = null;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N
+                || !mOriVideoFormat.containsKey(MediaFormat.KEY_COLOR_STANDARD)
+                || mOriVideoFormat.getInteger(MediaFormat.KEY_COLOR_STANDARD)
+                != MediaFormat.COLOR_STANDARD_BT2020) {
+            return;
+        }
+        if (mVideoUri == null) {
+            //MediaMetadataRetriever释放时会关闭传入的MediaDataSource，不能和Extractor共用，
+            //数据源模式下无法判定HDRVivid，按普通的HDR处理
+            Log.w("TranscodeRunner", "数据源模式无法判定HDRVivid，按HDR10/HLG转码");
+            FutureTask<Boolean> task = new FutureTask<>(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return false;
                 }
+            });
+            task.run();
+            mHdrVividProbe = task;
+            return;
+        }
+        FutureTask<Boolean> task = new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return MediaCodecUtils.isHDRVivid(mContext, null, mVideoUri, null);
             }
+        });
+        mHdrVividProbe = task;
+        new Thread(task, "HdrVividProbe").start();
+    }
+
+    public void startTranscode(@NonNull TranscodeConfig transcodeConfig) {
+        new Thread(new Runnable() {
 
             @Override
             public void run() {
@@ -165,15 +418,64 @@ public class TranscodeRunner {
                     return;
                 }
                 try {
-                    VideoOutputConfig outputConfig =
-                            new VideoOutputConfig(MediaCodecUtils.OutputLevel.DEFAULT);
-                    if (!mConfig.keepHdr) {
-                        outputConfig.outputLevel = MediaCodecUtils.OutputLevel.NO_HDR;
+                    //预热还没完成时等它完成，之后再修改mConfig
+                    awaitPrewarm();
+                    if (mLingeringPrefetcher != null) {
+                        if (!isExtractorIdle()) {
+                            throw new IllegalStateException("上一次转码的读取线程还没有退出，无法开始转码");
+                        }
+                        //上一次reset时没能重置Extractor
+                        rewindExtractor();
+                    }
+                    mConfig = transcodeConfig;
+                    if (mThrottlePolicy != null && mThrottleSession == null) {
+                        //设备过热时在这里等待冷却；预热时已经取得会话的话直接使用
+                        mThrottleSession = mThrottlePolicy.acquireSession();
+                    }
+                    long prepareStartMs = SystemClock.elapsedRealtime();
+                    VideoOutputConfig outputConfig = takePrewarmedEncoder();
+                    boolean encoderPrewarmed = outputConfig != null;
+                    if (!encoderPrewarmed) {
+                        outputConfig = createOutputConfig(mConfig);
+                    }
+                    //解码器的创建不依赖编码器，和编码器的创建、configure并行；
+                    //解码器的configure需要编码器创建的EGL环境（OutputSurface），在两者都完成后进行
+                    FutureTask<Void> decoderTask = null;
+                    if (mDecoder == null) {
+                        MediaFormat decodeFormat = mMediaExtractor.getTrackFormat(mVideoTrackerIndex);
+                        decoderTask = new FutureTask<>(new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                createDecoder(decodeFormat);
+                                return null;
+                            }
+                        });
+                        new Thread(decoderTask, "CreateDecoder").start();
+                    }
+                    try {
+                        if (encoderPrewarmed) {
+                            prepareEncoderWithPrewarmed(outputConfig);
+                        } else {
+                            innerPrepareEncoder(outputConfig, false);
+                        }
+                    } catch (Exception e) {
+                        //出错时也要等解码器创建完，reset才能释放掉
+                        if (decoderTask != null) {
+                            try {
+                                decoderTask.get();
+                            } catch (Exception ignore) {
+                            }
+                        }
+                        throw e;
+                    }
+                    if (decoderTask != null) {
+                        awaitTask(decoderTask);
                     }
-                    outputConfig.force8Bit = mConfig.force8Bit;
-                    innerPrepareEncoder(outputConfig);
                     prepareDecoder(outputConfig);
                     _start();
+                    Log.i("TranscodeRunner", "编解码器准备耗时: "
+                            + (SystemClock.elapsedRealtime() - prepareStartMs) + "ms"
+                            + (encoderPrewarmed ? "，使用了预热的编码器" : ""));
                 } catch (Exception e) {
                     e.printStackTrace();
                     callError(e);
@@ -182,10 +484,69 @@ public class TranscodeRunner {
         }).start();
     }
 
+    /**
+     * 准备编码器，失败时逐级降级重试
+     *
+     * @param createOnly 只创建、configure编码器，不创建InputSurface，也不降级到ByteBuffer模式（预热时使用）
+     */
+    private void innerPrepareEncoder(VideoOutputConfig outputConfig, boolean createOnly)
+            throws Exception {
+        try {
+            if (createOnly) {
+                createEncoder(outputConfig);
+            } else {
+                prepareEncoder(outputConfig);
+            }
+        } catch (NoSupportMediaCodecException e) {
+            if (outputConfig.outputLevel == MediaCodecUtils.OutputLevel.DEFAULT) {
+                //降到NoProfile模式
+                outputConfig.outputLevel = MediaCodecUtils.OutputLevel.NO_PROFILE;
+                e.printStackTrace();
+                Log.w("TranscodeRunner", "prepareEncoder: 降级至NoProfile模式");
+                innerPrepareEncoder(outputConfig, createOnly);
+            } else if (outputConfig.outputLevel == MediaCodecUtils.OutputLevel.NO_PROFILE) {
+                //降到NoHDR模式
+                outputConfig.outputLevel = MediaCodecUtils.OutputLevel.NO_HDR;
+                e.printStackTrace();
+                Log.w("TranscodeRunner", "prepareEncoder: 降级至NoHDR模式");
+                innerPrepareEncoder(outputConfig, createOnly);
+            } else if (!outputConfig.useByteBuffer && !createOnly) {
+                //最后尝试不依赖Surface和EGL的ByteBuffer模式
+                outputConfig.useByteBuffer = true;
+                e.printStackTrace();
+                Log.w("TranscodeRunner", "prepareEncoder: 降级至ByteBuffer模式");
+                innerPrepareEncoder(outputConfig, createOnly);
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 停止转码并释放编解码器，可以再次开始转码。
+     * 会等待预热完成、读取线程和看门狗退出（各最多1秒），不要在主线程调用，主线程使用{@link #release()}
+     */
     public void reset() {
-        mMediaExtractor.unselectTrack(mVideoTrackerIndex);
-        mMediaExtractor.selectTrack(mVideoTrackerIndex);
-        mMediaExtractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        awaitPrewarm();
+        mPrewarmKey = null;
+        mPrewarmOutputConfig = null;
+        if (mWatchdog != null) {
+            mWatchdog.stop();
+        }
+        //Extractor由读取线程使用，先停止读取再seek
+        if (mSamplePrefetcher != null) {
+            if (!mSamplePrefetcher.stop()) {
+                mLingeringPrefetcher = mSamplePrefetcher;
+            }
+            mSamplePrefetcher = null;
+            TraceUtils.endAsync("Transcode", System.identityHashCode(this));
+        }
+        if (isExtractorIdle()) {
+            rewindExtractor();
+        } else {
+            //读取线程醒来后还会访问Extractor，下次开始转码前再重置
+            Log.w("TranscodeRunner", "reset: 读取线程还没有退出，暂不重置Extractor");
+        }
 
         if (mEncoderInputSurface != null) {
             mEncoderInputSurface.release();
@@ -195,7 +556,38 @@ public class TranscodeRunner {
             mDecoderOutputSurface.release();
         }
         mDecoderOutputSurface = null;
+        //FBO随EGLContext一起释放
+        mSceneCutDetector = null;
+        if (mYuvConverter != null) {
+            mYuvConverter.release();
+        }
+        mYuvConverter = null;
+        mEncoderInputIndices.clear();
+
+        releaseDecoder();
+        releaseEncoder();
+
+        if (mMuxer != null) {
+            try {
+                mMuxer.stop();
+            } catch (Exception e) {
+                Log.w("TranscodeRunner", "stop Muxer: ", e);
+            }
+            try {
+                mMuxer.release();
+            } catch (Exception e) {
+                Log.w("TranscodeRunner", "release Muxer: ", e);
+            }
+            mMuxer = null;
+        }
+        mVideoOutputTrackIndex = 0;
+        if (mThrottleSession != null) {
+            mThrottleSession.release();
+            mThrottleSession = null;
+        }
+    }
 
+    private void releaseDecoder() {
         if (mDecoder != null) {
             try {
                 mDecoder.release();
@@ -209,7 +601,9 @@ public class TranscodeRunner {
         }
         mDecodeCodecThread = null;
         mDecodeCodecHandler = null;
+    }
 
+    private void releaseEncoder() {
         if (mEncoder != null) {
             try {
                 mEncoder.stop();
@@ -228,40 +622,106 @@ public class TranscodeRunner {
         }
         mEncodeCodecThread = null;
         mEncodeCodecHandler = null;
+    }
 
-        if (mMuxer != null) {
-            try {
-                mMuxer.stop();
-            } catch (Exception e) {
-                Log.w("TranscodeRunner", "stop Muxer: ", e);
-            }
-            try {
-                mMuxer.release();
-            } catch (Exception e) {
-                Log.w("TranscodeRunner", "release Muxer: ", e);
+    /**
+     * 释放所有资源，不会阻塞调用线程，可以在主线程调用。
+     * 预热还在进行时让它尽快结束，由预热线程释放；否则在单独的线程中释放
+     */
+    public void release() {
+        boolean prewarming;
+        synchronized (mPrewarmLock) {
+            if (mReleased) {
+                return;
             }
-            mMuxer = null;
+            mReleased = true;
+            prewarming = mPrewarming;
         }
-        mVideoOutputTrackIndex = 0;
+        if (prewarming) {
+            Log.i("TranscodeRunner", "release: 预热还没结束，由预热线程释放");
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                releaseInternal();
+            }
+        }, "TranscodeRelease").start();
     }
 
-    public void release() {
+    private void releaseInternal() {
         reset();
-        if (pf != null) {
+        MediaExtractor extractor = mMediaExtractor;
+        ParcelFileDescriptor fd = pf;
+        Runnable releaseExtractor = new Runnable() {
+            @Override
+            public void run() {
+                if (extractor != null) {
+                    extractor.release();
+                }
+                if (fd != null) {
+                    try {
+                        fd.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        };
+        SamplePrefetcher lingering = mLingeringPrefetcher;
+        if (lingering != null && !lingering.isExited()) {
+            //读取线程还在访问Extractor，由它退出时释放；关闭数据源可以让阻塞的读取尽快失败返回
+            Log.w("TranscodeRunner", "release: 读取线程还没有退出，Extractor在它退出后释放");
+            lingering.runWhenExited(releaseExtractor);
+        } else {
+            releaseExtractor.run();
+        }
+        mLingeringPrefetcher = null;
+        if (mDataSource != null) {
             try {
-                pf.close();
+                mDataSource.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
-        if (mMediaExtractor != null) {
-            mMediaExtractor.release();
+    }
+
+    /**
+     * 上一次转码的读取线程已经退出，可以访问Extractor
+     */
+    private boolean isExtractorIdle() {
+        SamplePrefetcher lingering = mLingeringPrefetcher;
+        return lingering == null || lingering.isExited();
+    }
+
+    /**
+     * 回到开头，准备下一次转码。只能在读取线程已经退出时调用
+     */
+    private void rewindExtractor() {
+        mLingeringPrefetcher = null;
+        mMediaExtractor.unselectTrack(mVideoTrackerIndex);
+        mMediaExtractor.selectTrack(mVideoTrackerIndex);
+        mMediaExtractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+    }
+
+    /**
+     * 等待子线程的任务完成，任务中抛出的异常原样抛出
+     */
+    private static void awaitTask(FutureTask<?> task) throws Exception {
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
         }
     }
 
-    private void callProgress(int current) {
-        if (listener != null) {
-            listener.onTranscodeProgress(current);
+    private void callProgress(@Nullable TranscodeProgress progress) {
+        if (progress != null && listener != null) {
+            listener.onTranscodeProgress(progress);
         }
     }
 
@@ -276,7 +736,9 @@ public class TranscodeRunner {
         mOriVideoMime = mOriVideoFormat.getString(MediaFormat.KEY_MIME);
         mOriVideoWidth = mOriVideoFormat.getInteger(MediaFormat.KEY_WIDTH);
         mOriVideoHeight = mOriVideoFormat.getInteger(MediaFormat.KEY_HEIGHT);
-        mOriVideoFps = mOriVideoFormat.getInteger(MediaFormat.KEY_FRAME_RATE);
+        //可变帧率的视频不一定带有KEY_FRAME_RATE
+        mOriVideoFps = mOriVideoFormat.containsKey(MediaFormat.KEY_FRAME_RATE)
+                ? mOriVideoFormat.getInteger(MediaFormat.KEY_FRAME_RATE) : 0;
         mMaybeSwitchWH = false;
         if (mOriVideoFormat.containsKey(MediaFormat.KEY_ROTATION)) {
             mOriVideoRotation = mOriVideoFormat.getInteger(MediaFormat.KEY_ROTATION);
@@ -286,22 +748,41 @@ public class TranscodeRunner {
                 mMaybeSwitchWH = true;
             }
         }
-        mVideoDurationUs = mOriVideoFormat.getLong(MediaFormat.KEY_DURATION);
+        //边写边转码、分段的MP4可能没有时长，按未知处理：不显示百分比和剩余时间，不能使用目标大小模式
+        mVideoDurationUs = mOriVideoFormat.containsKey(MediaFormat.KEY_DURATION)
+                ? mOriVideoFormat.getLong(MediaFormat.KEY_DURATION) : 0;
+        if (mVideoDurationUs <= 0) {
+            Log.w("TranscodeRunner", "源视频没有时长信息");
+        }
     }
 
     /**
      * 准备编码器
      */
     private void prepareEncoder(VideoOutputConfig outputConfig) throws Exception {
-        mOutputFormat = MediaCodecUtils.createOutputFormat(mContext, mVideoUri, mOriVideoFormat,
-                mConfig, outputConfig);
+        createEncoder(outputConfig);
+        prepareEncoderInputSurface(outputConfig);
+    }
+
+    /**
+     * 查找、创建并configure编码器
+     */
+    private void createEncoder(VideoOutputConfig outputConfig) throws Exception {
+        mTargetSizeController = null;
+        if (mConfig.targetSizeBytes > 0 && mVideoDurationUs > 0) {
+            //目标大小模式：按时长估算初始码率，编码过程中再动态调整
+            mTargetSizeController = new TargetSizeController(mConfig.targetSizeBytes, mVideoDurationUs);
+        } else if (mConfig.targetSizeBytes > 0) {
+            Log.w("TranscodeRunner", "源视频没有时长，无法按目标大小估算码率，使用普通的码率控制");
+        }
+        mOutputFormat = createBaseOutputFormat(outputConfig);
 
         String codecName = MediaCodecUtils.findEncoderByFormat(mOutputFormat);
         if (TextUtils.isEmpty(codecName)) {
             if (mConfig.outWidth < mConfig.outHeight) {
                 //有些设备下面判断是否支持写的不够好，这里主动交换一下width和height，看能否获取出编码器
                 MediaFormat tempF = MediaCodecUtils.createOutputFormat(mContext, mVideoUri
-                        , mOriVideoFormat, mConfig, outputConfig);
+                        , mOriVideoFormat, mConfig, outputConfig, mHdrVividProbe);
                 tempF.setInteger(MediaFormat.KEY_WIDTH, mConfig.outHeight);
                 tempF.setInteger(MediaFormat.KEY_HEIGHT, mConfig.outWidth);
                 codecName = MediaCodecUtils.findEncoderByFormat(tempF);
@@ -313,6 +794,9 @@ public class TranscodeRunner {
         }
         Log.i("TranscodeRunner", "使用编码器" +
                 ": " + codecName);
+        if (mEncodeCodecThread != null) {
+            mEncodeCodecThread.quitSafely();
+        }
         mEncodeCodecThread = new HandlerThread("EncodeCodecThread");
         mEncodeCodecThread.start();
         mEncodeCodecHandler = new Handler(mEncodeCodecThread.getLooper());
@@ -323,31 +807,66 @@ public class TranscodeRunner {
             } catch (Exception ignore) {
             }
         }
+        mEncoderInputIndices.clear();
         mEncoder = MediaCodec.createByCodecName(codecName);
 
-        mEncoder.setCallback(new MediaCodec.Callback() {
+        //根据探测结果开启B帧，还没有结果时不开启，探测在后台进行
+        int bFrameSupport = EncoderProbe.getBFrameSupport(mContext, codecName,
+                mOutputFormat.getString(MediaFormat.KEY_MIME));
+        applyEncoderOptions(mOutputFormat, codecName, bFrameSupport, mConfig.offline);
+
+        MediaCodec.Callback encoderCallback = new MediaCodec.Callback() {
             @Override
             public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+                //只有ByteBuffer模式才会回调，Surface模式的输入来自InputSurface
+                mEncoderInputIndices.offer(index);
             }
 
             @Override
             public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
                                                 @NonNull MediaCodec.BufferInfo info) {
-                ByteBuffer outputBuffer = codec.getOutputBuffer(index);
-                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0 && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
-                    mMuxer.writeSampleData(mVideoOutputTrackIndex, outputBuffer, info);
-                    long presentationTimeUs = info.presentationTimeUs;
-                    callProgress((int) (presentationTimeUs * 100 / mVideoDurationUs));
-                    Log.i("Encoder", "编码pts: " + presentationTimeUs);
-
-                    synchronized (hdrInfoLock) {
-                        hdrInfoLock.notifyAll();
+                TraceUtils.begin("Encoder.onOutputBuffer");
+                try {
+                    ByteBuffer outputBuffer = codec.getOutputBuffer(index);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0 && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                        long presentationTimeUs = info.presentationTimeUs;
+                        mWatchdog.progress(PipelineWatchdog.Stage.ENCODER_OUTPUT, presentationTimeUs);
+                        TraceUtils.begin("Muxer.writeSampleData");
+                        mWatchdog.begin(PipelineWatchdog.Stage.MUXER);
+                        try {
+                            mMuxer.writeSampleData(mVideoOutputTrackIndex, outputBuffer, info);
+                        } finally {
+                            mWatchdog.end(PipelineWatchdog.Stage.MUXER);
+                            TraceUtils.end();
+                        }
+                        mWatchdog.progress(PipelineWatchdog.Stage.MUXER, presentationTimeUs);
+                        TraceUtils.counter("Encoder.pts", presentationTimeUs);
+                        callProgress(mProgressTracker.onFrameEncoded(presentationTimeUs, info.size));
+                        if (VERBOSE) {
+                            Log.i("Encoder", "编码pts: " + presentationTimeUs);
+                        }
+                        if (mTargetSizeController != null) {
+                            adjustBitrate(codec, info.size, presentationTimeUs);
+                        }
+                        if (mThrottleSession != null) {
+                            checkThroughput();
+                        }
+
+                        synchronized (hdrInfoLock) {
+                            hdrInfoLock.notifyAll();
+                        }
                     }
-                }
-                codec.releaseOutputBuffer(index, false);
-                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    Log.i("Encoder", "编码已经完成");
-                    _transcodeComplete();
+                    codec.releaseOutputBuffer(index, false);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        Log.i("Encoder", "编码已经完成");
+                        if (mTargetSizeController != null) {
+                            Log.i("Encoder", "目标大小: " + mTargetSizeController.getTargetBytes()
+                                    + ", 实际写入: " + mTargetSizeController.getWrittenBytes());
+                        }
+                        _transcodeComplete();
+                    }
+                } finally {
+                    TraceUtils.end();
                 }
             }
 
@@ -372,14 +891,44 @@ public class TranscodeRunner {
                     }
                 }
             }
-        }, mEncodeCodecHandler);
-        try {
-            mEncoder.configure(mOutputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        } catch (Exception e) {
-            throw new NoSupportMediaCodecException("编码器Configure失败！outputFormat:" + mOutputFormat
-                    , e, outputConfig.outputLevel);
+        };
+        mEncoder.setCallback(encoderCallback, mEncodeCodecHandler);
+        configureEncoder(encoderCallback, codecName, bFrameSupport, mConfig.offline, outputConfig);
+    }
+
+    /**
+     * 按当前配置创建输出格式，目标大小模式时使用估算的初始码率
+     */
+    private MediaFormat createBaseOutputFormat(VideoOutputConfig outputConfig) throws Exception {
+        MediaFormat format = MediaCodecUtils.createOutputFormat(mContext, mVideoUri, mOriVideoFormat,
+                mConfig, outputConfig, mHdrVividProbe);
+        if (mTargetSizeController != null) {
+            format.setInteger(MediaFormat.KEY_BIT_RATE, mTargetSizeController.getInitialBitrate());
+        }
+        return format;
+    }
+
+    /**
+     * 设置和具体编码器相关的参数：码率控制模式、B帧以及离线模式的参数
+     */
+    private void applyEncoderOptions(MediaFormat format, String codecName, int bFrameSupport,
+                                     boolean offlineHints) {
+        //根据编码器能力选择码率控制模式
+        RateControlPlanner.apply(format, MediaCodecUtils.getCodecCapabilities(codecName,
+                format.getString(MediaFormat.KEY_MIME)), mConfig);
+        EncoderProbe.applyBFrames(format, bFrameSupport);
+        if (offlineHints) {
+            MediaCodecUtils.applyOfflineHints(format);
         }
+    }
 
+    /**
+     * 创建编码器的InputSurface及EGL环境，ByteBuffer模式不需要
+     */
+    private void prepareEncoderInputSurface(VideoOutputConfig outputConfig) throws Exception {
+        if (outputConfig.useByteBuffer) {
+            return;
+        }
         Surface surface = mEncoder.createInputSurface();
         try {
             mEncoderInputSurface = new InputSurface(surface, outputConfig);
@@ -391,36 +940,134 @@ public class TranscodeRunner {
         }
     }
 
+    /**
+     * 配置编码器，失败时依次去掉离线模式的参数、B帧再重试，这些参数不是所有编码器都接受。
+     * Q以下MediaFormat不能removeKey，所以重试时重新创建一份不带这些参数的输出格式
+     */
+    private void configureEncoder(MediaCodec.Callback callback, String codecName, int bFrameSupport,
+                                  boolean offlineHints, VideoOutputConfig outputConfig)
+            throws Exception {
+        while (true) {
+            Exception error;
+            try {
+                mEncoder.configure(mOutputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                return;
+            } catch (Exception e) {
+                error = e;
+            }
+            if (offlineHints) {
+                Log.w("TranscodeRunner", "prepareEncoder: 离线模式参数Configure失败，去掉后重试", error);
+                offlineHints = false;
+            } else if (bFrameSupport != EncoderProbe.B_FRAMES_UNSUPPORTED) {
+                //探测时可以使用B帧，但和实际的参数组合（HDR的Profile等）一起不支持
+                Log.w("TranscodeRunner", "prepareEncoder: 开启B帧后Configure失败，关闭B帧重试", error);
+                bFrameSupport = EncoderProbe.B_FRAMES_UNSUPPORTED;
+            } else {
+                throw new NoSupportMediaCodecException("编码器Configure失败！outputFormat:" + mOutputFormat
+                        , error, outputConfig.outputLevel);
+            }
+            mOutputFormat = createBaseOutputFormat(outputConfig);
+            applyEncoderOptions(mOutputFormat, codecName, bFrameSupport, offlineHints);
+            //configure失败后需要reset回到Uninitialized状态，再重新设置回调
+            mEncoder.reset();
+            mEncoder.setCallback(callback, mEncodeCodecHandler);
+        }
+    }
+
+    /**
+     * 配置解码器，离线模式的参数不被接受时去掉后重试
+     */
+    private void configureDecoder(MediaCodec.Callback callback, Surface surface) {
+        if (!mConfig.offline) {
+            mDecoder.configure(mDecodeFormat, surface, null, 0);
+            return;
+        }
+        //Q以下不能复制MediaFormat，失败时再重新创建
+        MediaFormat withoutHints = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                ? new MediaFormat(mDecodeFormat) : null;
+        MediaCodecUtils.applyOfflineHints(mDecodeFormat);
+        try {
+            mDecoder.configure(mDecodeFormat, surface, null, 0);
+        } catch (RuntimeException e) {
+            Log.w("TranscodeRunner", "prepareDecoder: 离线模式参数Configure失败，去掉后重试", e);
+            mDecodeFormat = withoutHints != null ? withoutHints : recreateDecodeFormat();
+            mDecoder.reset();
+            mDecoder.setCallback(callback, mDecodeCodecHandler);
+            mDecoder.configure(mDecodeFormat, surface, null, 0);
+        }
+    }
+
     private int decodeFrameIndex;
     private int encodeFrameIndex;
+    //开始编解码的时间，用于统计实际的转码速度
+    private long mStartTimeMs;
+    private ProgressTracker mProgressTracker;
+    //流水线卡住的检测，同时记录各阶段的状态用于出错时的日志
+    private PipelineWatchdog mWatchdog;
+    //卡住时最多尝试恢复的次数
+    private static final int MAX_STALL_RECOVERIES = 1;
+    private int mStallRecoveries;
+    //恢复后重新解码出的、时间戳不晚于这个值的帧已经送给过编码器，直接丢弃。只在解码回调线程访问
+    private long mResumeAfterUs;
+    //温控策略使用的速度统计
+    private static final long THROUGHPUT_INTERVAL_MS = 2000;
+    private long mThroughputCheckMs;
+    private int mThroughputFrames;
+    private Bundle mOperatingRateParams;
+    //configure时设置的运行速率，0表示没有设置。温控恢复时还原成这个值
+    private int mDecoderOperatingRate;
+    private int mEncoderOperatingRate;
+    //编解码器没有设置运行速率时，温控限速改为控制送入解码器的间隔，0表示不限制
+    private volatile long mPaceIntervalUs;
+    //下一个样本最早可以送入解码器的时间（uptime），只在解码回调线程访问
+    private long mNextFeedUs;
     private final Object hdrInfoLock = new Object();
+    //恒定帧率输出时的时间戳调度，非恒定帧率为null
+    private ConstantFrameRateScheduler mCfrScheduler;
+    //解码器最近一次输出格式中的hdr10+信息，之后解码出的帧都使用它
+    private final Hdr10PlusInfo mHdr10Info = new Hdr10PlusInfo();
+    //恒定帧率时当前锁定在纹理上的帧的hdr10+信息，重复输出时需要一起带上
+    private final Hdr10PlusInfo mLatchedHdr10Info = new Hdr10PlusInfo();
+    private Bundle mHdr10Params;
+    private boolean mDecoderFormatLogged;
+    //目标文件大小模式的码率控制，未开启时为null
+    private TargetSizeController mTargetSizeController;
+    private Bundle mBitrateParams;
+    //场景切换检测，未开启或者不支持时为null
+    private SceneCutDetector mSceneCutDetector;
+    private Bundle mSyncFrameParams;
+    //ByteBuffer模式下的YUV缩放、旋转，Surface模式为null
+    private YuvFrameConverter mYuvConverter;
+    //ByteBuffer模式下编码器空闲的输入buffer
+    private final ArrayBlockingQueue<Integer> mEncoderInputIndices = new ArrayBlockingQueue<>(64);
+    //杜比视界使用杜比解码器时，需要设置输出的transfer
+    private boolean mUseDolbyDecoder;
 
     /**
-     * 准备解码器
+     * 查找并创建解码器，不依赖编码器，可以在子线程和编码器的准备同时进行
      */
-    private void prepareDecoder(VideoOutputConfig outputConfig) throws Exception {
-        decodeFrameIndex = 0;
-        encodeFrameIndex = 0;
+    private void createDecoder(MediaFormat decodeFormat) throws Exception {
+        mDecodeFormat = decodeFormat;
         boolean isDolby = MediaFormat.MIMETYPE_VIDEO_DOLBY_VISION.equals(mOriVideoMime);
         boolean useDolbyDec = false;
-        String codecName = MediaCodecUtils.findDecoderByFormat(mOriVideoFormat);
+        String codecName = MediaCodecUtils.findDecoderByFormat(mDecodeFormat);
         if (TextUtils.isEmpty(codecName)) {
             if (isDolby) {
                 //如果是杜比视界，那么尝试用HEVC的解码器去解
-                mOriVideoFormat.setString(MediaFormat.KEY_MIME, MediaFormat.MIMETYPE_VIDEO_HEVC);
+                mDecodeFormat.setString(MediaFormat.KEY_MIME, MediaFormat.MIMETYPE_VIDEO_HEVC);
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
                     //因为杜比视界的profile和level是单独的，这里降级到HEVC的话，Profile和Level也要移除，否则还是会找不到解码器
-                    mOriVideoFormat.removeKey(MediaFormat.KEY_PROFILE);
-                    mOriVideoFormat.removeKey(MediaFormat.KEY_LEVEL);
+                    mDecodeFormat.removeKey(MediaFormat.KEY_PROFILE);
+                    mDecodeFormat.removeKey(MediaFormat.KEY_LEVEL);
                 }
-                codecName = MediaCodecUtils.findDecoderByFormat(mOriVideoFormat);
+                codecName = MediaCodecUtils.findDecoderByFormat(mDecodeFormat);
             } else if (MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mOriVideoMime)) {
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
                     //HEVC的话，尝试移除Profile和Level
-                    mOriVideoFormat.removeKey(MediaFormat.KEY_PROFILE);
-                    mOriVideoFormat.removeKey(MediaFormat.KEY_LEVEL);
+                    mDecodeFormat.removeKey(MediaFormat.KEY_PROFILE);
+                    mDecodeFormat.removeKey(MediaFormat.KEY_LEVEL);
                 }
-                codecName = MediaCodecUtils.findDecoderByFormat(mOriVideoFormat);
+                codecName = MediaCodecUtils.findDecoderByFormat(mDecodeFormat);
 
                 if (TextUtils.isEmpty(codecName)) {
                     if (mMaybeSwitchWH) {
@@ -433,7 +1080,7 @@ public class TranscodeRunner {
                     }
                 }
             } else {
-                throw new RuntimeException("没有找到合适的解码器! videoFormat:" + mOriVideoFormat);
+                throw new RuntimeException("没有找到合适的解码器! videoFormat:" + mDecodeFormat);
             }
         } else {
             if (isDolby) {
@@ -441,7 +1088,7 @@ public class TranscodeRunner {
             }
         }
         if (TextUtils.isEmpty(codecName)) {
-            throw new RuntimeException("没有找到合适的解码器! videoFormat:" + mOriVideoFormat);
+            throw new RuntimeException("没有找到合适的解码器! videoFormat:" + mDecodeFormat);
         }
         Log.i("TranscodeRunner", "使用解码器: " + codecName);
         mDecodeCodecThread = new HandlerThread("DecodeCodecThread");
@@ -449,135 +1096,159 @@ public class TranscodeRunner {
         mDecodeCodecHandler = new Handler(mDecodeCodecThread.getLooper());
 
         mDecoder = MediaCodec.createByCodecName(codecName);
+        mUseDolbyDecoder = isDolby && useDolbyDec;
+    }
+
+    /**
+     * 配置解码器，需要在编码器准备完成（EGL环境已经创建）之后调用
+     */
+    private void prepareDecoder(VideoOutputConfig outputConfig) throws Exception {
+        decodeFrameIndex = 0;
+        encodeFrameIndex = 0;
+        mHdr10Info.clear();
+        mLatchedHdr10Info.clear();
+        mDecoderFormatLogged = false;
+        mResumeAfterUs = Long.MIN_VALUE;
+        mStallRecoveries = 0;
+        mCfrScheduler = mConfig.constantFrameRate && mConfig.fps > 0 && !outputConfig.useByteBuffer
+                ? new ConstantFrameRateScheduler(mConfig.fps) : null;
+
         //异步模式
-        mDecoder.setCallback(new MediaCodec.Callback() {
+        MediaCodec.Callback decoderCallback = new MediaCodec.Callback() {
 
             @Override
             public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
-                ByteBuffer inputBuffer = null;
-                try {
-                    inputBuffer = codec.getInputBuffer(index);
-                } catch (Exception ignore) {
-                }
-                if (inputBuffer == null) {
-                    return;
-                }
-                int sampleSize = mMediaExtractor.readSampleData(inputBuffer, 0);
-                if (sampleSize > 0) {
-                    long sampleTime = mMediaExtractor.getSampleTime();
-                    int flags = mMediaExtractor.getSampleFlags();
-                    try {
-                        codec.queueInputBuffer(index, 0, sampleSize, sampleTime, flags);
-                    } catch (Exception ignore) {
-                    }
-                    mMediaExtractor.advance();
-                } else {
-                    codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                }
+                mDecoderInputIndices.offer(index);
+                feedDecoderInput(codec);
             }
 
             @Override
             public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
                                                 @NonNull MediaCodec.BufferInfo info) {
-                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0 && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
-                    boolean render = info.size > 0;
-                    if (render && Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
-                        //如果是Android O以下，进行手动丢帧来降低帧率
-                        if (Math.abs(info.presentationTimeUs - mVideoDurationUs) < 100_000L) {
-                            //最后100ms之内，不丢帧
-                        } else {
-                            if (mOriVideoFps > 0 && mConfig.fps < mOriVideoFps) {
-                                //如果相比原视频需要降低帧率，那么需要计算是否需要丢帧
-                                long oriTimeInternal = 1000000000L / mOriVideoFps;
-                                long dstTimeInternal = 1000000000L / mConfig.fps;
-                                long dstTime = encodeFrameIndex * dstTimeInternal;
-                                int indexPre = (int) (dstTime / oriTimeInternal);
-                                int indexAfter = indexPre + 1;
-                                //比较pre和after对应的时间，看取哪个合适
-                                long offset1 = Math.abs(oriTimeInternal * indexPre - dstTime);
-                                long offset2 = Math.abs(oriTimeInternal * indexAfter - dstTime);
-                                if (offset1 <= offset2) {
-                                    //采用indexPre
-                                    if (decodeFrameIndex != indexPre) {
-                                        //和indexPre不等，则进行丢帧
-                                        render = false;
-                                    }
-                                } else {
-                                    //采用indexAfter
-                                    if (decodeFrameIndex != indexAfter) {
-                                        //和indexAfter不等，则进行丢帧
-                                        render = false;
+                TraceUtils.begin("Decoder.onOutputBuffer");
+                TraceUtils.endAsync("Decoder.sample", info.presentationTimeUs);
+                TraceUtils.counter("Decoder.pts", info.presentationTimeUs);
+                try {
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0 && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                        mWatchdog.progress(PipelineWatchdog.Stage.DECODER_OUTPUT, info.presentationTimeUs);
+                        if (info.presentationTimeUs <= mResumeAfterUs) {
+                            //从关键帧恢复后，重新解码出的已经编码过的帧
+                            codec.releaseOutputBuffer(index, false);
+                            return;
+                        }
+                        boolean render = info.size > 0;
+                        //KEY_MAX_FPS_TO_ENCODER只对Surface输入生效，ByteBuffer模式在任何版本上都要手动丢帧
+                        if (render && mCfrScheduler == null
+                                && (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || mYuvConverter != null)) {
+                            //如果是Android O以下，进行手动丢帧来降低帧率
+                            if (Math.abs(info.presentationTimeUs - mVideoDurationUs) < 100_000L) {
+                                //最后100ms之内，不丢帧
+                            } else {
+                                if (mOriVideoFps > 0 && mConfig.fps < mOriVideoFps) {
+                                    //如果相比原视频需要降低帧率，那么需要计算是否需要丢帧
+                                    long oriTimeInternal = 1000000000L / mOriVideoFps;
+                                    long dstTimeInternal = 1000000000L / mConfig.fps;
+                                    long dstTime = encodeFrameIndex * dstTimeInternal;
+                                    int indexPre = (int) (dstTime / oriTimeInternal);
+                                    int indexAfter = indexPre + 1;
+                                    //比较pre和after对应的时间，看取哪个合适
+                                    long offset1 = Math.abs(oriTimeInternal * indexPre - dstTime);
+                                    long offset2 = Math.abs(oriTimeInternal * indexAfter - dstTime);
+                                    if (offset1 <= offset2) {
+                                        //采用indexPre
+                                        if (decodeFrameIndex != indexPre) {
+                                            //和indexPre不等，则进行丢帧
+                                            render = false;
+                                        }
+                                    } else {
+                                        //采用indexAfter
+                                        if (decodeFrameIndex != indexAfter) {
+                                            //和indexAfter不等，则进行丢帧
+                                            render = false;
+                                        }
                                     }
                                 }
                             }
                         }
-                    }
-                    byte[] hdr10Info = null;
-                    if (outputConfig.isHDR && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.Q) {
+                        //hdr10+信息在onOutputFormatChanged中更新，这里不再逐帧获取输出格式
+                        boolean hasHdr10Info = outputConfig.isHDR && mHdr10Info.isValid();
                         try {
-                            MediaFormat format = codec.getOutputFormat();
-                            ByteBuffer hdrByteBuffer =
-                                    format.getByteBuffer(MediaFormat.KEY_HDR10_PLUS_INFO);
-                            if (hdrByteBuffer != null) {
-                                int limit = hdrByteBuffer.limit();
-                                if (limit > 0) {
-                                    hdr10Info = new byte[limit];
-                                    hdrByteBuffer.get(hdr10Info);
+                            mWatchdog.begin(PipelineWatchdog.Stage.RENDER);
+                            if (mYuvConverter != null) {
+                                if (render) {
+                                    encodeYuvFrame(codec, index, info.presentationTimeUs);
                                 }
+                                codec.releaseOutputBuffer(index, false);
+                            } else if (render && mCfrScheduler != null) {
+                                renderConstantFrameRate(codec, index, info.presentationTimeUs, hasHdr10Info);
+                            } else {
+                                codec.releaseOutputBuffer(index, render);
                             }
-                        } catch (Exception ignore) {
-                        }
-                    }
-                    try {
-                        codec.releaseOutputBuffer(index, render);
-                        if (render) {
-                            // 切换GL线程
-                            // 为什么不用mDecoderOutputSurface.makeCurrent()
-                            // ?因为OutputSurface内部没有创建EGLContext等参数
-                            mEncoderInputSurface.makeCurrent();
-                            //往OutputSurface上绘制图像
-                            mDecoderOutputSurface.awaitNewImage();
-                            mDecoderOutputSurface.drawImage();
-                            //上屏
-                            mEncoderInputSurface.setPresentationTime(info.presentationTimeUs * 1000);
-                            mEncoderInputSurface.swapBuffers();
-                            mEncoderInputSurface.makeUnCurrent();
-                            encodeFrameIndex++;
-
-                            if (hdr10Info != null) {
-                                //hdr10+的元数据需要手动写给编码器
-                                Bundle codecParameters = new Bundle();
-                                codecParameters.putByteArray(MediaCodec.PARAMETER_KEY_HDR10_PLUS_INFO, hdr10Info);
-                                if (mEncoder != null) {
-                                    mEncoder.setParameters(codecParameters);
+                            if (render && mCfrScheduler == null && mYuvConverter == null) {
+                                // 切换GL线程
+                                // 为什么不用mDecoderOutputSurface.makeCurrent()
+                                // ?因为OutputSurface内部没有创建EGLContext等参数
+                                mEncoderInputSurface.makeCurrent();
+                                //往OutputSurface上绘制图像
+                                mDecoderOutputSurface.awaitNewImage();
+                                checkSceneCut();
+                                mDecoderOutputSurface.drawImage(info.presentationTimeUs);
+                                //上屏
+                                mEncoderInputSurface.setPresentationTime(info.presentationTimeUs * 1000);
+                                mEncoderInputSurface.swapBuffers();
+                                mEncoderInputSurface.makeUnCurrent();
+                                encodeFrameIndex++;
+                                mWatchdog.progress(PipelineWatchdog.Stage.RENDER, info.presentationTimeUs);
+
+                                if (hasHdr10Info) {
+                                    sendHdr10Info(mHdr10Info);
                                 }
                             }
+                            decodeFrameIndex++;
+                            if (VERBOSE) {
+                                Log.i("Decoder", "解码pts: " + info.presentationTimeUs);
+                            }
+                        } catch (Exception e) {
+                            //这一帧丢失，继续处理后面的帧；一直失败时由看门狗报错
+                            Log.w("TranscodeRunner", "渲染失败, pts=" + info.presentationTimeUs + ", "
+                                    + mWatchdog.snapshot(), e);
+                        } finally {
+                            mWatchdog.end(PipelineWatchdog.Stage.RENDER);
                         }
-                        decodeFrameIndex++;
-                        Log.i("Decoder", "解码pts: " + info.presentationTimeUs);
-                    } catch (Exception ignore) {
-                    }
-                    if (hdr10Info != null) {
-                        //因为是解码和编码是异步的，上面对编码器设置了Hdr10Info后，会使得编码器输出的一帧带上这个数据，
-                        //但如果解码速度快过编码速度，就会出现Hdr10Info绑定的帧不正确的情况。所以这里有意地降低一下解码速度。
-                        synchronized (hdrInfoLock) {
-                            try {
-                                hdrInfoLock.wait(100);
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
+                        //丢弃的帧没有编码输出，按解码输出统计进度，丢帧多时进度也能走到最后
+                        callProgress(mProgressTracker.onFrameDecoded(info.presentationTimeUs, render));
+                        if (hasHdr10Info) {
+                            //因为是解码和编码是异步的，上面对编码器设置了Hdr10Info后，会使得编码器输出的一帧带上这个数据，
+                            //但如果解码速度快过编码速度，就会出现Hdr10Info绑定的帧不正确的情况。所以这里有意地降低一下解码速度。
+                            synchronized (hdrInfoLock) {
+                                try {
+                                    hdrInfoLock.wait(100);
+                                } catch (InterruptedException e) {
+                                    e.printStackTrace();
+                                }
                             }
                         }
-                    }
-                } else {
-                    codec.releaseOutputBuffer(index, false);
-                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        if (mEncoder != null) {
-                            mEncoder.signalEndOfInputStream();
+                    } else {
+                        codec.releaseOutputBuffer(index, false);
+                        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                            if (mCfrScheduler != null) {
+                                try {
+                                    flushConstantFrameRate();
+                                } catch (Exception ignore) {
+                                }
+                            }
+                            if (mYuvConverter != null) {
+                                queueEncoderEndOfStream(info.presentationTimeUs);
+                            } else if (mEncoder != null) {
+                                mEncoder.signalEndOfInputStream();
+                            }
+                            codec.stop();
+                            codec.release();
+                            Log.i("Decoder", "解码已经完成");
                         }
-                        codec.stop();
-                        codec.release();
-                        Log.i("Decoder", "解码已经完成");
                     }
+                } finally {
+                    TraceUtils.end();
                 }
             }
 
@@ -590,20 +1261,350 @@ public class TranscodeRunner {
             @Override
             public void onOutputFormatChanged(@NonNull MediaCodec codec,
                                               @NonNull MediaFormat format) {
-                Log.i("Decoder", "decoder output format: " + format);
+                //hdr10+的元数据变化时也会回调，可能每帧一次
+                if (VERBOSE || !mDecoderFormatLogged) {
+                    Log.i("Decoder", "decoder output format: " + format);
+                    mDecoderFormatLogged = true;
+                }
+                if (outputConfig.isHDR && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                    try {
+                        mHdr10Info.set(format.getByteBuffer(MediaFormat.KEY_HDR10_PLUS_INFO));
+                    } catch (Exception ignore) {
+                    }
+                }
+                if (mYuvConverter != null) {
+                    updateYuvSourceCrop(format);
+                }
             }
-        }, mDecodeCodecHandler);
+        };
+        mDecoder.setCallback(decoderCallback, mDecodeCodecHandler);
+        if (outputConfig.useByteBuffer) {
+            configureByteBufferDecoder(decoderCallback, mUseDolbyDecoder);
+            return;
+        }
         mDecoderOutputSurface = new OutputSurface(outputConfig);
+        //解码输出到Surface时已经应用了视频自带的旋转角度
+        boolean rotated = mOriVideoRotation == 90 || mOriVideoRotation == 270;
+        mDecoderOutputSurface.setFilter(mConfig.filter,
+                rotated ? mOriVideoHeight : mOriVideoWidth,
+                rotated ? mOriVideoWidth : mOriVideoHeight,
+                mEncoderInputSurface.getWidth(), mEncoderInputSurface.getHeight());
+        mDecoderOutputSurface.setOverlays(mConfig.overlays, mEncoderInputSurface.getWidth(),
+                mEncoderInputSurface.getHeight());
+        mSceneCutDetector = null;
+        if (mConfig.sceneCutDetection) {
+            if (outputConfig.eglColorSpace == MediaCodecUtils.EGLColorSpace.YUVP10) {
+                //YUV输出的FBO读回的不是RGB，无法统计亮度
+                Log.w("TranscodeRunner", "YUV输出不支持场景切换检测，已忽略");
+            } else {
+                SceneCutDetector detector = new SceneCutDetector(SceneCutDetector.DEFAULT_THRESHOLD,
+                        Math.max(1, mConfig.fps / 2));
+                if (detector.setup()) {
+                    mSceneCutDetector = detector;
+                }
+            }
+        }
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-            mOriVideoFormat.setInteger("allow-frame-drop", 0);
+            mDecodeFormat.setInteger("allow-frame-drop", 0);
         }
-        if (isDolby && useDolbyDec) {
+        if (mUseDolbyDecoder) {
             Bundle transferBundle = new Bundle();
             String value = "transfer.hlg"; //还有一种是"transfer.dolby"
             transferBundle.putString("vendor.dolby.codec.transfer.value", value);
             mDecoder.setParameters(transferBundle);
         }
-        mDecoder.configure(mOriVideoFormat, mDecoderOutputSurface.getSurface(), null, 0);
+        configureDecoder(decoderCallback, mDecoderOutputSurface.getSurface());
+    }
+
+    /**
+     * ByteBuffer模式：解码器输出YUV数据，不创建OutputSurface
+     */
+    private void configureByteBufferDecoder(MediaCodec.Callback callback, boolean dolbyTransfer) {
+        if (mConfig.filter != null || (mConfig.overlays != null && !mConfig.overlays.isEmpty())
+                || mConfig.constantFrameRate) {
+            Log.w("TranscodeRunner", "ByteBuffer模式不支持画面处理、叠加图片和恒定帧率，已忽略");
+        }
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+        mYuvConverter = new YuvFrameConverter(mOriVideoRotation, mConfig.outWidth,
+                mConfig.outHeight, threads);
+        mDecodeFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+        if (dolbyTransfer) {
+            Bundle transferBundle = new Bundle();
+            transferBundle.putString("vendor.dolby.codec.transfer.value", "transfer.hlg");
+            mDecoder.setParameters(transferBundle);
+        }
+        configureDecoder(callback, null);
+    }
+
+    /**
+     * Q以下重新从Extractor读取解码格式，再做一遍准备解码器时的修改（Q以下只会修改mime和颜色格式），
+     * 用于去掉已经设置进去的参数。调用时读取线程还没有启动
+     */
+    private MediaFormat recreateDecodeFormat() {
+        MediaFormat format = mMediaExtractor.getTrackFormat(mVideoTrackerIndex);
+        format.setString(MediaFormat.KEY_MIME, mDecodeFormat.getString(MediaFormat.KEY_MIME));
+        if (mDecodeFormat.containsKey(MediaFormat.KEY_COLOR_FORMAT)) {
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                    mDecodeFormat.getInteger(MediaFormat.KEY_COLOR_FORMAT));
+        }
+        return format;
+    }
+
+    private void updateYuvSourceCrop(MediaFormat format) {
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        int left = 0, top = 0, right = width - 1, bottom = height - 1;
+        if (format.containsKey("crop-left") && format.containsKey("crop-right")) {
+            left = format.getInteger("crop-left");
+            right = format.getInteger("crop-right");
+        }
+        if (format.containsKey("crop-top") && format.containsKey("crop-bottom")) {
+            top = format.getInteger("crop-top");
+            bottom = format.getInteger("crop-bottom");
+        }
+        mYuvConverter.setSourceCrop(left, top, right - left + 1, bottom - top + 1);
+    }
+
+    /**
+     * ByteBuffer模式：把解码出的一帧缩放、旋转后写入编码器的输入buffer
+     */
+    private void encodeYuvFrame(MediaCodec decoder, int index, long ptsUs) {
+        int inputIndex = takeEncoderInputIndex();
+        MediaCodec encoder = mEncoder;
+        if (inputIndex < 0 || encoder == null) {
+            return;
+        }
+        Image src = decoder.getOutputImage(index);
+        //先取buffer的大小，getInputImage之后buffer就不能再使用了
+        ByteBuffer inputBuffer = encoder.getInputBuffer(inputIndex);
+        Image dst = encoder.getInputImage(inputIndex);
+        if (src == null || dst == null || inputBuffer == null) {
+            callError(new IllegalStateException("编解码器不支持YUV420Flexible的Image读写"));
+            return;
+        }
+        try {
+            mYuvConverter.convert(src, dst);
+        } catch (IllegalArgumentException e) {
+            callError(e);
+            return;
+        }
+        encoder.queueInputBuffer(inputIndex, 0, inputBuffer.capacity(), ptsUs, 0);
+        encodeFrameIndex++;
+        mWatchdog.progress(PipelineWatchdog.Stage.RENDER, ptsUs);
+    }
+
+    private void queueEncoderEndOfStream(long ptsUs) {
+        int inputIndex = takeEncoderInputIndex();
+        if (inputIndex >= 0 && mEncoder != null) {
+            mEncoder.queueInputBuffer(inputIndex, 0, 0, ptsUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        }
+    }
+
+    /**
+     * 等待编码器空闲的输入buffer，编码器被释放时返回-1
+     */
+    private int takeEncoderInputIndex() {
+        while (mEncoder != null) {
+            try {
+                Integer index = mEncoderInputIndices.poll(100, TimeUnit.MILLISECONDS);
+                if (index != null) {
+                    return index;
+                }
+            } catch (InterruptedException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 恒定帧率输出：先用当前锁定的帧填满新帧之前的网格点，再把新帧锁定到纹理上。
+     * 一帧对应多个网格点时重复绘制，一个都没有时该帧被丢弃，每帧时长都是1/fps
+     */
+    private void renderConstantFrameRate(MediaCodec codec, int index, long ptsUs,
+                                         boolean hasHdr10Info) {
+        mEncoderInputSurface.makeCurrent();
+        long slotUs;
+        while ((slotUs = mCfrScheduler.pollSlot(ptsUs)) >= 0) {
+            drawLatchedFrame(slotUs);
+        }
+        codec.releaseOutputBuffer(index, true);
+        mDecoderOutputSurface.awaitNewImage();
+        checkSceneCut();
+        mCfrScheduler.onFrameLatched(ptsUs);
+        if (hasHdr10Info) {
+            mLatchedHdr10Info.set(mHdr10Info);
+        } else {
+            mLatchedHdr10Info.clear();
+        }
+        mEncoderInputSurface.makeUnCurrent();
+    }
+
+    /**
+     * 解码结束，把最后一帧剩余的网格点输出完
+     */
+    private void flushConstantFrameRate() {
+        mEncoderInputSurface.makeCurrent();
+        long slotUs;
+        while ((slotUs = mCfrScheduler.pollSlotAtEnd()) >= 0) {
+            drawLatchedFrame(slotUs);
+        }
+        mEncoderInputSurface.makeUnCurrent();
+        Log.i("TranscodeRunner", "恒定帧率" + mCfrScheduler.getFps() + "fps，输出" + encodeFrameIndex
+                + "帧，重复" + mCfrScheduler.getDuplicatedFrames() + "帧，丢弃"
+                + mCfrScheduler.getDroppedFrames() + "帧");
+    }
+
+    /**
+     * 新的一帧锁定到纹理之后、送给编码器之前调用，检测到场景切换时请求关键帧
+     */
+    private void checkSceneCut() {
+        if (mSceneCutDetector == null || mEncoder == null) {
+            return;
+        }
+        if (mDecoderOutputSurface.detectSceneCut(mSceneCutDetector, mEncoderInputSurface.getWidth(),
+                mEncoderInputSurface.getHeight())) {
+            if (mSyncFrameParams == null) {
+                mSyncFrameParams = new Bundle();
+                mSyncFrameParams.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            }
+            mEncoder.setParameters(mSyncFrameParams);
+            Log.i("TranscodeRunner", "场景切换，请求关键帧，第" + mSceneCutDetector.getCutCount() + "次");
+        }
+    }
+
+    /**
+     * 目标大小模式：根据已写入的字节数动态调整编码器码率，在编码回调线程调用
+     */
+    private void adjustBitrate(MediaCodec encoder, int size, long ptsUs) {
+        int bitrate = mTargetSizeController.onSampleWritten(size, ptsUs);
+        if (bitrate <= 0) {
+            return;
+        }
+        if (mBitrateParams == null) {
+            mBitrateParams = new Bundle();
+        }
+        mBitrateParams.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        try {
+            encoder.setParameters(mBitrateParams);
+        } catch (IllegalStateException e) {
+            Log.w("TranscodeRunner", "adjustBitrate: ", e);
+        }
+    }
+
+    /**
+     * 统计实际的编码速度交给温控策略，按需要调整编解码器的运行速率，在编码回调线程调用
+     */
+    private void checkThroughput() {
+        mThroughputFrames++;
+        long now = SystemClock.elapsedRealtime();
+        long elapsedMs = now - mThroughputCheckMs;
+        if (elapsedMs < THROUGHPUT_INTERVAL_MS) {
+            return;
+        }
+        float fps = mThroughputFrames * 1000f / elapsedMs;
+        mThroughputFrames = 0;
+        mThroughputCheckMs = now;
+        ThermalThrottlePolicy.Session session = mThrottleSession;
+        if (session == null) {
+            return;
+        }
+        int rate = session.onThroughput(fps);
+        if (rate == ThermalThrottlePolicy.NO_CHANGE) {
+            return;
+        }
+        //setParameters无法移除运行速率，configure时没有设置的编解码器降速后就不能恢复原状，所以只限制设置过的
+        if (rate == ThermalThrottlePolicy.UNLIMITED) {
+            //恢复到configure时的设置
+            setOperatingRate(mDecoder, mDecoderOperatingRate);
+            setOperatingRate(mEncoder, mEncoderOperatingRate);
+            mPaceIntervalUs = 0;
+        } else if (mDecoderOperatingRate > 0 || mEncoderOperatingRate > 0) {
+            setOperatingRate(mDecoder, mDecoderOperatingRate > 0 ? rate : 0);
+            setOperatingRate(mEncoder, mEncoderOperatingRate > 0 ? rate : 0);
+        } else {
+            //非离线模式没有设置运行速率，改为控制送入解码器的节奏。
+            //rate是编码输出的帧率，降低帧率时解码的帧比编码的多，按实际的比例换算
+            long encoded = Math.max(1, encodeFrameIndex);
+            long decoded = Math.max(encoded, decodeFrameIndex);
+            mPaceIntervalUs = 1_000_000L * encoded / (rate * decoded);
+        }
+    }
+
+    /**
+     * 温控限速时控制送入解码器的节奏，在解码回调线程调用
+     *
+     * @return 现在是否可以送入下一个样本，还没到时间时返回false，并在到时间后重新调用feedDecoderInput
+     */
+    private boolean checkFeedPace() {
+        long intervalUs = mPaceIntervalUs;
+        if (intervalUs <= 0) {
+            return true;
+        }
+        long nowUs = SystemClock.uptimeMillis() * 1000;
+        if (nowUs < mNextFeedUs) {
+            mDecodeCodecHandler.removeCallbacks(mFeedDecoderRunnable);
+            mDecodeCodecHandler.postAtTime(mFeedDecoderRunnable, (mNextFeedUs + 999) / 1000);
+            return false;
+        }
+        //落后时最多补一个间隔，不会在限速期间连续送入很多帧
+        mNextFeedUs = Math.max(mNextFeedUs, nowUs - intervalUs) + intervalUs;
+        return true;
+    }
+
+    private void setOperatingRate(MediaCodec codec, int rate) {
+        if (codec == null || rate <= 0) {
+            return;
+        }
+        if (mOperatingRateParams == null) {
+            mOperatingRateParams = new Bundle();
+        }
+        mOperatingRateParams.putInt(MediaFormat.KEY_OPERATING_RATE, rate);
+        try {
+            codec.setParameters(mOperatingRateParams);
+        } catch (IllegalStateException e) {
+            Log.w("TranscodeRunner", "setOperatingRate: ", e);
+        }
+    }
+
+    /**
+     * configure时格式中的运行速率，没有设置时返回0
+     */
+    private static int getOperatingRate(MediaFormat format) {
+        if (format == null || !format.containsKey(MediaFormat.KEY_OPERATING_RATE)) {
+            return 0;
+        }
+        try {
+            return format.getInteger(MediaFormat.KEY_OPERATING_RATE);
+        } catch (ClassCastException e) {
+            return Math.round(format.getFloat(MediaFormat.KEY_OPERATING_RATE));
+        }
+    }
+
+    private void drawLatchedFrame(long ptsUs) {
+        mDecoderOutputSurface.drawImage(ptsUs);
+        mEncoderInputSurface.setPresentationTime(ptsUs * 1000);
+        mEncoderInputSurface.swapBuffers();
+        encodeFrameIndex++;
+        mWatchdog.progress(PipelineWatchdog.Stage.RENDER, ptsUs);
+        if (mLatchedHdr10Info.isValid()) {
+            sendHdr10Info(mLatchedHdr10Info);
+        }
+    }
+
+    /**
+     * hdr10+的元数据需要手动写给编码器，逐帧调用，复用同一个Bundle
+     */
+    private void sendHdr10Info(Hdr10PlusInfo info) {
+        if (mEncoder == null) {
+            return;
+        }
+        if (mHdr10Params == null) {
+            mHdr10Params = new Bundle();
+        }
+        mHdr10Params.putByteArray(MediaCodec.PARAMETER_KEY_HDR10_PLUS_INFO, info.getData());
+        mEncoder.setParameters(mHdr10Params);
     }
 
     private void prepareMuxer() throws Exception {
@@ -614,13 +1615,162 @@ public class TranscodeRunner {
     }
 
     private void _start() {
+        mStartTimeMs = SystemClock.elapsedRealtime();
+        mThroughputCheckMs = mStartTimeMs;
+        mThroughputFrames = 0;
+        mDecoderOperatingRate = getOperatingRate(mDecodeFormat);
+        mEncoderOperatingRate = getOperatingRate(mOutputFormat);
+        mPaceIntervalUs = 0;
+        mNextFeedUs = 0;
+        mProgressTracker = new ProgressTracker(mVideoDurationUs, mConfig.progressIntervalMs);
+        mWatchdog = new PipelineWatchdog(mConfig.stallTimeoutMs, new PipelineWatchdog.OnStallListener() {
+            @Override
+            public void onStall(PipelineWatchdog.Snapshot snapshot) {
+                onPipelineStall(snapshot);
+            }
+        });
+        mDecoderInputIndices.clear();
+        startSamplePrefetcher();
+        TraceUtils.beginAsync("Transcode", System.identityHashCode(this));
         if (mEncoder != null) {
             mEncoder.start();
         }
         mDecoder.start();
+        if (mConfig.stallTimeoutMs > 0) {
+            mWatchdog.start();
+        }
+    }
+
+    private void startSamplePrefetcher() {
+        int sampleSize = mOriVideoFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                ? mOriVideoFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE)
+                : SamplePrefetcher.DEFAULT_SAMPLE_SIZE;
+        mSamplePrefetcher = new SamplePrefetcher(mMediaExtractor, mWatchdog,
+                SamplePrefetcher.DEFAULT_CAPACITY, sampleSize, mDecodeCodecHandler, mFeedDecoderRunnable);
+        mSamplePrefetcher.start();
+    }
+
+    /**
+     * 流水线卡住，在看门狗的线程调用。卡在解码阶段时，先在解码回调线程从关键帧恢复；
+     * 提取、编码器、Muxer卡住，或者恢复之后仍然卡住（包括解码回调线程本身被阻塞，恢复任务没有执行）时报错，
+     * 释放编解码器，不会一直占用。
+     * 提取阶段卡住时读取线程阻塞在数据源里，无法安全地停止它再seek，所以不恢复
+     */
+    private void onPipelineStall(PipelineWatchdog.Snapshot snapshot) {
+        PipelineWatchdog.Stage suspect = snapshot.suspect;
+        boolean recoverable = suspect == null || suspect == PipelineWatchdog.Stage.DECODER_INPUT
+                || suspect == PipelineWatchdog.Stage.DECODER_OUTPUT;
+        Handler handler = mDecodeCodecHandler;
+        if (mConfig.stallRecovery && recoverable && mStallRecoveries < MAX_STALL_RECOVERIES
+                && handler != null) {
+            mStallRecoveries++;
+            Log.w("TranscodeRunner", "流水线卡住，尝试从关键帧恢复");
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    recoverFromKeyframe();
+                }
+            });
+            return;
+        }
+        callError(new PipelineStallException(snapshot.toString()));
+    }
+
+    /**
+     * 在解码回调线程flush解码器，从最后一个送给编码器的帧之前的关键帧重新解码，
+     * 已经送给过编码器的帧解码后直接丢弃。编码器和Muxer不受影响
+     */
+    private void recoverFromKeyframe() {
+        MediaCodec decoder = mDecoder;
+        if (decoder == null) {
+            return;
+        }
+        long resumeAfterUs = mWatchdog.getLastPtsUs(PipelineWatchdog.Stage.RENDER);
+        try {
+            //Extractor不是线程安全的，确认读取线程已经退出才能seek、启动新的读取线程
+            if (mSamplePrefetcher != null && !mSamplePrefetcher.stop()) {
+                callError(new PipelineStallException("读取线程没有退出，无法从关键帧恢复\n"
+                        + mWatchdog.snapshot()));
+                return;
+            }
+            decoder.flush();
+            mDecoderInputIndices.clear();
+            if (mDecoderOutputSurface != null) {
+                //flush之前已经渲染到Surface、还没有取出的帧，不取出的话下一帧到达时会报错
+                mEncoderInputSurface.makeCurrent();
+                mDecoderOutputSurface.checkForNewImage(1);
+                mEncoderInputSurface.makeUnCurrent();
+            }
+            mMediaExtractor.seekTo(Math.max(0, resumeAfterUs), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            mResumeAfterUs = resumeAfterUs;
+            startSamplePrefetcher();
+            //异步模式flush之后需要重新start才会回调输入buffer
+            decoder.start();
+            Log.i("TranscodeRunner", "从" + resumeAfterUs + "us之前的关键帧恢复解码");
+        } catch (Exception e) {
+            callError(new PipelineStallException("从关键帧恢复失败\n" + mWatchdog.snapshot(), e));
+        }
+    }
+
+    /**
+     * 在解码回调线程上，把提前读好的样本拷贝进空闲的输入buffer。样本还没读好时直接返回，
+     * 读好后{@link SamplePrefetcher}会再次调用
+     */
+    private void feedDecoderInput(MediaCodec codec) {
+        TraceUtils.begin("Decoder.feedInput");
+        try {
+            SamplePrefetcher prefetcher = mSamplePrefetcher;
+            if (prefetcher == null) {
+                return;
+            }
+            while (!mDecoderInputIndices.isEmpty()) {
+                SamplePrefetcher.Sample sample = prefetcher.peek();
+                if (sample == null) {
+                    return;
+                }
+                if (!sample.eos && !checkFeedPace()) {
+                    return;
+                }
+                int index = mDecoderInputIndices.peek();
+                try {
+                    if (sample.eos) {
+                        codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    } else {
+                        ByteBuffer inputBuffer = codec.getInputBuffer(index);
+                        if (inputBuffer == null) {
+                            //index不是解码器当前可用的输入buffer，解码器状态已经不对，不能继续送数据
+                            callError(new IllegalStateException("解码器输入buffer为null, index=" + index));
+                            return;
+                        }
+                        ByteBuffer data = sample.buffer;
+                        data.position(0);
+                        data.limit(sample.size);
+                        inputBuffer.clear();
+                        inputBuffer.put(data);
+                        codec.queueInputBuffer(index, 0, sample.size, sample.timeUs, sample.flags);
+                        mWatchdog.progress(PipelineWatchdog.Stage.DECODER_INPUT, sample.timeUs);
+                        //从送入解码器到解码输出
+                        TraceUtils.beginAsync("Decoder.sample", sample.timeUs);
+                    }
+                } catch (Exception e) {
+                    //解码器已经停止或者释放
+                    Log.w("TranscodeRunner", "feedDecoderInput: ", e);
+                    return;
+                }
+                //送入成功后才移除，失败返回时index还留在队列里
+                mDecoderInputIndices.poll();
+                prefetcher.recycle();
+            }
+        } finally {
+            TraceUtils.end();
+        }
     }
 
     private void _transcodeComplete() {
+        long costMs = Math.max(1, SystemClock.elapsedRealtime() - mStartTimeMs);
+        Log.i("TranscodeRunner", "转码完成" + (mConfig.offline ? "（离线模式）" : "") + "：" + encodeFrameIndex
+                + "帧，耗时" + costMs + "ms，平均" + (encodeFrameIndex * 1000f / costMs) + "fps，"
+                + (mVideoDurationUs / 1000f / costMs) + "倍速");
         reset();
         if (listener != null) {
             listener.onTranscodeDone(mConfig.dstPath);
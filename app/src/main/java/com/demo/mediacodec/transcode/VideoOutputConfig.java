@@ -20,6 +20,9 @@ public class VideoOutputConfig {
 
     public MediaCodecUtils.EGLColorSpace eglColorSpace;
 
+    //EGL环境无法初始化时，不使用Surface，解码输出YUV数据，在CPU上处理后直接送给编码器
+    public boolean useByteBuffer;
+
     public VideoOutputConfig(MediaCodecUtils.OutputLevel outputLevel) {
         this.outputLevel = outputLevel;
     }
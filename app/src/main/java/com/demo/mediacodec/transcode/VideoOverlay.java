@@ -0,0 +1,41 @@
+package com.demo.mediacodec.transcode;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+
+/**
+ * 转码时叠加到画面上的图片（水印、角标等），和视频帧在同一次绘制中混合，不需要额外的编码。
+ * <p>
+ * 静态图片在开始转码时合成到一张纹理中，只上传一次；
+ * 也支持一张动画精灵图：bitmap按columns x rows切分成frameCount帧，每帧显示frameDurationUs，
+ * 按输出帧的时间戳取帧，恒定帧率重复输出同一个解码帧时动画也会继续。
+ *
+ * @date : 2026/10/19
+ */
+public class VideoOverlay {
+
+    public Bitmap bitmap;
+
+    /**
+     * 在输出画面中的位置，归一化坐标[0,1]，以左上角为原点
+     */
+    public RectF dstRect;
+
+    public float alpha = 1f;
+
+    //region 精灵图
+    public int columns = 1;
+    public int rows = 1;
+    public int frameCount = 1;
+    public long frameDurationUs;
+    //endregion
+
+    public VideoOverlay(Bitmap bitmap, RectF dstRect) {
+        this.bitmap = bitmap;
+        this.dstRect = dstRect;
+    }
+
+    boolean isAnimated() {
+        return frameCount > 1 && frameDurationUs > 0 && columns > 0 && rows > 0;
+    }
+}
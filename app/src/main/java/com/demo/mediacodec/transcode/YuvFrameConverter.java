@@ -0,0 +1,311 @@
+package com.demo.mediacodec.transcode;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 不使用GPU，在CPU上把解码输出的YUV420帧缩放、旋转后写入编码器的输入帧。
+ * <p>
+ * 源和目标都是YUV_420_888（MediaCodec的COLOR_FormatYUV420Flexible），
+ * 通过Image.Plane的rowStride、pixelStride兼容I420、NV12、NV21等不同的内存布局，颜色格式的转换在按像素拷贝时完成。
+ * <p>
+ * 缩放使用最近邻采样。每个目标像素对应的源地址 = 行偏移表[dy] + 列偏移表[dx]，
+ * 旋转和缩放都合并在这两张表里，只在源的步长、裁剪区域变化时重新计算。
+ * 每帧按行切分成若干段，由常驻的工作线程并行处理，转换过程中不会分配内存。
+ *
+ * @date : 2026/10/19
+ */
+class YuvFrameConverter {
+
+    private final int mRotation;
+    private final int mDstWidth, mDstHeight;
+    private final int mDstChromaWidth, mDstChromaHeight;
+
+    //源画面的有效区域
+    private int mCropLeft, mCropTop, mCropWidth, mCropHeight;
+
+    //偏移表对应的源步长，变化时需要重新计算
+    private int mTableYRowStride = -1, mTableYPixelStride = -1;
+    private int mTableCRowStride = -1, mTableCPixelStride = -1;
+    private boolean mTableDirty = true;
+
+    private final int[] mYRowOffset, mYColOffset;
+    private final int[] mCRowOffset, mCColOffset;
+
+    //region 当前帧，由工作线程读取
+    private ByteBuffer mSrcY, mSrcU, mSrcV;
+    private ByteBuffer mDstY, mDstU, mDstV;
+    private int mDstYRowStride, mDstYPixelStride;
+    private int mDstCRowStride, mDstCPixelStride;
+    //endregion
+
+    private final Object mLock = new Object();
+    private final Thread[] mWorkers;
+    private final int mBandCount;
+    private int mGeneration;
+    private int mPendingBands;
+    private boolean mReleased;
+
+    /**
+     * @param rotation  源视频需要顺时针旋转的角度（KEY_ROTATION），只支持0、90、180、270
+     * @param dstWidth  输出画面的宽
+     * @param dstHeight 输出画面的高
+     * @param threads   并行处理的线程数（包含调用线程）
+     */
+    YuvFrameConverter(int rotation, int dstWidth, int dstHeight, int threads) {
+        mRotation = ((rotation % 360) + 360) % 360;
+        mDstWidth = dstWidth;
+        mDstHeight = dstHeight;
+        mDstChromaWidth = (dstWidth + 1) / 2;
+        mDstChromaHeight = (dstHeight + 1) / 2;
+        mYRowOffset = new int[dstHeight];
+        mYColOffset = new int[dstWidth];
+        mCRowOffset = new int[mDstChromaHeight];
+        mCColOffset = new int[mDstChromaWidth];
+
+        mBandCount = Math.max(1, Math.min(threads, mDstChromaHeight));
+        mWorkers = new Thread[mBandCount - 1];
+        for (int i = 0; i < mWorkers.length; i++) {
+            final int band = i + 1;
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    workerLoop(band);
+                }
+            }, "YuvConvert-" + band);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * 设置源画面的尺寸及有效区域（来自解码器输出格式的width、height和crop-*）
+     */
+    void setSourceCrop(int left, int top, int width, int height) {
+        if (left != mCropLeft || top != mCropTop || width != mCropWidth || height != mCropHeight) {
+            mCropLeft = left;
+            mCropTop = top;
+            mCropWidth = width;
+            mCropHeight = height;
+            mTableDirty = true;
+        }
+    }
+
+    /**
+     * 转换一帧，返回时已经全部写入dst
+     */
+    void convert(Image src, Image dst) {
+        if (src.getFormat() != ImageFormat.YUV_420_888 || dst.getFormat() != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException("只支持YUV_420_888, src: " + src.getFormat()
+                    + ", dst: " + dst.getFormat());
+        }
+        if (dst.getWidth() < mDstWidth || dst.getHeight() < mDstHeight) {
+            throw new IllegalArgumentException("编码器输入帧尺寸不足: " + dst.getWidth() + "x"
+                    + dst.getHeight());
+        }
+        if (mCropWidth <= 0 || mCropHeight <= 0) {
+            setSourceCrop(0, 0, src.getWidth(), src.getHeight());
+        }
+        Image.Plane[] srcPlanes = src.getPlanes();
+        Image.Plane[] dstPlanes = dst.getPlanes();
+        updateTables(srcPlanes[0].getRowStride(), srcPlanes[0].getPixelStride(),
+                srcPlanes[1].getRowStride(), srcPlanes[1].getPixelStride());
+
+        synchronized (mLock) {
+            if (mReleased) {
+                throw new IllegalStateException("converter released");
+            }
+            mSrcY = srcPlanes[0].getBuffer();
+            mSrcU = srcPlanes[1].getBuffer();
+            mSrcV = srcPlanes[2].getBuffer();
+            mDstY = dstPlanes[0].getBuffer();
+            mDstU = dstPlanes[1].getBuffer();
+            mDstV = dstPlanes[2].getBuffer();
+            mDstYRowStride = dstPlanes[0].getRowStride();
+            mDstYPixelStride = dstPlanes[0].getPixelStride();
+            mDstCRowStride = dstPlanes[1].getRowStride();
+            mDstCPixelStride = dstPlanes[1].getPixelStride();
+            mPendingBands = mBandCount - 1;
+            mGeneration++;
+            mLock.notifyAll();
+        }
+        //调用线程处理第0段
+        convertBand(0);
+        boolean interrupted = false;
+        synchronized (mLock) {
+            //即使已经release，也要等工作线程处理完各自的段，之后buffer会还给编解码器
+            while (mPendingBands > 0) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            //不持有Image的buffer，避免Image释放之后还被引用
+            mSrcY = mSrcU = mSrcV = null;
+            mDstY = mDstU = mDstV = null;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 停止工作线程并等待退出，正在转换的帧会先处理完
+     */
+    void release() {
+        synchronized (mLock) {
+            mReleased = true;
+            mLock.notifyAll();
+        }
+        boolean interrupted = false;
+        for (Thread worker : mWorkers) {
+            if (worker == Thread.currentThread()) {
+                continue;
+            }
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void workerLoop(int band) {
+        int handledGeneration = 0;
+        while (true) {
+            synchronized (mLock) {
+                while (mGeneration == handledGeneration && !mReleased) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        //convert可能在等这一段，不能直接退出
+                    }
+                }
+                if (mGeneration == handledGeneration) {
+                    //已经release，并且没有待处理的帧
+                    return;
+                }
+                handledGeneration = mGeneration;
+            }
+            try {
+                convertBand(band);
+            } finally {
+                synchronized (mLock) {
+                    mPendingBands--;
+                    mLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void convertBand(int band) {
+        //色度行按段切分，亮度行跟随色度行（每个色度行对应两个亮度行），保证各段写入的区域互不重叠
+        int cStart = mDstChromaHeight * band / mBandCount;
+        int cEnd = mDstChromaHeight * (band + 1) / mBandCount;
+        int yStart = Math.min(cStart * 2, mDstHeight);
+        int yEnd = Math.min(cEnd * 2, mDstHeight);
+
+        ByteBuffer srcY = mSrcY, dstY = mDstY;
+        int[] colOffset = mYColOffset;
+        for (int dy = yStart; dy < yEnd; dy++) {
+            int rowOffset = mYRowOffset[dy];
+            int dstIndex = dy * mDstYRowStride;
+            for (int dx = 0; dx < mDstWidth; dx++) {
+                dstY.put(dstIndex, srcY.get(rowOffset + colOffset[dx]));
+                dstIndex += mDstYPixelStride;
+            }
+        }
+
+        ByteBuffer srcU = mSrcU, srcV = mSrcV, dstU = mDstU, dstV = mDstV;
+        colOffset = mCColOffset;
+        for (int dy = cStart; dy < cEnd; dy++) {
+            int rowOffset = mCRowOffset[dy];
+            int dstIndex = dy * mDstCRowStride;
+            for (int dx = 0; dx < mDstChromaWidth; dx++) {
+                int srcIndex = rowOffset + colOffset[dx];
+                dstU.put(dstIndex, srcU.get(srcIndex));
+                dstV.put(dstIndex, srcV.get(srcIndex));
+                dstIndex += mDstCPixelStride;
+            }
+        }
+    }
+
+    private void updateTables(int yRowStride, int yPixelStride, int cRowStride, int cPixelStride) {
+        if (!mTableDirty && yRowStride == mTableYRowStride && yPixelStride == mTableYPixelStride
+                && cRowStride == mTableCRowStride && cPixelStride == mTableCPixelStride) {
+            return;
+        }
+        fillTables(mYRowOffset, mYColOffset, mCropLeft, mCropTop, mCropWidth, mCropHeight,
+                yRowStride, yPixelStride);
+        fillTables(mCRowOffset, mCColOffset, mCropLeft / 2, mCropTop / 2,
+                Math.max(1, mCropWidth / 2), Math.max(1, mCropHeight / 2), cRowStride, cPixelStride);
+        mTableYRowStride = yRowStride;
+        mTableYPixelStride = yPixelStride;
+        mTableCRowStride = cRowStride;
+        mTableCPixelStride = cPixelStride;
+        mTableDirty = false;
+    }
+
+    /**
+     * 输出画面(u, v)对应的源坐标：
+     * 0度：(u, v)；90度：(v, 1-u)；180度：(1-u, 1-v)；270度：(1-v, u)
+     */
+    private void fillTables(int[] rowOffset, int[] colOffset, int left, int top, int width,
+                            int height, int rowStride, int pixelStride) {
+        int dstRows = rowOffset.length;
+        int dstCols = colOffset.length;
+        switch (mRotation) {
+            case 90:
+                for (int d = 0; d < dstRows; d++) {
+                    rowOffset[d] = sample(d, dstRows, left, width, false) * pixelStride;
+                }
+                for (int d = 0; d < dstCols; d++) {
+                    colOffset[d] = sample(d, dstCols, top, height, true) * rowStride;
+                }
+                break;
+            case 180:
+                for (int d = 0; d < dstRows; d++) {
+                    rowOffset[d] = sample(d, dstRows, top, height, true) * rowStride;
+                }
+                for (int d = 0; d < dstCols; d++) {
+                    colOffset[d] = sample(d, dstCols, left, width, true) * pixelStride;
+                }
+                break;
+            case 270:
+                for (int d = 0; d < dstRows; d++) {
+                    rowOffset[d] = sample(d, dstRows, left, width, true) * pixelStride;
+                }
+                for (int d = 0; d < dstCols; d++) {
+                    colOffset[d] = sample(d, dstCols, top, height, false) * rowStride;
+                }
+                break;
+            default:
+                for (int d = 0; d < dstRows; d++) {
+                    rowOffset[d] = sample(d, dstRows, top, height, false) * rowStride;
+                }
+                for (int d = 0; d < dstCols; d++) {
+                    colOffset[d] = sample(d, dstCols, left, width, false) * pixelStride;
+                }
+                break;
+        }
+    }
+
+    /**
+     * 目标第d个像素中心对应的源像素
+     */
+    private static int sample(int d, int dstLength, int srcStart, int srcLength, boolean flip) {
+        int s = (int) ((2L * d + 1) * srcLength / (2L * dstLength));
+        s = Math.min(s, srcLength - 1);
+        if (flip) {
+            s = srcLength - 1 - s;
+        }
+        return srcStart + s;
+    }
+}
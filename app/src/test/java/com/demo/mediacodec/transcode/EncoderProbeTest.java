@@ -0,0 +1,39 @@
+package com.demo.mediacodec.transcode;
+
+import android.media.MediaCodecInfo.CodecProfileLevel;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 开启B帧时AVC High Profile的Level选择
+ *
+ * @date : 2026/10/19
+ */
+public class EncoderProbeTest {
+
+    @Test
+    public void levelFollowsResolutionAndFrameRate() {
+        //探测用的320x240@30fps
+        assertEquals(CodecProfileLevel.AVCLevel13, EncoderProbe.avcHighLevelFor(320, 240, 30, 500_000));
+        assertEquals(CodecProfileLevel.AVCLevel31, EncoderProbe.avcHighLevelFor(1280, 720, 30, 0));
+        assertEquals(CodecProfileLevel.AVCLevel4, EncoderProbe.avcHighLevelFor(1920, 1080, 30, 0));
+        assertEquals(CodecProfileLevel.AVCLevel42, EncoderProbe.avcHighLevelFor(1920, 1080, 60, 0));
+        assertEquals(CodecProfileLevel.AVCLevel51, EncoderProbe.avcHighLevelFor(3840, 2160, 30, 0));
+    }
+
+    @Test
+    public void levelFollowsBitrate() {
+        //Level 4的High Profile最大码率是25Mbps
+        assertEquals(CodecProfileLevel.AVCLevel4,
+                EncoderProbe.avcHighLevelFor(1920, 1080, 30, 25_000_000));
+        assertEquals(CodecProfileLevel.AVCLevel41,
+                EncoderProbe.avcHighLevelFor(1920, 1080, 30, 30_000_000));
+    }
+
+    @Test
+    public void levelIsCappedAtTheTable() {
+        assertEquals(CodecProfileLevel.AVCLevel52, EncoderProbe.avcHighLevelFor(7680, 4320, 60, 0));
+    }
+}
@@ -0,0 +1,195 @@
+package com.demo.mediacodec.transcode;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 用一个按固定速度追加数据的写入线程模拟上传中的文件，验证{@link GrowingFileDataSource}的阻塞读取、
+ * 停止增长的超时和close
+ *
+ * @date : 2026/10/19
+ */
+public class GrowingFileDataSourceTest {
+
+    private static final int FINAL_LENGTH = 64 * 1024;
+
+    private File mFile;
+    private byte[] mContent;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("growing", ".mp4");
+        mContent = new byte[FINAL_LENGTH];
+        for (int i = 0; i < FINAL_LENGTH; i++) {
+            mContent[i] = (byte) (i * 31);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @Test
+    public void readsWhileTheFileIsBeingWritten() throws Exception {
+        //每5ms追加4KB
+        Thread writer = startWriter(0, FINAL_LENGTH, 4096, 5);
+        GrowingFileDataSource source = new GrowingFileDataSource(mFile, FINAL_LENGTH);
+        try {
+            byte[] buffer = new byte[FINAL_LENGTH];
+            int position = 0;
+            while (position < FINAL_LENGTH) {
+                int read = source.readAt(position, buffer, position, 3000);
+                assertTrue("读取结果: " + read, read > 0);
+                position += read;
+            }
+            assertArrayEquals(mContent, buffer);
+            assertEquals(-1, source.readAt(FINAL_LENGTH, buffer, 0, 10));
+        } finally {
+            source.close();
+            writer.join();
+        }
+    }
+
+    @Test
+    public void readIsClampedToTheFinalLength() throws Exception {
+        write(0, FINAL_LENGTH);
+        GrowingFileDataSource source = new GrowingFileDataSource(mFile, FINAL_LENGTH);
+        byte[] buffer = new byte[100];
+        assertEquals(10, source.readAt(FINAL_LENGTH - 10, buffer, 0, 100));
+        assertEquals(FINAL_LENGTH, source.getSize());
+        source.close();
+    }
+
+    @Test
+    public void stallTimesOutWhenTheWriterStops() throws Exception {
+        write(0, 100);
+        //每次取时间前进1秒，不需要真的等待
+        GrowingFileDataSource source = new GrowingFileDataSource(mFile, FINAL_LENGTH, 5_000) {
+            private long mNowMs;
+
+            @Override
+            long now() {
+                mNowMs += 1_000;
+                return mNowMs;
+            }
+        };
+        try {
+            source.readAt(0, new byte[200], 0, 200);
+            fail("文件没有增长时应该超时");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("100/" + FINAL_LENGTH));
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void closeUnblocksAPendingRead() throws Exception {
+        write(0, 100);
+        GrowingFileDataSource source = new GrowingFileDataSource(mFile, FINAL_LENGTH);
+        final IOException[] error = new IOException[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    source.readAt(0, new byte[200], 0, 200);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+        reader.start();
+        reader.join(100);
+        assertTrue("数据没写入时应该阻塞", reader.isAlive());
+        source.close();
+        reader.join(5_000);
+        assertFalse(reader.isAlive());
+        assertNotNull(error[0]);
+    }
+
+    @Test
+    public void streamableOnlyWhenMoovIsBeforeMdat() throws Exception {
+        byte[] moovFirst = concat(box("ftyp", 16), box("moov", 24), box("mdat", 32));
+        assertTrue(isStreamable(moovFirst));
+        byte[] fragmented = concat(box("ftyp", 16), box("moof", 24), box("mdat", 32));
+        assertTrue(isStreamable(fragmented));
+        byte[] moovLast = concat(box("ftyp", 16), box("mdat", 32), box("moov", 24));
+        assertFalse(isStreamable(moovLast));
+    }
+
+    private boolean isStreamable(byte[] data) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(data);
+        }
+        GrowingFileDataSource source = new GrowingFileDataSource(mFile, data.length);
+        try {
+            return source.isStreamable();
+        } finally {
+            source.close();
+        }
+    }
+
+    private static byte[] box(String type, int size) {
+        byte[] box = new byte[size];
+        box[0] = (byte) (size >>> 24);
+        box[1] = (byte) (size >>> 16);
+        box[2] = (byte) (size >>> 8);
+        box[3] = (byte) size;
+        for (int i = 0; i < 4; i++) {
+            box[4 + i] = (byte) type.charAt(i);
+        }
+        return box;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] result = new byte[length];
+        int position = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, position, part.length);
+            position += part.length;
+        }
+        return result;
+    }
+
+    private void write(int start, int end) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(mFile, start > 0)) {
+            out.write(mContent, start, end - start);
+        }
+    }
+
+    private Thread startWriter(final int start, final int end, final int chunk, final long intervalMs) {
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int position = start; position < end; position += chunk) {
+                        write(position, Math.min(end, position + chunk));
+                        Thread.sleep(intervalMs);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, "GrowingFileWriter");
+        writer.start();
+        return writer;
+    }
+}
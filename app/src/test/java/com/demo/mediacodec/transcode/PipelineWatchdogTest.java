@@ -0,0 +1,163 @@
+package com.demo.mediacodec.transcode;
+
+import com.demo.mediacodec.transcode.PipelineWatchdog.Snapshot;
+import com.demo.mediacodec.transcode.PipelineWatchdog.Stage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 用模拟的时间驱动{@link PipelineWatchdog}，验证快照中卡住时长和疑似阶段的判断
+ *
+ * @date : 2026/10/19
+ */
+public class PipelineWatchdogTest {
+
+    private static final long TIMEOUT_MS = 5_000;
+
+    //从非0开始，0在看门狗里表示没有在执行同步调用
+    private long mNowMs = 10_000;
+    private PipelineWatchdog mWatchdog;
+
+    @Before
+    public void setUp() {
+        mWatchdog = new PipelineWatchdog(TIMEOUT_MS, new PipelineWatchdog.OnStallListener() {
+            @Override
+            public void onStall(Snapshot snapshot) {
+            }
+        }) {
+            @Override
+            long now() {
+                return mNowMs;
+            }
+        };
+    }
+
+    @Test
+    public void stalledMsCountsFromTheLastMuxerWrite() {
+        frames(3);
+        advance(1_200);
+        Snapshot snapshot = mWatchdog.snapshot();
+        assertEquals(1_200, snapshot.stalledMs);
+        assertEquals(3, snapshot.counts[Stage.MUXER.ordinal()]);
+        assertEquals(2 * 33_333, mWatchdog.getLastPtsUs(Stage.MUXER));
+    }
+
+    @Test
+    public void stageThatProgressedDuringTheStallIsNotTheSuspect() {
+        frames(5);
+        advance(TIMEOUT_MS);
+        //除了写入以外的阶段都刚处理完一帧
+        for (Stage stage : Stage.values()) {
+            if (stage != Stage.MUXER) {
+                mWatchdog.progress(stage, 5 * 33_333);
+            }
+        }
+        Snapshot snapshot = mWatchdog.snapshot();
+        assertEquals(TIMEOUT_MS, snapshot.stalledMs);
+        assertNull(snapshot.suspect);
+    }
+
+    @Test
+    public void busyStageIsTheSuspect() {
+        frames(5);
+        mWatchdog.begin(Stage.RENDER);
+        advance(TIMEOUT_MS);
+        Snapshot snapshot = mWatchdog.snapshot();
+        assertEquals(Stage.RENDER, snapshot.suspect);
+        assertEquals(TIMEOUT_MS, snapshot.busyMs[Stage.RENDER.ordinal()]);
+        assertEquals(-1, snapshot.busyMs[Stage.MUXER.ordinal()]);
+    }
+
+    @Test
+    public void finishedCallIsNotBusy() {
+        frames(5);
+        mWatchdog.begin(Stage.MUXER);
+        mWatchdog.end(Stage.MUXER);
+        advance(TIMEOUT_MS);
+        Snapshot snapshot = mWatchdog.snapshot();
+        assertEquals(-1, snapshot.busyMs[Stage.MUXER.ordinal()]);
+        assertEquals(Stage.EXTRACTOR, snapshot.suspect);
+    }
+
+    @Test
+    public void decoderHoldingInputIsTheSuspect() {
+        frames(5);
+        //两个样本送入解码器之后没有输出
+        mWatchdog.progress(Stage.EXTRACTOR, 5 * 33_333);
+        mWatchdog.progress(Stage.DECODER_INPUT, 5 * 33_333);
+        mWatchdog.progress(Stage.EXTRACTOR, 6 * 33_333);
+        mWatchdog.progress(Stage.DECODER_INPUT, 6 * 33_333);
+        advance(TIMEOUT_MS);
+        Snapshot snapshot = mWatchdog.snapshot();
+        assertEquals(2, snapshot.decoderInFlight());
+        assertEquals(Stage.DECODER_OUTPUT, snapshot.suspect);
+    }
+
+    @Test
+    public void encoderHoldingInputIsTheSuspect() {
+        frames(5);
+        mWatchdog.progress(Stage.EXTRACTOR, 5 * 33_333);
+        mWatchdog.progress(Stage.DECODER_INPUT, 5 * 33_333);
+        mWatchdog.progress(Stage.DECODER_OUTPUT, 5 * 33_333);
+        mWatchdog.progress(Stage.RENDER, 5 * 33_333);
+        advance(TIMEOUT_MS);
+        Snapshot snapshot = mWatchdog.snapshot();
+        assertEquals(0, snapshot.decoderInFlight());
+        assertEquals(1, snapshot.encoderInFlight());
+        assertEquals(Stage.ENCODER_OUTPUT, snapshot.suspect);
+    }
+
+    @Test
+    public void decoderIsCheckedBeforeTheEncoder() {
+        frames(5);
+        //编码器留着一帧等待后面的帧，真正卡住的是解码器
+        mWatchdog.progress(Stage.EXTRACTOR, 5 * 33_333);
+        mWatchdog.progress(Stage.DECODER_INPUT, 5 * 33_333);
+        mWatchdog.progress(Stage.DECODER_OUTPUT, 5 * 33_333);
+        mWatchdog.progress(Stage.RENDER, 5 * 33_333);
+        mWatchdog.progress(Stage.EXTRACTOR, 6 * 33_333);
+        mWatchdog.progress(Stage.DECODER_INPUT, 6 * 33_333);
+        advance(TIMEOUT_MS);
+        assertEquals(Stage.DECODER_OUTPUT, mWatchdog.snapshot().suspect);
+    }
+
+    @Test
+    public void extractorWithoutPrefetchedSamplesIsTheSuspect() {
+        frames(5);
+        advance(TIMEOUT_MS);
+        Snapshot snapshot = mWatchdog.snapshot();
+        assertEquals(0, snapshot.prefetchedSamples());
+        //所有帧都已经写入，但还没有结束，只能是读取不到新的样本
+        assertEquals(Stage.EXTRACTOR, snapshot.suspect);
+    }
+
+    @Test
+    public void extractorWithPrefetchedSamplesIsNotTheSuspect() {
+        frames(5);
+        mWatchdog.progress(Stage.EXTRACTOR, 5 * 33_333);
+        advance(TIMEOUT_MS);
+        Snapshot snapshot = mWatchdog.snapshot();
+        assertEquals(1, snapshot.prefetchedSamples());
+        assertNull(snapshot.suspect);
+    }
+
+    /**
+     * 模拟count帧依次流过所有阶段
+     */
+    private void frames(int count) {
+        for (int i = 0; i < count; i++) {
+            advance(33);
+            for (Stage stage : Stage.values()) {
+                mWatchdog.progress(stage, i * 33_333L);
+            }
+        }
+    }
+
+    private void advance(long ms) {
+        mNowMs += ms;
+    }
+}
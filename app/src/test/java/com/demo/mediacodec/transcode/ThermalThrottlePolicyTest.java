@@ -0,0 +1,132 @@
+package com.demo.mediacodec.transcode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 用假的温控来源和时间模拟设备发热、冷却的过程，验证{@link ThermalThrottlePolicy}的会话数、冷却时间和运行速率
+ *
+ * @date : 2026/10/19
+ */
+public class ThermalThrottlePolicyTest {
+
+    private static final int MAX_SESSIONS = 4;
+
+    private FakeThermalSource mSource;
+    private FakePolicy mPolicy;
+
+    @Before
+    public void setUp() {
+        mSource = new FakeThermalSource();
+        mPolicy = new FakePolicy(mSource, MAX_SESSIONS);
+    }
+
+    @Test
+    public void sessionLimitFollowsThermalStatus() {
+        for (int i = 0; i < MAX_SESSIONS; i++) {
+            assertNotNull(mPolicy.tryAcquireSession());
+        }
+        assertNull("不发热时最多" + MAX_SESSIONS + "个会话", mPolicy.tryAcquireSession());
+
+        mSource.status = ThermalSource.STATUS_SEVERE;
+        FakePolicy policy = new FakePolicy(mSource, MAX_SESSIONS);
+        assertNotNull(policy.tryAcquireSession());
+        assertNull("严重发热时只允许1个会话", policy.tryAcquireSession());
+    }
+
+    @Test
+    public void cooldownAfterSessionEnd() {
+        mSource.status = ThermalSource.STATUS_MODERATE;
+        ThermalThrottlePolicy.Session session = mPolicy.tryAcquireSession();
+        assertNotNull(session);
+        session.release();
+
+        mPolicy.nowMs += 1_000;
+        assertNull("中度发热需要冷却2秒", mPolicy.tryAcquireSession());
+        mPolicy.nowMs += 1_000;
+        assertNotNull(mPolicy.tryAcquireSession());
+    }
+
+    @Test
+    public void releaseIsCountedOnce() {
+        mSource.status = ThermalSource.STATUS_SEVERE;
+        ThermalThrottlePolicy.Session first = mPolicy.tryAcquireSession();
+        assertNotNull(first);
+        first.release();
+        first.release();
+        mPolicy.nowMs += 10_000;
+        assertNotNull(mPolicy.tryAcquireSession());
+        assertNull("重复release不能多释放会话", mPolicy.tryAcquireSession());
+    }
+
+    @Test
+    public void operatingRateScalesFromBaselineAndRecovers() {
+        ThermalThrottlePolicy.Session session = mPolicy.tryAcquireSession();
+        assertNotNull(session);
+        assertEquals("不发热时不需要调整", ThermalThrottlePolicy.NO_CHANGE, session.onThroughput(100));
+
+        mSource.status = ThermalSource.STATUS_MODERATE;
+        assertEquals("以开始发热时的速度为基准", 80, session.onThroughput(100));
+        assertEquals(ThermalThrottlePolicy.NO_CHANGE, session.onThroughput(80));
+
+        //降速后实测速度变低，基准不变
+        mSource.status = ThermalSource.STATUS_SEVERE;
+        assertEquals(60, session.onThroughput(60));
+        mSource.status = ThermalSource.STATUS_CRITICAL;
+        assertEquals(40, session.onThroughput(50));
+
+        mSource.status = ThermalSource.STATUS_NONE;
+        assertEquals(ThermalThrottlePolicy.UNLIMITED, session.onThroughput(40));
+        assertEquals(ThermalThrottlePolicy.NO_CHANGE, session.onThroughput(90));
+    }
+
+    @Test
+    public void acquireSessionWaitsForCooldown() throws Exception {
+        mSource.status = ThermalSource.STATUS_MODERATE;
+        ThermalThrottlePolicy.Session session = mPolicy.acquireSession();
+        session.release();
+        //冷却期间acquireSession在子线程等待，时间推进后返回
+        final ThermalThrottlePolicy.Session[] acquired = new ThermalThrottlePolicy.Session[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    acquired[0] = mPolicy.acquireSession();
+                } catch (InterruptedException ignore) {
+                }
+            }
+        });
+        thread.start();
+        thread.join(200);
+        assertNull(acquired[0]);
+        mPolicy.nowMs += 2_000;
+        thread.join(5_000);
+        assertNotNull(acquired[0]);
+    }
+
+    private static class FakeThermalSource implements ThermalSource {
+        volatile int status = STATUS_NONE;
+
+        @Override
+        public int getThermalStatus() {
+            return status;
+        }
+    }
+
+    private static class FakePolicy extends ThermalThrottlePolicy {
+        volatile long nowMs = 100_000;
+
+        FakePolicy(ThermalSource source, int maxSessions) {
+            super(source, maxSessions);
+        }
+
+        @Override
+        protected long now() {
+            return nowMs;
+        }
+    }
+}